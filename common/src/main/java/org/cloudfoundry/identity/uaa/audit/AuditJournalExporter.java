@@ -0,0 +1,94 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.audit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Writes the events in an audit journal (see {@link MappedFileAuditService}) as JSON, one event per line, oldest
+ * first. It can be run on the command line with a journal directory or segment files as arguments, and writes to
+ * standard output:
+ *
+ * <pre>
+ * java -cp ... org.cloudfoundry.identity.uaa.audit.AuditJournalExporter /var/vcap/store/uaa/audit &gt; audit.json
+ * </pre>
+ *
+ * The segments are opened read only, so the journal can be exported while the server is running.
+ */
+public class AuditJournalExporter {
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			throw new IllegalArgumentException("Audit journal directory or segment files required");
+		}
+		List<File> files = new ArrayList<File>();
+		for (String arg : args) {
+			File file = new File(arg);
+			if (file.isDirectory()) {
+				files.addAll(Arrays.asList(MappedFileAuditService.listSegments(file)));
+			}
+			else {
+				files.add(file);
+			}
+		}
+		Writer writer = new OutputStreamWriter(System.out, "UTF-8");
+		AuditJournalExporter exporter = new AuditJournalExporter();
+		for (File file : files) {
+			exporter.export(file, writer);
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Export the events in a segment file.
+	 *
+	 * @param file the segment file
+	 * @param writer where to write the events
+	 * @return the number of events exported
+	 * @throws IOException if the file cannot be read or the events cannot be written
+	 */
+	public int export(File file, final Writer writer) throws IOException {
+		AuditJournalSegment segment = AuditJournalSegment.open(file, MappedFileAuditService.getSequence(file), false);
+		final List<AuditEvent> events = new ArrayList<AuditEvent>();
+		segment.read(new AuditJournalSegment.RecordCallback() {
+			@Override
+			public void record(int offset, AuditEvent event) {
+				events.add(event);
+			}
+		});
+		for (AuditEvent event : events) {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("type", event.getType().toString());
+			map.put("principalId", event.getPrincipalId());
+			map.put("origin", event.getOrigin());
+			map.put("data", event.getData());
+			map.put("time", event.getTime());
+			writer.write(mapper.writeValueAsString(map));
+			writer.write("\n");
+		}
+		return events.size();
+	}
+
+}
@@ -0,0 +1,259 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.audit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A file of audit events, mapped into memory. The file starts with a header (a magic number and a version), followed
+ * by the records, each one a length and then the event:
+ *
+ * <pre>
+ * int length, int type code, long time, string principal id, string origin, string data
+ * </pre>
+ *
+ * where a string is a short length (-1 for null) followed by UTF-8 bytes. The rest of the file is zeros, so the first
+ * zero length marks the end of the records. The length of a record is written last, so a record that was not
+ * completely written (e.g. if the process died) is not read.
+ *
+ * @see MappedFileAuditService
+ * @see AuditJournalExporter
+ */
+public class AuditJournalSegment {
+
+	/**
+	 * The callback for {@link AuditJournalSegment#read(RecordCallback)}.
+	 */
+	public static interface RecordCallback {
+
+		void record(int offset, AuditEvent event);
+
+	}
+
+	private static final int MAGIC = 0x55414a31; // "UAJ1"
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 8;
+
+	// Keeps an encoded string under Short.MAX_VALUE bytes, and a record well under the minimum segment size
+	private static final int MAX_STRING_LENGTH = 4000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+
+	private final long sequence;
+
+	private final MappedByteBuffer buffer;
+
+	private int position;
+
+	private volatile boolean deleted = false;
+
+	/**
+	 * Create a new segment file.
+	 *
+	 * @param file the file (which must not exist)
+	 * @param sequence the number of the segment
+	 * @param size the size of the file
+	 * @return the segment, ready to append to
+	 * @throws IOException if the file cannot be created
+	 */
+	public static AuditJournalSegment create(File file, long sequence, int size) throws IOException {
+		if (file.exists()) {
+			throw new IOException("Audit journal segment already exists: " + file);
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			return new AuditJournalSegment(file, sequence, buffer, HEADER_SIZE);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Open an existing segment file.
+	 *
+	 * @param file the file
+	 * @param sequence the number of the segment
+	 * @param writable true to map the file so that more events can be appended
+	 * @return the segment
+	 * @throws IOException if the file cannot be read or is not a segment
+	 */
+	public static AuditJournalSegment open(File file, long sequence, boolean writable) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		try {
+			MappedByteBuffer buffer = raf.getChannel().map(
+					writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				throw new IOException("Not an audit journal segment: " + file);
+			}
+			AuditJournalSegment segment = new AuditJournalSegment(file, sequence, buffer, HEADER_SIZE);
+			segment.position = segment.read(null);
+			return segment;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private AuditJournalSegment(File file, long sequence, MappedByteBuffer buffer, int position) {
+		this.file = file;
+		this.sequence = sequence;
+		this.buffer = buffer;
+		this.position = position;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	/**
+	 * Append an event, if there is room for it. Not thread safe: appends must be serialized by the caller.
+	 *
+	 * @param event the event
+	 * @return the offset of the record, or -1 if the segment is full
+	 */
+	public int append(AuditEvent event) {
+		byte[] principalId = encode(event.getPrincipalId());
+		byte[] origin = encode(event.getOrigin());
+		byte[] data = encode(event.getData());
+		int length = 4 + 8 + size(principalId) + size(origin) + size(data);
+		int offset = position;
+		if (offset + 4 + length > buffer.capacity()) {
+			return -1;
+		}
+		ByteBuffer record = buffer.duplicate();
+		record.position(offset + 4);
+		record.putInt(event.getType().getCode());
+		record.putLong(event.getTime());
+		put(record, principalId);
+		put(record, origin);
+		put(record, data);
+		// The length goes in last, so a reader never sees a partial record
+		buffer.putInt(offset, length);
+		position = offset + 4 + length;
+		return offset;
+	}
+
+	/**
+	 * Read the event at an offset returned by {@link #append(AuditEvent)}.
+	 *
+	 * @param offset the offset of the record
+	 * @return the event
+	 */
+	public AuditEvent read(int offset) {
+		ByteBuffer record = buffer.duplicate();
+		record.position(offset + 4);
+		AuditEventType type = AuditEventType.fromCode(record.getInt());
+		long time = record.getLong();
+		String principalId = get(record);
+		String origin = get(record);
+		String data = get(record);
+		return new AuditEvent(type, principalId, origin, data, time);
+	}
+
+	/**
+	 * Read all the events, oldest first.
+	 *
+	 * @param callback the callback for each event (can be null)
+	 * @return the offset after the last record
+	 */
+	public int read(RecordCallback callback) {
+		int offset = HEADER_SIZE;
+		while (offset + 4 <= buffer.capacity()) {
+			int length = buffer.getInt(offset);
+			if (length <= 0 || offset + 4 + length > buffer.capacity()) {
+				break;
+			}
+			if (callback != null) {
+				callback.record(offset, read(offset));
+			}
+			offset += 4 + length;
+		}
+		return offset;
+	}
+
+	/**
+	 * Write the changes to the file to the storage device.
+	 */
+	public void force() {
+		if (!buffer.isReadOnly()) {
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Delete the file. The events that were read from it are still available, but no more can be read.
+	 */
+	public void delete() {
+		deleted = true;
+		if (!file.delete()) {
+			file.deleteOnExit();
+		}
+	}
+
+	private static byte[] encode(String value) {
+		if (value == null) {
+			return null;
+		}
+		if (value.length() > MAX_STRING_LENGTH) {
+			value = value.substring(0, MAX_STRING_LENGTH);
+		}
+		return value.getBytes(UTF8);
+	}
+
+	private static int size(byte[] value) {
+		return 2 + (value == null ? 0 : value.length);
+	}
+
+	private static void put(ByteBuffer record, byte[] value) {
+		if (value == null) {
+			record.putShort((short) -1);
+			return;
+		}
+		record.putShort((short) value.length);
+		record.put(value);
+	}
+
+	private static String get(ByteBuffer record) {
+		short length = record.getShort();
+		if (length < 0) {
+			return null;
+		}
+		byte[] value = new byte[length];
+		record.get(value);
+		return new String(value, UTF8);
+	}
+
+}
@@ -0,0 +1,254 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.audit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Takes audit events off the request threads: events are added to a bounded queue and a single writer thread passes
+ * them on in batches, when a batch is full or the oldest event in it has waited for the flush interval. What happens
+ * when the queue is full is set by the {@link OverflowPolicy}. {@link #close(long)} writes whatever is still queued.
+ *
+ * @see JdbcAuditService
+ */
+public class BatchingAuditWriter {
+
+	/**
+	 * What to do with an event when the queue is full.
+	 */
+	public static enum OverflowPolicy {
+
+		/**
+		 * Wait for space in the queue (the caller is slowed down to the rate the events can be written).
+		 */
+		BLOCK,
+
+		/**
+		 * Drop the event and count it.
+		 */
+		DROP,
+
+		/**
+		 * Write the event to the log instead (and count it).
+		 */
+		LOG
+
+	}
+
+	/**
+	 * The destination of the batches.
+	 */
+	public static interface Sink {
+
+		void write(List<AuditEvent> events);
+
+	}
+
+	private static final Log auditLogger = LogFactory.getLog("UAA.Audit");
+
+	private final Log logger = LogFactory.getLog(getClass());
+
+	private final Sink sink;
+
+	private final BlockingQueue<AuditEvent> queue;
+
+	private final int batchSize;
+
+	private final long flushIntervalMillis;
+
+	private final OverflowPolicy overflowPolicy;
+
+	private final Thread writer;
+
+	private volatile boolean running = true;
+
+	private AtomicInteger overflowCount = new AtomicInteger();
+
+	private AtomicInteger failedCount = new AtomicInteger();
+
+	/**
+	 * Create a writer and start its thread.
+	 *
+	 * @param sink the destination of the events
+	 * @param capacity the maximum number of events waiting to be written
+	 * @param batchSize the maximum number of events written together
+	 * @param flushIntervalMillis the longest time an event waits for a batch to fill up
+	 * @param overflowPolicy what to do with an event when the queue is full
+	 */
+	public BatchingAuditWriter(Sink sink, int capacity, int batchSize, long flushIntervalMillis,
+			OverflowPolicy overflowPolicy) {
+		Assert.notNull(sink, "A Sink must be provided");
+		Assert.isTrue(batchSize > 0, "The batch size must be positive");
+		Assert.notNull(overflowPolicy, "An OverflowPolicy must be provided");
+		this.sink = sink;
+		this.queue = new ArrayBlockingQueue<AuditEvent>(capacity);
+		this.batchSize = batchSize;
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.overflowPolicy = overflowPolicy;
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "audit-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @return the number of events waiting to be written
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the number of events that were dropped or logged because the queue was full
+	 */
+	public int getOverflowCount() {
+		return overflowCount.get();
+	}
+
+	/**
+	 * @return the number of events that could not be written (they are logged instead)
+	 */
+	public int getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * Queue an event for writing.
+	 *
+	 * @param event the event
+	 */
+	public void add(AuditEvent event) {
+		add(event, overflowPolicy);
+	}
+
+	/**
+	 * Queue an event for writing, with a different policy for when the queue is full (e.g. for events that must not
+	 * be dropped).
+	 *
+	 * @param event the event
+	 * @param overflowPolicy what to do with the event if the queue is full
+	 */
+	public void add(AuditEvent event, OverflowPolicy overflowPolicy) {
+		if (!running) {
+			write(Collections.singletonList(event));
+			return;
+		}
+		if (queue.offer(event)) {
+			return;
+		}
+		switch (overflowPolicy) {
+		case BLOCK:
+			try {
+				queue.put(event);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				overflowCount.incrementAndGet();
+				spill(event);
+			}
+			break;
+		case LOG:
+			overflowCount.incrementAndGet();
+			spill(event);
+			break;
+		default:
+			overflowCount.incrementAndGet();
+			break;
+		}
+	}
+
+	/**
+	 * Stop the writer thread, after it has written the events still in the queue.
+	 *
+	 * @param timeoutMillis the longest time to wait for the queue to be written
+	 */
+	public void close(long timeoutMillis) {
+		running = false;
+		writer.interrupt();
+		try {
+			writer.join(timeoutMillis);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!queue.isEmpty()) {
+			logger.warn("Audit writer did not finish in time, " + queue.size() + " events not written");
+		}
+	}
+
+	private void drain() {
+		List<AuditEvent> batch = new ArrayList<AuditEvent>(batchSize);
+		try {
+			while (running) {
+				AuditEvent first = queue.take();
+				batch.add(first);
+				long deadline = System.currentTimeMillis() + flushIntervalMillis;
+				while (batch.size() < batchSize) {
+					queue.drainTo(batch, batchSize - batch.size());
+					long remaining = deadline - System.currentTimeMillis();
+					if (batch.size() >= batchSize || remaining <= 0) {
+						break;
+					}
+					AuditEvent next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				write(batch);
+				batch.clear();
+			}
+		}
+		catch (InterruptedException e) {
+			// Closing: write what is left below
+		}
+		while (!batch.isEmpty() || !queue.isEmpty()) {
+			queue.drainTo(batch, batchSize - batch.size());
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	private void write(List<AuditEvent> batch) {
+		try {
+			sink.write(batch);
+		}
+		catch (RuntimeException e) {
+			failedCount.addAndGet(batch.size());
+			logger.error("Could not write " + batch.size() + " audit events", e);
+			for (AuditEvent event : batch) {
+				spill(event);
+			}
+		}
+	}
+
+	private void spill(AuditEvent event) {
+		auditLogger.warn("Unwritten audit event: " + event.getType() + " ('" + event.getData() + "'): principal="
+				+ event.getPrincipalId() + ", origin=[" + event.getOrigin() + "], time=" + event.getTime());
+	}
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.audit;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+
+/**
+ * A {@link JdbcFailedLoginCountingAuditService} that also keeps the recent failed logins of each user in memory, so
+ * that the lockout check made for every password login ({@link #find(String, long)}) does not query the database.
+ * Events are still written through to the database, and the failures saved there are loaded on startup, so a restart
+ * does not reset the counts.
+ *
+ * The failures are held in a number of stripes, each with its own lock and a bounded number of users (least recently
+ * used first out), and only the most recent failures of each user are kept. After a stripe has had to drop a user,
+ * lookups of users it does not hold go to the database, and the next failure of such a user is added to the ones
+ * saved in the database, so a flood of failures for other accounts cannot reset a user's count. That only lasts for
+ * the save period after the last user was dropped, since any failures dropped before then have expired anyway.
+ *
+ * The counts are per server: failures logged by another server sharing the database are only seen after a restart.
+ */
+@ManagedResource
+public class CachingFailedLoginCountingAuditService extends JdbcFailedLoginCountingAuditService {
+
+	private final Log logger = LogFactory.getLog(getClass());
+
+	private Stripe[] stripes = createStripes(16, 100000);
+
+	private int maxFailuresPerUser = 20;
+
+	public CachingFailedLoginCountingAuditService(DataSource dataSource) {
+		super(dataSource);
+	}
+
+	/**
+	 * @param maxUsers the maximum number of users with failed logins to keep in memory (default 100000)
+	 */
+	public void setMaxUsers(int maxUsers) {
+		this.stripes = createStripes(stripes.length, maxUsers);
+	}
+
+	/**
+	 * @param maxFailuresPerUser the number of recent failures to keep for each user (default 20, must be more than the
+	 * number of failures that locks an account)
+	 */
+	public void setMaxFailuresPerUser(int maxFailuresPerUser) {
+		this.maxFailuresPerUser = maxFailuresPerUser;
+	}
+
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Users With Failed Logins")
+	public int getSize() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.failures.size();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		super.afterPropertiesSet();
+		long after = System.currentTimeMillis() - getSaveDataPeriodMillis();
+		int count = 0;
+		for (AuditEvent event : findAll(after)) {
+			if (event.getType() == AuditEventType.UserAuthenticationFailure) {
+				addFailure(event, false);
+				count++;
+			}
+		}
+		logger.info("Loaded " + count + " recent failed logins");
+	}
+
+	@Override
+	public List<AuditEvent> find(String principal, long after) {
+		Stripe stripe = getStripe(principal);
+		List<AuditEvent> events;
+		synchronized (stripe) {
+			Deque<AuditEvent> failures = stripe.failures.get(principal);
+			if (failures == null) {
+				if (!stripe.isRecentlyEvicted(getSaveDataPeriodMillis())) {
+					return Collections.emptyList();
+				}
+				events = null;
+			}
+			else {
+				events = new ArrayList<AuditEvent>(failures.size());
+				for (AuditEvent event : failures) {
+					if (event.getTime() > after) {
+						events.add(event);
+					}
+				}
+			}
+		}
+		return events != null ? events : super.find(principal, after);
+	}
+
+	@Override
+	public void log(AuditEvent auditEvent) {
+		switch (auditEvent.getType()) {
+		case UserAuthenticationSuccess:
+		case PasswordChangeSuccess:
+			Stripe stripe = getStripe(auditEvent.getPrincipalId());
+			synchronized (stripe) {
+				stripe.failures.remove(auditEvent.getPrincipalId());
+			}
+			break;
+		case UserAuthenticationFailure:
+			addFailure(auditEvent, true);
+			break;
+		default:
+			break;
+		}
+		super.log(auditEvent);
+	}
+
+	/**
+	 * @param event a failed login
+	 * @param load true to start from the failures saved in the database if the user is not held in memory (and might
+	 * have been dropped)
+	 */
+	private void addFailure(AuditEvent event, boolean load) {
+		String principal = event.getPrincipalId();
+		long expired = System.currentTimeMillis() - getSaveDataPeriodMillis();
+		Stripe stripe = getStripe(principal);
+		List<AuditEvent> saved = null;
+		if (load) {
+			synchronized (stripe) {
+				load = stripe.isRecentlyEvicted(getSaveDataPeriodMillis()) && !stripe.failures.containsKey(principal);
+			}
+			if (load) {
+				// Not holding the lock while the database is queried
+				saved = super.find(principal, expired);
+			}
+		}
+		synchronized (stripe) {
+			Deque<AuditEvent> failures = stripe.failures.get(principal);
+			if (failures == null) {
+				failures = new ArrayDeque<AuditEvent>();
+				if (saved != null) {
+					for (AuditEvent failure : saved) {
+						if (failure.getType() == AuditEventType.UserAuthenticationFailure) {
+							failures.addLast(failure);
+						}
+					}
+				}
+				stripe.failures.put(principal, failures);
+			}
+			// Most recent first, like the database query
+			failures.addFirst(event);
+			while (failures.size() > maxFailuresPerUser) {
+				failures.removeLast();
+			}
+			for (Iterator<AuditEvent> iterator = failures.descendingIterator(); iterator.hasNext();) {
+				if (iterator.next().getTime() >= expired) {
+					break;
+				}
+				iterator.remove();
+			}
+		}
+	}
+
+	private Stripe getStripe(String principal) {
+		Stripe[] stripes = this.stripes;
+		int hash = principal == null ? 0 : principal.hashCode();
+		return stripes[(hash & Integer.MAX_VALUE) % stripes.length];
+	}
+
+	private static Stripe[] createStripes(int count, int maxUsers) {
+		Stripe[] stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new Stripe(Math.max(1, maxUsers / count));
+		}
+		return stripes;
+	}
+
+	/**
+	 * The failures of a subset of the users, least recently used first.
+	 */
+	private static class Stripe {
+
+		private final Map<String, Deque<AuditEvent>> failures;
+
+		// When a user was last dropped (0 if never)
+		private long lastEviction = 0;
+
+		private Stripe(final int maxSize) {
+			this.failures = new LinkedHashMap<String, Deque<AuditEvent>>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Deque<AuditEvent>> eldest) {
+					if (size() > maxSize) {
+						lastEviction = System.currentTimeMillis();
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		/**
+		 * @param period the time a dropped failure is relevant for
+		 * @return true if a user has been dropped within the period, so users not held might have failures that are
+		 * only in the database
+		 */
+		private boolean isRecentlyEvicted(long period) {
+			return lastEviction > 0 && System.currentTimeMillis() - lastEviction < period;
+		}
+
+	}
+
+}
@@ -12,24 +12,49 @@
  */
 package org.cloudfoundry.identity.uaa.audit;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.Collections;
 import java.util.List;
 
 import javax.sql.DataSource;
 
+import org.cloudfoundry.identity.uaa.audit.BatchingAuditWriter.OverflowPolicy;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.support.MetricType;
 
 /**
- *
+ * Saves audit events in the <code>sec_audit</code> table.
+ * 
+ * Events are written on the calling thread by default. If {@link #setAsync(boolean) async} they are queued and written
+ * in batches by a {@link BatchingAuditWriter}, so that auditing does not add a database round trip to every request.
+ * The queued events are written when the service is destroyed.
+ * 
  * @author Luke Taylor
  */
-public class JdbcAuditService implements UaaAuditService {
+public class JdbcAuditService implements UaaAuditService, InitializingBean, DisposableBean {
 
 	private final JdbcTemplate template;
 
+	private boolean async = false;
+
+	private int queueCapacity = 10000;
+
+	private int batchSize = 100;
+
+	private int flushIntervalMillis = 1000;
+
+	private OverflowPolicy overflowPolicy = OverflowPolicy.LOG;
+
+	private BatchingAuditWriter writer;
+
 	public JdbcAuditService(DataSource dataSource) {
 		this.template = new JdbcTemplate(dataSource);
 	}
@@ -38,22 +63,141 @@ public class JdbcAuditService implements UaaAuditService {
 		return template;
 	}
 
+	/**
+	 * @param async true to queue events and write them in batches on a background thread (default false)
+	 */
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
+	/**
+	 * @param queueCapacity the maximum number of events waiting to be written if async (default 10000)
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @param batchSize the maximum number of events written in one batch if async (default 100)
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param flushIntervalMillis the longest time an event waits for a batch to fill up if async (default 1000)
+	 */
+	public void setFlushIntervalMillis(int flushIntervalMillis) {
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * @param overflowPolicy what to do with events when the queue is full if async (default LOG)
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Audit Events Waiting To Be Written")
+	public int getQueueSize() {
+		return writer == null ? 0 : writer.getQueueSize();
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Events Not Queued (Queue Full)")
+	public int getOverflowCount() {
+		return writer == null ? 0 : writer.getOverflowCount();
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Events Not Written (Errors)")
+	public int getFailedCount() {
+		return writer == null ? 0 : writer.getFailedCount();
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if (async && writer == null) {
+			writer = new BatchingAuditWriter(new BatchingAuditWriter.Sink() {
+				@Override
+				public void write(List<AuditEvent> events) {
+					JdbcAuditService.this.write(events);
+				}
+			}, queueCapacity, batchSize, flushIntervalMillis, overflowPolicy);
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if (writer != null) {
+			writer.close(10000);
+		}
+	}
+
 	@Override
 	public List<AuditEvent> find(String principal, long after) {
 		return template.query("select event_type, principal_id, origin, event_data, created from sec_audit where " +
 								"principal_id=? and created > ? order by created desc", new AuditEventRowMapper(), principal, new Timestamp(after));
 	}
 
+	/**
+	 * Find the audit events for all principals since the time provided, oldest first.
+	 *
+	 * @param after epoch in milliseconds
+	 * @return audit events since then
+	 */
+	protected List<AuditEvent> findAll(long after) {
+		return template.query("select event_type, principal_id, origin, event_data, created from sec_audit where " +
+								"created > ? order by created", new AuditEventRowMapper(), new Timestamp(after));
+	}
+
 	@Override
 	public void log(AuditEvent auditEvent) {
-		String origin = auditEvent.getOrigin();
-		String data = auditEvent.getData();
-		origin = origin==null ? "" : origin;
-		origin = origin.length()>255 ? origin.substring(0, 255) : origin;
-		data = data==null ? "" : data;
-		data = data.length()>255 ? data.substring(0, 255) : data;
-		template.update("insert into sec_audit (principal_id, event_type, origin, event_data) values (?,?,?,?)",
-				auditEvent.getPrincipalId(), auditEvent.getType().getCode(), auditEvent.getOrigin(), auditEvent.getData());		
+		if (writer != null) {
+			writer.add(auditEvent, getOverflowPolicy(auditEvent));
+		}
+		else {
+			write(Collections.singletonList(auditEvent));
+		}
+	}
+
+	/**
+	 * @param auditEvent an event about to be queued
+	 * @return what to do with the event if the queue is full (by default the {@link #setOverflowPolicy(OverflowPolicy)
+	 * overflow policy})
+	 */
+	protected OverflowPolicy getOverflowPolicy(AuditEvent auditEvent) {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Save some events (in a single batch).
+	 * 
+	 * @param events the events to save
+	 */
+	protected void write(final List<AuditEvent> events) {
+		template.batchUpdate(
+				"insert into sec_audit (principal_id, event_type, origin, event_data, created) values (?,?,?,?,?)",
+				new BatchPreparedStatementSetter() {
+					@Override
+					public void setValues(PreparedStatement ps, int i) throws SQLException {
+						AuditEvent auditEvent = events.get(i);
+						String origin = auditEvent.getOrigin();
+						String data = auditEvent.getData();
+						origin = origin==null ? "" : origin;
+						origin = origin.length()>255 ? origin.substring(0, 255) : origin;
+						data = data==null ? "" : data;
+						data = data.length()>255 ? data.substring(0, 255) : data;
+						ps.setString(1, auditEvent.getPrincipalId());
+						ps.setInt(2, auditEvent.getType().getCode());
+						ps.setString(3, origin);
+						ps.setString(4, data);
+						ps.setTimestamp(5, new Timestamp(auditEvent.getTime()));
+					}
+
+					@Override
+					public int getBatchSize() {
+						return events.size();
+					}
+				});
 	}
 
 	private class AuditEventRowMapper implements RowMapper<AuditEvent> {
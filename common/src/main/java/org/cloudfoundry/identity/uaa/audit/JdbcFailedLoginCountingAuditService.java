@@ -13,19 +13,46 @@
 package org.cloudfoundry.identity.uaa.audit;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.BatchingAuditWriter.OverflowPolicy;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
 /**
  * An audit service that subscribes to audit events but only saves enough data to answer queries about consecutive
  * failed logins.
  * 
+ * Data older than the {@link #setSaveDataPeriodMillis(int) save period} is removed in the background (every
+ * {@link #setPurgeIntervalSeconds(int) purge interval}), a bounded chunk at a time, so that a burst of failed logins
+ * does not also delete from the table for every event.
+ * 
+ * If {@link #setAsync(boolean) async}, the events saved here (failed and successful logins and password changes) are
+ * never dropped or only logged when the queue is full: the caller waits for space instead, since a lost event would
+ * change the lockout decision.
+ * 
  * @author Dave Syer
  */
 public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
 
+	private final Log logger = LogFactory.getLog(getClass());
+
 	private int saveDataPeriodMillis = 2 * 3600 * 1000; // 2hr
 
+	private int purgeIntervalSeconds = 60;
+
+	private int purgeChunkSize = 1000;
+
+	private ScheduledExecutorService scheduler;
+
 	public JdbcFailedLoginCountingAuditService(DataSource dataSource) {
 		super(dataSource);
 	}
@@ -36,17 +63,90 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
 	public void setSaveDataPeriodMillis(int saveDataPeriodMillis) {
 		this.saveDataPeriodMillis = saveDataPeriodMillis;
 	}
-	
+
+	protected int getSaveDataPeriodMillis() {
+		return saveDataPeriodMillis;
+	}
+
+	/**
+	 * @param purgeIntervalSeconds the time between purges of old data (default 60, zero or less to only purge when
+	 * {@link #purge()} is called)
+	 */
+	public void setPurgeIntervalSeconds(int purgeIntervalSeconds) {
+		this.purgeIntervalSeconds = purgeIntervalSeconds;
+	}
+
+	/**
+	 * @param purgeChunkSize the maximum number of rows to delete in one statement (default 1000)
+	 */
+	public void setPurgeChunkSize(int purgeChunkSize) {
+		this.purgeChunkSize = purgeChunkSize;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		super.afterPropertiesSet();
+		if (purgeIntervalSeconds > 0) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("audit-purge-");
+			threadFactory.setDaemon(true);
+			scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						purge();
+					}
+					catch (RuntimeException e) {
+						logger.warn("Could not purge old audit data", e);
+					}
+				}
+			}, purgeIntervalSeconds, purgeIntervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		super.destroy();
+	}
+
+	/**
+	 * Delete the data older than the save period, in chunks of at most (roughly, rows with the same timestamp are
+	 * deleted together) the chunk size.
+	 * 
+	 * @return the number of rows deleted
+	 */
+	public int purge() {
+		Timestamp cutoff = new Timestamp(System.currentTimeMillis() - saveDataPeriodMillis);
+		JdbcTemplate chunkTemplate = new JdbcTemplate(getJdbcTemplate().getDataSource());
+		chunkTemplate.setMaxRows(purgeChunkSize);
+		int deleted = 0;
+		while (true) {
+			List<Timestamp> chunk = chunkTemplate.queryForList(
+					"select created from sec_audit where created < ? order by created", Timestamp.class, cutoff);
+			if (chunk.isEmpty()) {
+				break;
+			}
+			deleted += getJdbcTemplate().update("delete from sec_audit where created <= ?",
+					chunk.get(chunk.size() - 1));
+			if (chunk.size() < purgeChunkSize) {
+				break;
+			}
+		}
+		if (deleted > 0) {
+			logger.debug("Purged " + deleted + " audit events older than " + cutoff);
+		}
+		return deleted;
+	}
+
 	@Override
 	public void log(AuditEvent auditEvent) {
 		switch (auditEvent.getType()) {
 		case UserAuthenticationSuccess:
 		case PasswordChangeSuccess:
-			getJdbcTemplate().update("delete from sec_audit where principal_id=?", auditEvent.getPrincipalId());
-			break;
 		case UserAuthenticationFailure:
-			getJdbcTemplate().update("delete from sec_audit where created < ?", new Timestamp(System.currentTimeMillis()
-					- saveDataPeriodMillis));
 			super.log(auditEvent);
 			break;
 		default:
@@ -54,4 +154,39 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
 		}
 	}
 
+	@Override
+	protected OverflowPolicy getOverflowPolicy(AuditEvent auditEvent) {
+		switch (auditEvent.getType()) {
+		case UserAuthenticationSuccess:
+		case PasswordChangeSuccess:
+		case UserAuthenticationFailure:
+			return OverflowPolicy.BLOCK;
+		default:
+			return super.getOverflowPolicy(auditEvent);
+		}
+	}
+
+	/**
+	 * Saves the failures (in batches) and deletes the data of the users that logged in or changed their password, in
+	 * the order of the events.
+	 */
+	@Override
+	protected void write(List<AuditEvent> events) {
+		List<AuditEvent> failures = new ArrayList<AuditEvent>();
+		for (AuditEvent auditEvent : events) {
+			if (auditEvent.getType() == AuditEventType.UserAuthenticationFailure) {
+				failures.add(auditEvent);
+				continue;
+			}
+			if (!failures.isEmpty()) {
+				super.write(failures);
+				failures = new ArrayList<AuditEvent>();
+			}
+			getJdbcTemplate().update("delete from sec_audit where principal_id=?", auditEvent.getPrincipalId());
+		}
+		if (!failures.isEmpty()) {
+			super.write(failures);
+		}
+	}
+
 }
@@ -0,0 +1,327 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.audit;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.util.Assert;
+
+/**
+ * An audit service that appends the events to a journal of memory-mapped files ({@link AuditJournalSegment segments})
+ * in a directory, instead of a database. When the current segment is full a new one is started, and the oldest
+ * segments are deleted so that only {@link #setMaxSegments(int) maxSegments} are kept.
+ *
+ * The events of each principal in the recent past are indexed in memory (by position in the journal), so that
+ * {@link #find(String, long)} is quick and the lockout policy can use this service. The index is rebuilt from the
+ * segments on startup. Only the most recent events of each principal, within the {@link #setIndexPeriodMillis(long)
+ * index period}, can be found: the rest are still in the journal, which can be read with the
+ * {@link AuditJournalExporter}.
+ *
+ * The mapped files are written to the storage device by the operating system, and also when a segment is full and
+ * when the service is closed, so the events survive the process dying but the most recent might not survive the
+ * machine failing.
+ */
+@ManagedResource
+public class MappedFileAuditService implements UaaAuditService, InitializingBean, DisposableBean {
+
+	private static final Pattern SEGMENT_NAME = Pattern.compile("audit-(\\d+)\\.journal");
+
+	private static final Log auditLogger = LogFactory.getLog("UAA.Audit");
+
+	private final Log logger = LogFactory.getLog(getClass());
+
+	private final File directory;
+
+	private int segmentSize = 16 * 1024 * 1024;
+
+	private int maxSegments = 10;
+
+	private long indexPeriodMillis = 2 * 3600 * 1000L;
+
+	private int maxEventsPerPrincipal = 100;
+
+	private final Deque<AuditJournalSegment> segments = new ArrayDeque<AuditJournalSegment>();
+
+	private final Map<String, Deque<Entry>> index = new HashMap<String, Deque<Entry>>();
+
+	private AuditJournalSegment current;
+
+	private int appendedCount = 0;
+
+	private int failedCount = 0;
+
+	/**
+	 * @param directory the directory of the journal (created if it does not exist)
+	 */
+	public MappedFileAuditService(File directory) {
+		Assert.notNull(directory, "A directory must be provided");
+		this.directory = directory;
+	}
+
+	/**
+	 * @param segmentSize the size in bytes of each segment file (default 16MB, at least 64KB)
+	 */
+	public void setSegmentSize(int segmentSize) {
+		Assert.isTrue(segmentSize >= 64 * 1024, "The segment size must be at least 64KB");
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * @param maxSegments the number of segment files to keep (default 10)
+	 */
+	public void setMaxSegments(int maxSegments) {
+		Assert.isTrue(maxSegments > 0, "At least one segment must be kept");
+		this.maxSegments = maxSegments;
+	}
+
+	/**
+	 * @param indexPeriodMillis how far back {@link #find(String, long)} can look (default 2 hours, which must be more
+	 * than the period the lockout policy counts failures in)
+	 */
+	public void setIndexPeriodMillis(long indexPeriodMillis) {
+		this.indexPeriodMillis = indexPeriodMillis;
+	}
+
+	/**
+	 * @param maxEventsPerPrincipal the number of recent events of each principal that can be found (default 100)
+	 */
+	public void setMaxEventsPerPrincipal(int maxEventsPerPrincipal) {
+		this.maxEventsPerPrincipal = maxEventsPerPrincipal;
+	}
+
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Journal Segments")
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Indexed Principals")
+	public synchronized int getIndexSize() {
+		return index.size();
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Events Appended")
+	public synchronized int getAppendedCount() {
+		return appendedCount;
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Events Not Appended")
+	public synchronized int getFailedCount() {
+		return failedCount;
+	}
+
+	@Override
+	public synchronized void afterPropertiesSet() throws Exception {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create audit journal directory: " + directory);
+		}
+		File[] files = listSegments(directory);
+		for (int i = 0; i < files.length; i++) {
+			boolean last = i == files.length - 1;
+			segments.addLast(AuditJournalSegment.open(files[i], getSequence(files[i]), last));
+		}
+		current = segments.peekLast();
+		if (current == null) {
+			current = createSegment(0);
+			segments.addLast(current);
+		}
+		deleteOldSegments();
+		final long after = System.currentTimeMillis() - indexPeriodMillis;
+		for (final AuditJournalSegment segment : segments) {
+			segment.read(new AuditJournalSegment.RecordCallback() {
+				@Override
+				public void record(int offset, AuditEvent event) {
+					if (event.getTime() > after) {
+						addToIndex(event, segment, offset);
+					}
+				}
+			});
+		}
+		logger.info("Opened audit journal in " + directory + " with " + segments.size() + " segments and "
+				+ index.size() + " recently active principals");
+	}
+
+	@Override
+	public synchronized void destroy() throws Exception {
+		if (current != null) {
+			current.force();
+		}
+	}
+
+	@Override
+	public synchronized List<AuditEvent> find(String principal, long after) {
+		Deque<Entry> entries = index.get(principal);
+		if (entries == null) {
+			return new ArrayList<AuditEvent>();
+		}
+		List<AuditEvent> events = new ArrayList<AuditEvent>(entries.size());
+		for (Entry entry : entries) {
+			if (entry.time <= after) {
+				break;
+			}
+			if (!entry.segment.isDeleted()) {
+				events.add(entry.segment.read(entry.offset));
+			}
+		}
+		return events;
+	}
+
+	@Override
+	public synchronized void log(AuditEvent auditEvent) {
+		int offset = current.append(auditEvent);
+		if (offset < 0) {
+			try {
+				rollover();
+			}
+			catch (IOException e) {
+				failedCount++;
+				logger.error("Could not start a new audit journal segment", e);
+				spill(auditEvent);
+				return;
+			}
+			offset = current.append(auditEvent);
+		}
+		addToIndex(auditEvent, current, offset);
+		appendedCount++;
+	}
+
+	private void rollover() throws IOException {
+		AuditJournalSegment next = createSegment(current.getSequence() + 1);
+		current.force();
+		segments.addLast(next);
+		current = next;
+		deleteOldSegments();
+		pruneIndex();
+	}
+
+	private AuditJournalSegment createSegment(long sequence) throws IOException {
+		File file = new File(directory, String.format("audit-%019d.journal", sequence));
+		return AuditJournalSegment.create(file, sequence, segmentSize);
+	}
+
+	private void deleteOldSegments() {
+		while (segments.size() > maxSegments) {
+			AuditJournalSegment oldest = segments.removeFirst();
+			oldest.delete();
+			logger.debug("Deleted audit journal segment " + oldest.getFile());
+		}
+	}
+
+	private void addToIndex(AuditEvent event, AuditJournalSegment segment, int offset) {
+		Deque<Entry> entries = index.get(event.getPrincipalId());
+		if (entries == null) {
+			entries = new ArrayDeque<Entry>();
+			index.put(event.getPrincipalId(), entries);
+		}
+		// Most recent first, like the database query
+		entries.addFirst(new Entry(event.getTime(), segment, offset));
+		while (entries.size() > maxEventsPerPrincipal) {
+			entries.removeLast();
+		}
+	}
+
+	/**
+	 * Remove the entries that are too old or are in deleted segments, so the index only holds recently active
+	 * principals.
+	 */
+	private void pruneIndex() {
+		long expired = System.currentTimeMillis() - indexPeriodMillis;
+		for (Iterator<Deque<Entry>> values = index.values().iterator(); values.hasNext();) {
+			Deque<Entry> entries = values.next();
+			for (Iterator<Entry> iterator = entries.descendingIterator(); iterator.hasNext();) {
+				Entry entry = iterator.next();
+				if (entry.time >= expired && !entry.segment.isDeleted()) {
+					break;
+				}
+				iterator.remove();
+			}
+			if (entries.isEmpty()) {
+				values.remove();
+			}
+		}
+	}
+
+	private void spill(AuditEvent event) {
+		auditLogger.warn("Unwritten audit event: " + event.getType() + " ('" + event.getData() + "'): principal="
+				+ event.getPrincipalId() + ", origin=[" + event.getOrigin() + "], time=" + event.getTime());
+	}
+
+	/**
+	 * @param directory a journal directory
+	 * @return the segment files in the directory, oldest first
+	 */
+	static File[] listSegments(File directory) {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && SEGMENT_NAME.matcher(file.getName()).matches();
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				long s1 = getSequence(o1);
+				long s2 = getSequence(o2);
+				return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+			}
+		});
+		return files;
+	}
+
+	static long getSequence(File file) {
+		Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+		return matcher.matches() ? Long.parseLong(matcher.group(1)) : 0;
+	}
+
+	/**
+	 * The position of an event in the journal.
+	 */
+	private static class Entry {
+
+		private final long time;
+
+		private final AuditJournalSegment segment;
+
+		private final int offset;
+
+		private Entry(long time, AuditJournalSegment segment, int offset) {
+			this.time = time;
+			this.segment = segment;
+			this.offset = offset;
+		}
+
+	}
+
+}
@@ -33,6 +33,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.authentication.manager.PasswordEncoderBusyException;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.type.TypeReference;
 import org.springframework.http.HttpMethod;
@@ -132,6 +133,12 @@ public class AuthzAuthenticationFilter implements Filter {
 				SecurityContextHolder.getContext().setAuthentication(result);
 			}
 		}
+		catch (PasswordEncoderBusyException e) {
+			logger.debug("Authentication rejected: " + e.getMessage());
+			res.setHeader("Retry-After", "1");
+			res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+			return;
+		}
 		catch (AuthenticationException e) {
 			logger.debug("Authentication failed");
 			
@@ -0,0 +1,54 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.authentication;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.cloudfoundry.identity.uaa.authentication.manager.PasswordEncoderBusyException;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.web.authentication.SimpleUrlAuthenticationFailureHandler;
+
+/**
+ * Sends a failed form login to the failure URL like its superclass, except when the password could not be checked
+ * because the password encoder was busy, which is a 503 with a Retry-After header (it is not the user's fault, so it
+ * should not look like a wrong password).
+ */
+public class UaaAuthenticationFailureHandler extends SimpleUrlAuthenticationFailureHandler {
+
+	private int retryAfterSeconds = 1;
+
+	/**
+	 * @param retryAfterSeconds the value of the Retry-After header (default 1)
+	 */
+	public void setRetryAfterSeconds(int retryAfterSeconds) {
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	@Override
+	public void onAuthenticationFailure(HttpServletRequest request, HttpServletResponse response,
+			AuthenticationException exception) throws IOException, ServletException {
+		PasswordEncoderBusyException busy = PasswordEncoderBusyException.find(exception);
+		if (busy == null) {
+			super.onAuthenticationFailure(request, response, exception);
+			return;
+		}
+		logger.debug("Authentication rejected: " + busy.getMessage());
+		response.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, busy.getMessage());
+	}
+
+}
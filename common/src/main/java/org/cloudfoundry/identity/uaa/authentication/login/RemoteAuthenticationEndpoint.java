@@ -20,7 +20,9 @@ import java.util.Map;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
+import org.cloudfoundry.identity.uaa.authentication.manager.PasswordEncoderBusyException;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.authentication.AuthenticationManager;
@@ -55,10 +57,15 @@ public class RemoteAuthenticationEndpoint {
 		token.setDetails(new UaaAuthenticationDetails(request));
 
 		HttpStatus status = HttpStatus.UNAUTHORIZED;
+		HttpHeaders headers = new HttpHeaders();
 		try {
 			Authentication a = authenticationManager.authenticate(token);
 			responseBody.put("username", a.getName());
 			status = HttpStatus.OK;
+		} catch (PasswordEncoderBusyException e) {
+			responseBody.put("error", "temporarily unavailable");
+			headers.set("Retry-After", "1");
+			status = HttpStatus.SERVICE_UNAVAILABLE;
 		} catch (AuthenticationException e) {
 			responseBody.put("error", "authentication failed");
 		} catch (Exception e) {
@@ -66,6 +73,6 @@ public class RemoteAuthenticationEndpoint {
 			status = HttpStatus.INTERNAL_SERVER_ERROR;
 		}
 
-		return new ResponseEntity<Map<String,String>>(responseBody, status);
+		return new ResponseEntity<Map<String,String>>(responseBody, headers, status);
 	}
 }
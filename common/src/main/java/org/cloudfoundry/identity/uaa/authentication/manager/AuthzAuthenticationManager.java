@@ -54,6 +54,7 @@ public class AuthzAuthenticationManager implements AuthenticationManager, Applic
 	private final UaaUserDatabase userDatabase;
 	private ApplicationEventPublisher eventPublisher;
 	private AccountLoginPolicy accountLoginPolicy = new PermitAllAccountLoginPolicy();
+	private PasswordRehasher passwordRehasher;
 	/**
 	 * Dummy user allows the authentication process for non-existent and locked out users to be as close to
 	 * that of normal users as possible to avoid differences in timing.
@@ -103,6 +104,9 @@ public class AuthzAuthenticationManager implements AuthenticationManager, Applic
 			Authentication success = new UaaAuthentication(new UaaPrincipal(user),
 						user.getAuthorities(), (UaaAuthenticationDetails) req.getDetails());
 			publish(new UserAuthenticationSuccessEvent(user, success));
+			if (passwordRehasher != null) {
+				passwordRehasher.rehashIfNeeded(user, (CharSequence) req.getCredentials());
+			}
 
 			return success;
 		}
@@ -134,6 +138,13 @@ public class AuthzAuthenticationManager implements AuthenticationManager, Applic
 		this.accountLoginPolicy = accountLoginPolicy;
 	}
 
+	/**
+	 * @param passwordRehasher a rehasher to move stored password hashes to a new cost as users log in (default none)
+	 */
+	public void setPasswordRehasher(PasswordRehasher passwordRehasher) {
+		this.passwordRehasher = passwordRehasher;
+	}
+
 	private UaaUser createDummyUser() {
 		// Create random unguessable password
 		SecureRandom random = new SecureRandom();
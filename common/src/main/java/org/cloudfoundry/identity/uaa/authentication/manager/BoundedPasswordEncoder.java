@@ -0,0 +1,188 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.authentication.manager;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link PasswordEncoder} that runs a (deliberately slow) delegate like {@link BCryptPasswordEncoder} on a small
+ * dedicated pool of threads, one per core by default, with a bounded queue in front of it. A burst of logins (e.g.
+ * credential stuffing) then uses at most that many cores, instead of every container thread, and leaves the rest of
+ * the server (like <code>/check_token</code> and <code>/healthz</code>) responsive. When the queue is full the caller
+ * gets a {@link PasswordEncoderBusyException} straight away.
+ *
+ * The rejection does not depend on the password or the user (the dummy hash used by {@link AuthzAuthenticationManager}
+ * for unknown users goes through the same queue), so it does not reveal whether a user exists.
+ */
+@ManagedResource
+public class BoundedPasswordEncoder implements PasswordEncoder, DisposableBean {
+
+	private final Log logger = LogFactory.getLog(getClass());
+
+	private final PasswordEncoder delegate;
+
+	private final ThreadPoolExecutor executor;
+
+	private AtomicInteger rejectedCount = new AtomicInteger();
+
+	private AtomicLong hashCount = new AtomicLong();
+
+	private AtomicLong totalWaitNanos = new AtomicLong();
+
+	private AtomicLong totalHashNanos = new AtomicLong();
+
+	public BoundedPasswordEncoder() {
+		this(new BCryptPasswordEncoder(), 0, 100);
+	}
+
+	/**
+	 * @param delegate the encoder to run
+	 * @param poolSize the number of threads to run it on (0 for the number of available processors)
+	 * @param queueCapacity the number of requests that can wait for a thread before new ones are rejected
+	 */
+	public BoundedPasswordEncoder(PasswordEncoder delegate, int poolSize, int queueCapacity) {
+		Assert.notNull(delegate, "A delegate PasswordEncoder must be provided");
+		Assert.isTrue(queueCapacity > 0, "The queue capacity must be positive");
+		this.delegate = delegate;
+		int threads = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("password-encoder-");
+		threadFactory.setDaemon(true);
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory);
+	}
+
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Encoder Queue Depth")
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Encoder Active Threads")
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Encoder Rejected Count")
+	public int getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Encoder Hash Count")
+	public long getHashCount() {
+		return hashCount.get();
+	}
+
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Encoder Average Wait Time (ms)")
+	public long getAverageWaitMillis() {
+		return average(totalWaitNanos);
+	}
+
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Encoder Average Hash Time (ms)")
+	public long getAverageHashMillis() {
+		return average(totalHashNanos);
+	}
+
+	@Override
+	public String encode(final CharSequence rawPassword) {
+		return execute(new Callable<String>() {
+			@Override
+			public String call() {
+				return delegate.encode(rawPassword);
+			}
+		});
+	}
+
+	@Override
+	public boolean matches(final CharSequence rawPassword, final String encodedPassword) {
+		return execute(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return delegate.matches(rawPassword, encodedPassword);
+			}
+		});
+	}
+
+	@Override
+	public void destroy() {
+		executor.shutdownNow();
+	}
+
+	private <T> T execute(final Callable<T> task) {
+		final long submitted = System.nanoTime();
+		Future<T> future;
+		try {
+			future = executor.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					long started = System.nanoTime();
+					try {
+						return task.call();
+					}
+					finally {
+						long finished = System.nanoTime();
+						totalWaitNanos.addAndGet(started - submitted);
+						totalHashNanos.addAndGet(finished - started);
+						hashCount.incrementAndGet();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			rejectedCount.incrementAndGet();
+			logger.warn("Password encoder is saturated, rejecting request (queue depth " + getQueueDepth() + ")");
+			throw new PasswordEncoderBusyException("Too many concurrent authentication requests, try again later");
+		}
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new PasswordEncoderBusyException("Interrupted while waiting for the password encoder");
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException("Could not encode password", cause);
+		}
+	}
+
+	private long average(AtomicLong totalNanos) {
+		long count = hashCount.get();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / count);
+	}
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.authentication.manager;
+
+import org.springframework.security.authentication.AuthenticationServiceException;
+
+/**
+ * Thrown when a password cannot be checked because the {@link BoundedPasswordEncoder} is saturated. It is not a
+ * failure of the credentials, so it should be reported as a temporary condition (503) and not count towards a lockout.
+ */
+@SuppressWarnings("serial")
+public class PasswordEncoderBusyException extends AuthenticationServiceException {
+
+	public PasswordEncoderBusyException(String msg) {
+		super(msg);
+	}
+
+	/**
+	 * @param e an exception that might have been caused by the password encoder being busy
+	 * @return the exception itself or the cause that was a PasswordEncoderBusyException, or null if there is none
+	 */
+	public static PasswordEncoderBusyException find(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof PasswordEncoderBusyException) {
+				return (PasswordEncoderBusyException) cause;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.authentication.manager;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.cloudfoundry.identity.uaa.user.UserChangedEvent;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.util.Assert;
+
+/**
+ * Moves stored BCrypt hashes to a target cost (log rounds) as users log in, so the cost of a login can be tuned without
+ * asking anyone to reset their password. After a successful match {@link AuthzAuthenticationManager} hands the
+ * password over, and if the stored hash was made with a different cost it is encoded again and stored in the
+ * background, so the login response does not wait for it.
+ *
+ * The new hash is only stored if the old one is still there, so a password changed in the meantime is not overwritten.
+ * When the background queue is full the rehash is skipped; it will be tried again at the user's next login.
+ */
+@ManagedResource
+public class PasswordRehasher implements ApplicationEventPublisherAware, DisposableBean {
+
+	private static final Pattern BCRYPT_PATTERN = Pattern.compile("\\A\\$2a?\\$(\\d\\d)\\$[./0-9A-Za-z]{53}");
+
+	private static final String UPDATE_PASSWORD_SQL = "update users set password=? where id=? and password=?";
+
+	private final Log logger = LogFactory.getLog(getClass());
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final int targetStrength;
+
+	private final BCryptPasswordEncoder encoder;
+
+	private ThreadPoolExecutor defaultExecutor;
+
+	private TaskExecutor taskExecutor;
+
+	private ApplicationEventPublisher publisher;
+
+	private AtomicInteger rehashCount = new AtomicInteger();
+
+	private AtomicInteger skippedCount = new AtomicInteger();
+
+	/**
+	 * @param jdbcTemplate a template for the database holding the users
+	 * @param targetStrength the BCrypt cost (log rounds, 4 to 31) that stored hashes should have
+	 */
+	public PasswordRehasher(JdbcTemplate jdbcTemplate, int targetStrength) {
+		this(jdbcTemplate, targetStrength, new BCryptPasswordEncoder(targetStrength));
+	}
+
+	/**
+	 * @param jdbcTemplate a template for the database holding the users
+	 * @param targetStrength the BCrypt cost (log rounds, 4 to 31) that stored hashes should have
+	 * @param encoder the encoder to rehash passwords with, which should be the one used for new passwords and created
+	 * with the same target strength
+	 */
+	public PasswordRehasher(JdbcTemplate jdbcTemplate, int targetStrength, BCryptPasswordEncoder encoder) {
+		Assert.notNull(jdbcTemplate, "A JdbcTemplate must be provided");
+		Assert.notNull(encoder, "A BCryptPasswordEncoder must be provided");
+		Assert.isTrue(targetStrength >= 4 && targetStrength <= 31, "The BCrypt strength must be between 4 and 31");
+		this.jdbcTemplate = jdbcTemplate;
+		this.targetStrength = targetStrength;
+		this.encoder = encoder;
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("password-rehash-");
+		threadFactory.setDaemon(true);
+		threadFactory.setThreadPriority(Thread.MIN_PRIORITY);
+		this.defaultExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(1000), threadFactory);
+		this.taskExecutor = new ConcurrentTaskExecutor(defaultExecutor);
+	}
+
+	/**
+	 * @param taskExecutor the executor to rehash passwords with (default a single low priority thread with a bounded
+	 * queue)
+	 */
+	public void setTaskExecutor(TaskExecutor taskExecutor) {
+		Assert.notNull(taskExecutor, "A TaskExecutor must be provided");
+		this.taskExecutor = taskExecutor;
+		if (defaultExecutor != null) {
+			defaultExecutor.shutdown();
+			defaultExecutor = null;
+		}
+	}
+
+	@Override
+	public void setApplicationEventPublisher(ApplicationEventPublisher publisher) {
+		this.publisher = publisher;
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Rehash Count")
+	public int getRehashCount() {
+		return rehashCount.get();
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Rehash Skipped Count")
+	public int getSkippedCount() {
+		return skippedCount.get();
+	}
+
+	/**
+	 * @param encodedPassword a stored password hash
+	 * @return true if it is a BCrypt hash made with a cost other than the target
+	 */
+	public boolean isRehashNeeded(String encodedPassword) {
+		if (encodedPassword == null) {
+			return false;
+		}
+		Matcher matcher = BCRYPT_PATTERN.matcher(encodedPassword);
+		return matcher.find() && Integer.parseInt(matcher.group(1)) != targetStrength;
+	}
+
+	/**
+	 * Rehash the password of a user in the background if the stored hash needs it. The password must already have been
+	 * checked against the stored hash.
+	 *
+	 * @param user the user that logged in
+	 * @param rawPassword the password the user logged in with
+	 */
+	public void rehashIfNeeded(final UaaUser user, final CharSequence rawPassword) {
+		if (!isRehashNeeded(user.getPassword())) {
+			return;
+		}
+		final String id = user.getId();
+		final String oldPassword = user.getPassword();
+		try {
+			taskExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					rehash(id, rawPassword, oldPassword);
+				}
+			});
+		}
+		catch (TaskRejectedException e) {
+			skippedCount.incrementAndGet();
+			logger.debug("Rehash queue is full, skipping rehash for user " + id);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (defaultExecutor != null) {
+			defaultExecutor.shutdown();
+		}
+	}
+
+	private void rehash(String id, CharSequence rawPassword, String oldPassword) {
+		try {
+			int updated = jdbcTemplate.update(UPDATE_PASSWORD_SQL, encoder.encode(rawPassword), id, oldPassword);
+			if (updated > 0) {
+				rehashCount.incrementAndGet();
+				logger.debug("Rehashed password for user " + id + " with strength " + targetStrength);
+				if (publisher != null) {
+					publisher.publishEvent(new UserChangedEvent(this, id));
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			skippedCount.incrementAndGet();
+			logger.warn("Could not rehash password for user " + id, e);
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.error;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.security.oauth2.provider.endpoint.AbstractEndpoint;
+import org.springframework.security.oauth2.provider.error.WebResponseExceptionTranslator;
+import org.springframework.util.Assert;
+
+/**
+ * Post processor which sets the exception translator of the OAuth2 endpoints (e.g. /oauth/token) declared by the
+ * <code>authorization-server</code> namespace element, which has no attribute for it.
+ */
+public class EndpointExceptionTranslatorPostProcessor implements BeanPostProcessor {
+
+	private final WebResponseExceptionTranslator exceptionTranslator;
+
+	public EndpointExceptionTranslatorPostProcessor(WebResponseExceptionTranslator exceptionTranslator) {
+		Assert.notNull(exceptionTranslator);
+		this.exceptionTranslator = exceptionTranslator;
+	}
+
+	@Override
+	public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+		if (bean instanceof AbstractEndpoint) {
+			((AbstractEndpoint) bean).setProviderExceptionHandler(exceptionTranslator);
+		}
+		return bean;
+	}
+
+	@Override
+	public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+		return bean;
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.error;
+
+import org.cloudfoundry.identity.uaa.authentication.manager.PasswordEncoderBusyException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+import org.springframework.security.oauth2.provider.error.DefaultWebResponseExceptionTranslator;
+import org.springframework.security.oauth2.provider.error.WebResponseExceptionTranslator;
+
+/**
+ * Translates exceptions like the {@link DefaultWebResponseExceptionTranslator}, except that a
+ * {@link PasswordEncoderBusyException} (e.g. from a password grant when too many passwords are being checked at once) is
+ * a 503 with a Retry-After header, instead of a 401 or a 500, so that clients back off and try again.
+ */
+public class UaaWebResponseExceptionTranslator implements WebResponseExceptionTranslator {
+
+	private WebResponseExceptionTranslator delegate = new DefaultWebResponseExceptionTranslator();
+
+	private int retryAfterSeconds = 1;
+
+	/**
+	 * @param delegate the translator for everything else (default a {@link DefaultWebResponseExceptionTranslator})
+	 */
+	public void setDelegate(WebResponseExceptionTranslator delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @param retryAfterSeconds the value of the Retry-After header (default 1)
+	 */
+	public void setRetryAfterSeconds(int retryAfterSeconds) {
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	@Override
+	public ResponseEntity<OAuth2Exception> translate(Exception e) throws Exception {
+		PasswordEncoderBusyException busy = PasswordEncoderBusyException.find(e);
+		if (busy == null) {
+			return delegate.translate(e);
+		}
+		HttpHeaders headers = new HttpHeaders();
+		headers.set("Cache-Control", "no-store");
+		headers.set("Pragma", "no-cache");
+		headers.set("Retry-After", String.valueOf(retryAfterSeconds));
+		return new ResponseEntity<OAuth2Exception>(new TemporarilyUnavailableException(busy.getMessage()), headers,
+				HttpStatus.SERVICE_UNAVAILABLE);
+	}
+
+	@SuppressWarnings("serial")
+	private static class TemporarilyUnavailableException extends OAuth2Exception {
+
+		public TemporarilyUnavailableException(String msg) {
+			super(msg);
+		}
+
+		@Override
+		public String getOAuth2ErrorCode() {
+			return "temporarily_unavailable";
+		}
+
+		@Override
+		public int getHttpErrorCode() {
+			return HttpStatus.SERVICE_UNAVAILABLE.value();
+		}
+
+	}
+
+}
@@ -0,0 +1,309 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.AuditEvent;
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
+import org.cloudfoundry.identity.uaa.rest.QueryableResourceManager;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.security.oauth2.common.exceptions.InvalidClientException;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+import org.springframework.security.oauth2.provider.ClientDetails;
+import org.springframework.security.oauth2.provider.ClientDetailsService;
+import org.springframework.util.Assert;
+
+/**
+ * A bounded cache in front of a {@link ClientDetailsService} (or a {@link QueryableResourceManager} of clients), so
+ * that the client registrations, which rarely change, are not read from the database for every token request, client
+ * authentication and approval page.
+ *
+ * Entries are evicted when they are older than {@link #setTimeToLiveSeconds(int) the time to live}, or when the cache
+ * is full (least recently used first). A max size of zero (the default) disables the cache. Unknown client ids are
+ * cached too (and the {@link InvalidClientException} is thrown again without asking the delegate), as are the details
+ * a delegate makes up for them (like the {@link JitClientDetailsService}).
+ *
+ * Entries are removed when a client is created, updated or deleted or its secret is changed, via the audit events
+ * published for those changes. The time to live bounds how long a change made some other way (e.g. by another server
+ * sharing the database) can go unnoticed. The cached instances are shared, so callers must not modify them.
+ *
+ * Queries and writes are passed through to the delegate (and writes remove the entry for the client as well).
+ *
+ * @see ClientAdminEndpoints
+ */
+@ManagedResource
+public class CachingClientDetailsService implements ClientDetailsService, QueryableResourceManager<ClientDetails>,
+		ApplicationListener<ApplicationEvent> {
+
+	private final Log logger = LogFactory.getLog(getClass());
+
+	private final ClientDetailsService clientDetailsService;
+
+	private final QueryableResourceManager<ClientDetails> resourceManager;
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > maxSize;
+		}
+	};
+
+	private volatile int maxSize = 0;
+
+	private int timeToLiveSeconds = 60;
+
+	private long generation = 0;
+
+	private AtomicInteger hitCount = new AtomicInteger();
+
+	private AtomicInteger missCount = new AtomicInteger();
+
+	/**
+	 * @param clientDetailsService the service to load clients from (queries and writes are not supported)
+	 */
+	public CachingClientDetailsService(ClientDetailsService clientDetailsService) {
+		Assert.notNull(clientDetailsService, "A ClientDetailsService must be provided");
+		this.clientDetailsService = clientDetailsService;
+		this.resourceManager = null;
+	}
+
+	/**
+	 * @param resourceManager the manager to load, query and change clients with
+	 */
+	public CachingClientDetailsService(QueryableResourceManager<ClientDetails> resourceManager) {
+		Assert.notNull(resourceManager, "A QueryableResourceManager must be provided");
+		this.clientDetailsService = null;
+		this.resourceManager = resourceManager;
+	}
+
+	/**
+	 * @param maxSize the maximum number of clients to keep (default 0, which disables the cache)
+	 */
+	public void setMaxSize(int maxSize) {
+		synchronized (entries) {
+			this.maxSize = maxSize;
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @param timeToLiveSeconds the maximum time to keep a client (default 60)
+	 */
+	public void setTimeToLiveSeconds(int timeToLiveSeconds) {
+		this.timeToLiveSeconds = timeToLiveSeconds;
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Client Cache Hit Count")
+	public int getHitCount() {
+		return hitCount.get();
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Client Cache Miss Count")
+	public int getMissCount() {
+		return missCount.get();
+	}
+
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Client Cache Size")
+	public int getSize() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	@Override
+	public ClientDetails loadClientByClientId(String clientId) throws OAuth2Exception {
+		if (!isEnabled()) {
+			return load(clientId);
+		}
+		long now = System.currentTimeMillis();
+		long generation;
+		synchronized (entries) {
+			Entry entry = entries.get(clientId);
+			if (entry != null && entry.expiresAt > now) {
+				hitCount.incrementAndGet();
+				return entry.getClient();
+			}
+			if (entry != null) {
+				entries.remove(clientId);
+			}
+			generation = this.generation;
+		}
+		missCount.incrementAndGet();
+		Entry entry;
+		try {
+			ClientDetails client = load(clientId);
+			if (client == null) {
+				return null;
+			}
+			entry = new Entry(client, null, now + timeToLiveSeconds * 1000l);
+		}
+		catch (InvalidClientException e) {
+			entry = new Entry(null, e.getMessage(), now + timeToLiveSeconds * 1000l);
+		}
+		synchronized (entries) {
+			if (generation == this.generation) {
+				entries.put(clientId, entry);
+			}
+		}
+		return entry.getClient();
+	}
+
+	@Override
+	public ClientDetails retrieve(String id) {
+		return loadClientByClientId(id);
+	}
+
+	@Override
+	public List<ClientDetails> retrieveAll() {
+		return getResourceManager().retrieveAll();
+	}
+
+	@Override
+	public List<ClientDetails> query(String filter) {
+		return getResourceManager().query(filter);
+	}
+
+	@Override
+	public List<ClientDetails> query(String filter, String sortBy, boolean ascending) {
+		return getResourceManager().query(filter, sortBy, ascending);
+	}
+
+	@Override
+	public ClientDetails create(ClientDetails resource) {
+		try {
+			return getResourceManager().create(resource);
+		}
+		finally {
+			invalidate(resource.getClientId());
+		}
+	}
+
+	@Override
+	public ClientDetails update(String id, ClientDetails resource) {
+		try {
+			return getResourceManager().update(id, resource);
+		}
+		finally {
+			invalidate(id);
+		}
+	}
+
+	@Override
+	public ClientDetails delete(String id, int version) {
+		try {
+			return getResourceManager().delete(id, version);
+		}
+		finally {
+			invalidate(id);
+		}
+	}
+
+	/**
+	 * Remove a client from the cache.
+	 *
+	 * @param clientId the id of the client
+	 */
+	public void invalidate(String clientId) {
+		synchronized (entries) {
+			generation++;
+			entries.remove(clientId);
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			generation++;
+			entries.clear();
+		}
+	}
+
+	@Override
+	public void onApplicationEvent(ApplicationEvent event) {
+		if (!isEnabled() || !(event instanceof AbstractUaaEvent)) {
+			return;
+		}
+		AuditEvent auditEvent = ((AbstractUaaEvent) event).getAuditEvent();
+		String principalId = auditEvent.getPrincipalId();
+		switch (auditEvent.getType()) {
+		case ClientCreateSuccess:
+		case ClientUpdateSuccess:
+		case ClientDeleteSuccess:
+		case SecretChangeSuccess:
+			logger.debug("Removing cached details for client " + principalId);
+			if (principalId == null) {
+				clear();
+			}
+			else {
+				invalidate(principalId);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private ClientDetails load(String clientId) {
+		if (resourceManager != null) {
+			return resourceManager.retrieve(clientId);
+		}
+		return clientDetailsService.loadClientByClientId(clientId);
+	}
+
+	private QueryableResourceManager<ClientDetails> getResourceManager() {
+		if (resourceManager == null) {
+			throw new UnsupportedOperationException("Not supported: the delegate is a read only ClientDetailsService");
+		}
+		return resourceManager;
+	}
+
+	/**
+	 * A cached client, or the message for a client id that was not found.
+	 */
+	private static class Entry {
+
+		private final ClientDetails client;
+
+		private final String message;
+
+		private final long expiresAt;
+
+		private Entry(ClientDetails client, String message, long expiresAt) {
+			this.client = client;
+			this.message = message;
+			this.expiresAt = expiresAt;
+		}
+
+		private ClientDetails getClient() {
+			if (client == null) {
+				throw new InvalidClientException(message);
+			}
+			return client;
+		}
+
+	}
+
+}
@@ -12,10 +12,17 @@
  */
 package org.cloudfoundry.identity.uaa.oauth;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.oauth.token.TokenClaims;
+import org.cloudfoundry.identity.uaa.oauth.token.TokenClaimsReader;
+import org.cloudfoundry.identity.uaa.oauth.token.TokenValidation;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.type.TypeReference;
 import org.springframework.beans.factory.InitializingBean;
@@ -23,6 +30,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.security.jwt.Jwt;
 import org.springframework.security.jwt.JwtHelper;
 import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidRequestException;
 import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
 import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
 import org.springframework.security.oauth2.provider.error.DefaultWebResponseExceptionTranslator;
@@ -32,6 +40,7 @@ import org.springframework.stereotype.Controller;
 import org.springframework.util.Assert;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
@@ -45,14 +54,31 @@ import org.springframework.web.bind.annotation.ResponseBody;
 public class CheckTokenEndpoint implements InitializingBean {
 
 	private ResourceServerTokenServices resourceServerTokenServices;
+	private TokenClaimsReader claimsReader;
 	private ObjectMapper mapper = new ObjectMapper();
 	protected final Log logger = LogFactory.getLog(getClass());
 	private WebResponseExceptionTranslator exceptionTranslator = new DefaultWebResponseExceptionTranslator();
+	private int maxBatchSize = 100;
 
 	public void setTokenServices(ResourceServerTokenServices resourceServerTokenServices) {
 		this.resourceServerTokenServices = resourceServerTokenServices;
 	}
 
+	/**
+	 * @param claimsReader optional: if set it is used instead of the token services, so each token is decoded and
+	 * verified once and the answer comes from the same claims
+	 */
+	public void setClaimsReader(TokenClaimsReader claimsReader) {
+		this.claimsReader = claimsReader;
+	}
+
+	/**
+	 * @param maxBatchSize the maximum number of tokens accepted by a single batch request (default 100)
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
 	@Override
 	public void afterPropertiesSet() throws Exception {
 		Assert.notNull(resourceServerTokenServices, "tokenServices must be set");
@@ -62,6 +88,14 @@ public class CheckTokenEndpoint implements InitializingBean {
 	@ResponseBody
 	public Map<String, ?> checkToken(@RequestParam("token") String value) {
 
+		if (claimsReader != null) {
+			TokenClaims claims = claimsReader.readAccessTokenClaims(value);
+			if (claims.isExpired(new Date())) {
+				throw new InvalidTokenException("Token has expired");
+			}
+			return claims.asMap();
+		}
+
 		OAuth2AccessToken token = resourceServerTokenServices.readAccessToken(value);
 		if (token == null) {
 			throw new InvalidTokenException("Token was not recognised");
@@ -76,6 +110,58 @@ public class CheckTokenEndpoint implements InitializingBean {
 		return response;
 	}
 
+	/**
+	 * Check several tokens in one request. The result has one entry per token, in the order they were sent: either
+	 * the claims of the token (as for <code>/check_token</code>) or the error that would have been returned for it.
+	 *
+	 * @param values the tokens to check
+	 * @return the claims or error for each token
+	 */
+	@RequestMapping(value = "/check_token/batch", method = RequestMethod.POST)
+	@ResponseBody
+	public List<Map<String, ?>> checkTokens(@RequestParam("token") List<String> values) {
+
+		if (values.size() > maxBatchSize) {
+			throw new InvalidRequestException("Too many tokens (the maximum is " + maxBatchSize + ")");
+		}
+
+		List<Map<String, ?>> results = new ArrayList<Map<String, ?>>(values.size());
+		if (claimsReader != null) {
+			Map<String, TokenValidation> validations = claimsReader.readAccessTokenClaims(values);
+			Date now = new Date();
+			for (String value : values) {
+				TokenValidation validation = validations.get(value);
+				if (!validation.isValid()) {
+					results.add(getError(validation.getError()));
+				}
+				else if (validation.getClaims().isExpired(now)) {
+					results.add(getError(new InvalidTokenException("Token has expired")));
+				}
+				else {
+					results.add(validation.getClaims().asMap());
+				}
+			}
+			return results;
+		}
+
+		for (String value : values) {
+			try {
+				results.add(checkToken(value));
+			}
+			catch (InvalidTokenException e) {
+				results.add(getError(e));
+			}
+		}
+		return results;
+	}
+
+	private Map<String, String> getError(OAuth2Exception e) {
+		Map<String, String> error = new LinkedHashMap<String, String>();
+		error.put("error", e.getOAuth2ErrorCode());
+		error.put("error_description", e.getMessage());
+		return error;
+	}
+
 	private Map<String, Object> getClaimsForToken(String token) {
 		Jwt tokenJwt = null;
 		try {
@@ -95,6 +181,12 @@ public class CheckTokenEndpoint implements InitializingBean {
 		return claims;
 	}
 
+	@ExceptionHandler(InvalidRequestException.class)
+	public ResponseEntity<OAuth2Exception> handleInvalidRequest(Exception e) throws Exception {
+		logger.info("Handling error: " + e.getClass().getSimpleName() + ", " + e.getMessage());
+		return exceptionTranslator.translate(e);
+	}
+
 	@ExceptionHandler(InvalidTokenException.class)
 	public ResponseEntity<OAuth2Exception> handleException(Exception e) throws Exception {
 		logger.info("Handling error: " + e.getClass().getSimpleName() + ", " + e.getMessage());
@@ -0,0 +1,236 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.oauth.token.JwtTokenCodec;
+import org.cloudfoundry.identity.uaa.oauth.token.KeyUtils;
+import org.cloudfoundry.identity.uaa.oauth.token.ThreadLocalMacSigner;
+import org.cloudfoundry.identity.uaa.oauth.token.ThreadLocalSignatureVerifier;
+import org.cloudfoundry.identity.uaa.oauth.token.TokenClaims;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.crypto.codec.Base64;
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestOperations;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Decodes and verifies access tokens locally, instead of sending them to the /check_token endpoint like
+ * {@link RemoteTokenServices}, and builds the same authentication from their claims.
+ *
+ * The verification key is fetched from the /token_key endpoint the first time it is needed. If a token names a key
+ * (in its <code>kid</code> header) that has not been seen yet, the key is fetched again, so that tokens signed after
+ * the key is rotated can be verified (but not more often than {@link #setMinRefreshIntervalSeconds(int) the minimum
+ * refresh interval}, which also applies while the server cannot be reached). The key that was current before the
+ * latest fetch is kept as well, so tokens signed before a rotation remain valid until they expire, but older keys are
+ * discarded.
+ *
+ * Only the signature and the expiry of a token are checked, so unlike the /check_token endpoint a token stays valid
+ * here after the user changes their password or revokes their approvals.
+ *
+ * @see TokenClaimsAuthenticationFactory
+ */
+public class LocalJwtTokenServices implements ResourceServerTokenServices, JwtTokenCodec.VerifierSource {
+
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	private RestOperations restTemplate = new RestTemplate();
+
+	private String tokenKeyEndpointUrl;
+
+	private String clientId;
+
+	private String clientSecret;
+
+	private long minRefreshInterval = 30000;
+
+	private TokenClaimsAuthenticationFactory authenticationFactory = new TokenClaimsAuthenticationFactory();
+
+	private volatile Map<String, SignatureVerifier> verifiers = Collections.emptyMap();
+
+	private volatile SignatureVerifier verifier;
+
+	private String verifierKeyId;
+
+	private long lastRefresh = 0;
+
+	public void setRestTemplate(RestOperations restTemplate) {
+		this.restTemplate = restTemplate;
+	}
+
+	public void setTokenKeyEndpointUrl(String tokenKeyEndpointUrl) {
+		this.tokenKeyEndpointUrl = tokenKeyEndpointUrl;
+	}
+
+	/**
+	 * The client id to authenticate with when fetching the key. Only needed if tokens are signed with a shared (MAC)
+	 * key, since a public key can be fetched anonymously.
+	 *
+	 * @param clientId the client id to set
+	 */
+	public void setClientId(String clientId) {
+		this.clientId = clientId;
+	}
+
+	public void setClientSecret(String clientSecret) {
+		this.clientSecret = clientSecret;
+	}
+
+	/**
+	 * @param minRefreshIntervalSeconds the minimum time between fetches of the key (default 30)
+	 */
+	public void setMinRefreshIntervalSeconds(int minRefreshIntervalSeconds) {
+		this.minRefreshInterval = minRefreshIntervalSeconds * 1000l;
+	}
+
+	@Override
+	public OAuth2Authentication loadAuthentication(String accessToken) throws AuthenticationException {
+		TokenClaims claims = getClaims(accessToken);
+		if (claims.isExpired(new Date())) {
+			throw new InvalidTokenException("Token has expired");
+		}
+		return authenticationFactory.createAuthentication(claims.asMap());
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String accessToken) {
+		TokenClaims claims = getClaims(accessToken);
+		DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(accessToken);
+		token.setTokenType(OAuth2AccessToken.BEARER_TYPE);
+		token.setExpiration(claims.getExpiration());
+		List<String> scopes = claims.getScope();
+		if (scopes.size() > 0) {
+			token.setScope(new HashSet<String>(scopes));
+		}
+		return token;
+	}
+
+	@Override
+	public SignatureVerifier getVerifier(String keyId) {
+		if (keyId == null) {
+			if (verifier == null) {
+				refresh();
+			}
+			return verifier;
+		}
+		SignatureVerifier result = verifiers.get(keyId);
+		if (result == null) {
+			refresh();
+			result = verifiers.get(keyId);
+		}
+		return result;
+	}
+
+	private TokenClaims getClaims(String accessToken) {
+		try {
+			return JwtTokenCodec.decodeClaims(accessToken, this);
+		}
+		catch (InvalidSignatureException e) {
+			logger.debug("Invalid token (signature): " + e.getMessage());
+			throw new InvalidTokenException("Invalid token (could not verify): " + accessToken);
+		}
+		catch (IllegalArgumentException e) {
+			logger.debug("Invalid token (could not decode): " + e.getMessage());
+			throw new InvalidTokenException("Invalid token (could not decode): " + accessToken);
+		}
+	}
+
+	/**
+	 * Fetch the current key from the server, unless it was fetched (or a fetch failed) very recently. Concurrent
+	 * callers wait for the first one and then use the key that it fetched.
+	 */
+	private synchronized void refresh() {
+		long now = System.currentTimeMillis();
+		if (lastRefresh > 0 && now - lastRefresh < minRefreshInterval) {
+			return;
+		}
+		lastRefresh = now;
+
+		HttpHeaders headers = new HttpHeaders();
+		if (clientId != null) {
+			headers.set("Authorization", getAuthorizationHeader(clientId, clientSecret));
+		}
+		@SuppressWarnings("rawtypes")
+		Map map;
+		try {
+			map = restTemplate.exchange(tokenKeyEndpointUrl, HttpMethod.GET, new HttpEntity<Void>(headers), Map.class)
+					.getBody();
+		}
+		catch (RestClientException e) {
+			logger.warn("Cannot fetch token key from " + tokenKeyEndpointUrl + ": " + e.getMessage());
+			throw new InvalidTokenException("Invalid token (verification key not available)");
+		}
+		String algorithm = (String) map.get("alg");
+		String value = (String) map.get("value");
+		String keyId = (String) map.get("kid");
+		logger.debug("Fetched token key (kid=" + keyId + ", alg=" + algorithm + ")");
+
+		SignatureVerifier fetched = createVerifier(algorithm, value);
+		Map<String, SignatureVerifier> current = new HashMap<String, SignatureVerifier>();
+		if (keyId != null && keyId.equals(verifierKeyId)) {
+			// Not rotated, so the previous key is still the one before this
+			current.putAll(verifiers);
+		}
+		else if (verifierKeyId != null) {
+			current.put(verifierKeyId, verifier);
+		}
+		if (keyId != null) {
+			current.put(keyId, fetched);
+		}
+		verifiers = current;
+		verifier = fetched;
+		verifierKeyId = keyId;
+	}
+
+	private SignatureVerifier createVerifier(String algorithm, String value) {
+		if (algorithm == null || value == null) {
+			throw new IllegalStateException("No key available from " + tokenKeyEndpointUrl);
+		}
+		if (algorithm.toUpperCase().startsWith("HMAC")) {
+			return new ThreadLocalMacSigner(algorithm, new SecretKeySpec(value.getBytes(), algorithm));
+		}
+		return new ThreadLocalSignatureVerifier(algorithm, KeyUtils.parsePublicKey(value));
+	}
+
+	private String getAuthorizationHeader(String clientId, String clientSecret) {
+		String creds = String.format("%s:%s", clientId, clientSecret);
+		try {
+			return "Basic " + new String(Base64.encode(creds.getBytes("UTF-8")));
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("Could not convert String");
+		}
+	}
+
+}
@@ -14,32 +14,36 @@ package org.cloudfoundry.identity.uaa.oauth;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashSet;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.codehaus.jackson.map.ObjectMapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.cloudfoundry.identity.uaa.util.SingleFlight;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.client.ClientHttpResponse;
-import org.springframework.security.core.Authentication;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.core.AuthenticationException;
-import org.springframework.security.core.GrantedAuthority;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.crypto.codec.Base64;
+import org.springframework.security.crypto.codec.Hex;
 import org.springframework.security.oauth2.common.OAuth2AccessToken;
 import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
-import org.springframework.security.oauth2.provider.BaseClientDetails;
-import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
 import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
-import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.DefaultResponseErrorHandler;
@@ -51,12 +55,23 @@ import org.springframework.web.client.RestTemplate;
  *
  * If the endpoint returns a 400 response, this indicates that the token is invalid.
  *
+ * Concurrent requests with the same token share a single call to the endpoint, and if a
+ * {@link #setCacheMaxSize(int) cache size} is set, the response for a valid token is kept until the token expires or
+ * until it is older than {@link #setCacheMaxAgeSeconds(int) the max age}, whichever is sooner (so a token that is
+ * revoked on the server can still be accepted here for up to that long). Both are keyed by a digest of the token, so
+ * the tokens themselves are not kept in memory. If Apache HttpClient is on the classpath it is used with a pool of
+ * keep-alive connections to the server.
+ *
  * @author Dave Syer
  * @author Luke Taylor
  *
  */
+@ManagedResource
 public class RemoteTokenServices implements ResourceServerTokenServices {
 
+	private static final boolean httpClientPresent = ClassUtils.isPresent("org.apache.http.client.HttpClient",
+			RemoteTokenServices.class.getClassLoader());
+
 	protected final Log logger = LogFactory.getLog(getClass());
 
 	private RestOperations restTemplate;
@@ -67,10 +82,38 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
 
 	private String clientSecret;
 
-	private ObjectMapper mapper = new ObjectMapper();
+	private TokenClaimsAuthenticationFactory authenticationFactory = new TokenClaimsAuthenticationFactory();
+
+	private final SingleFlight<String, Map<String, Object>> checks = new SingleFlight<String, Map<String, Object>>();
+
+	private final Map<String, CachedResponse> cache = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+			return size() > cacheMaxSize;
+		}
+	};
+
+	private volatile int cacheMaxSize = 0;
+
+	private int cacheMaxAgeSeconds = 60;
+
+	private AtomicInteger hitCount = new AtomicInteger();
+
+	private AtomicInteger missCount = new AtomicInteger();
 
 	public RemoteTokenServices() {
+		this(20);
+	}
+
+	/**
+	 * @param maxConnections the maximum number of (keep-alive) connections to the server, if Apache HttpClient is
+	 * available
+	 */
+	public RemoteTokenServices(int maxConnections) {
 		restTemplate = new RestTemplate();
+		if (httpClientPresent) {
+			((RestTemplate) restTemplate).setRequestFactory(PooledRequestFactory.create(maxConnections));
+		}
 		((RestTemplate)restTemplate).setErrorHandler(new DefaultResponseErrorHandler() {
 			@Override
 			// Ignore 400
@@ -98,97 +141,136 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
 		this.clientSecret = clientSecret;
 	}
 
+	/**
+	 * @param cacheMaxSize the maximum number of valid tokens to remember (default 0, which disables the cache)
+	 */
+	public void setCacheMaxSize(int cacheMaxSize) {
+		synchronized (cache) {
+			this.cacheMaxSize = cacheMaxSize;
+			cache.clear();
+		}
+	}
+
+	/**
+	 * @param cacheMaxAgeSeconds the maximum time to remember a token that has not expired (default 60)
+	 */
+	public void setCacheMaxAgeSeconds(int cacheMaxAgeSeconds) {
+		this.cacheMaxAgeSeconds = cacheMaxAgeSeconds;
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Token Cache Hit Count")
+	public int getHitCount() {
+		return hitCount.get();
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Check Token Request Count")
+	public int getMissCount() {
+		return missCount.get();
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Check Token Requests Shared With Another Thread")
+	public int getCoalescedCount() {
+		return checks.getCoalescedCount();
+	}
+
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Token Cache Size")
+	public int getCacheSize() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
 	public OAuth2Authentication loadAuthentication(String accessToken) throws AuthenticationException {
 
-		MultiValueMap<String, String> formData = new LinkedMultiValueMap<String, String>();
-		formData.add("token", accessToken);
-		HttpHeaders headers = new HttpHeaders();
-		headers.set("Authorization", getAuthorizationHeader(clientId, clientSecret));
-		Map<String, Object> map = postForMap(checkTokenEndpointUrl, formData, headers);
+		Map<String, Object> map = checkToken(accessToken);
 
 		if (map.containsKey("error")) {
 			logger.debug("check_token returned error: " + map.get("error"));
 			throw new InvalidTokenException(accessToken);
 		}
 
-		Assert.state(map.containsKey("client_id"), "Client id must be present in response from auth server");
-		String remoteClientId = (String) map.get("client_id");
-
-		Set<String> scope = new HashSet<String>();
-		if (map.containsKey("scope")) {
-			@SuppressWarnings("unchecked")
-			Collection<String> values = (Collection<String>) map.get("scope");
-			scope.addAll(values);
-		}
-		DefaultAuthorizationRequest clientAuthentication = new DefaultAuthorizationRequest(remoteClientId, scope);
+		return authenticationFactory.createAuthentication(map);
+	}
 
-		if (map.containsKey("resource_ids") || map.containsKey("client_authorities")) {
-			Set<String> resourceIds = new HashSet<String>();
-			if (map.containsKey("resource_ids")) {
-				@SuppressWarnings("unchecked")
-				Collection<String> values = (Collection<String>) map.get("resource_ids");
-				resourceIds.addAll(values);
-			}
-			Set<GrantedAuthority> clientAuthorities = new HashSet<GrantedAuthority>();
-			if (map.containsKey("client_authorities")) {
-				@SuppressWarnings("unchecked")
-				Collection<String> values = (Collection<String>) map.get("client_authorities");
-				clientAuthorities.addAll(getAuthorities(values));
-			}
-			BaseClientDetails clientDetails = new BaseClientDetails();
-			clientDetails.setClientId(remoteClientId);
-			clientDetails.setResourceIds(resourceIds);
-			clientDetails.setAuthorities(clientAuthorities);
-			clientAuthentication.addClientDetails(clientDetails);
-		}
+	@Override
+	public OAuth2AccessToken readAccessToken(String accessToken) {
+		throw new UnsupportedOperationException("Not supported: read access token");
+	}
 
+	/**
+	 * Get the contents of a token from the cache, or from the server if it is not cached. Only one request at a time
+	 * is sent for the same token: other threads asking for it wait for the response to that one.
+	 */
+	private Map<String, Object> checkToken(final String accessToken) {
 
-		if (map.containsKey(Claims.ADDITIONAL_AZ_ATTR)) {
-			try {
-				clientAuthentication.setAuthorizationParameters(Collections.singletonMap(Claims.ADDITIONAL_AZ_ATTR,
-						mapper.writeValueAsString(map.get(Claims.ADDITIONAL_AZ_ATTR))));
-			} catch (IOException e) {
-				throw new IllegalStateException("Cannot convert access token to JSON", e);
-			}
+		final String key = digest(accessToken);
+		Map<String, Object> cached = getCached(key);
+		if (cached != null) {
+			hitCount.incrementAndGet();
+			return cached;
 		}
 
-		Authentication userAuthentication = getUserAuthentication(map, scope);
+		return checks.execute(key, new Callable<Map<String, Object>>() {
+			@Override
+			public Map<String, Object> call() throws Exception {
+				missCount.incrementAndGet();
+				MultiValueMap<String, String> formData = new LinkedMultiValueMap<String, String>();
+				formData.add("token", accessToken);
+				HttpHeaders headers = new HttpHeaders();
+				headers.set("Authorization", getAuthorizationHeader(clientId, clientSecret));
+				Map<String, Object> map = postForMap(checkTokenEndpointUrl, formData, headers);
+				if (!map.containsKey("error")) {
+					putCached(key, map);
+				}
+				return map;
+			}
+		});
 
-		clientAuthentication.setApproved(true);
-		return new OAuth2Authentication(clientAuthentication, userAuthentication);
 	}
 
-	private Authentication getUserAuthentication(Map<String, Object> map, Set<String> scope) {
-		String username = (String) map.get("user_name");
-		if (username==null) {
+	private Map<String, Object> getCached(String key) {
+		if (cacheMaxSize <= 0) {
 			return null;
 		}
-		Set<GrantedAuthority> userAuthorities = new HashSet<GrantedAuthority>();
-		if (map.containsKey("user_authorities")) {
-			@SuppressWarnings("unchecked")
-			Collection<String> values = (Collection<String>) map.get("user_authorities");
-			userAuthorities.addAll(getAuthorities(values));
-		}
-		else {
-			// User authorities had better not be empty or we might mistake user for unauthenticated
-			userAuthorities.addAll(getAuthorities(scope));
+		long now = System.currentTimeMillis();
+		synchronized (cache) {
+			CachedResponse cached = cache.get(key);
+			if (cached == null) {
+				return null;
+			}
+			if (cached.expiresAt <= now) {
+				cache.remove(key);
+				return null;
+			}
+			return cached.map;
 		}
-		String email = (String) map.get("email");
-		String id = (String) map.get("user_id");
-		return new RemoteUserAuthentication(id, username, email, userAuthorities);
 	}
 
-	@Override
-	public OAuth2AccessToken readAccessToken(String accessToken) {
-		throw new UnsupportedOperationException("Not supported: read access token");
+	private void putCached(String key, Map<String, Object> map) {
+		if (cacheMaxSize <= 0) {
+			return;
+		}
+		long expiresAt = System.currentTimeMillis() + cacheMaxAgeSeconds * 1000l;
+		Object exp = map.get(Claims.EXP);
+		if (exp instanceof Number) {
+			expiresAt = Math.min(expiresAt, ((Number) exp).longValue() * 1000);
+		}
+		synchronized (cache) {
+			cache.put(key, new CachedResponse(map, expiresAt));
+		}
 	}
 
-	private Set<GrantedAuthority> getAuthorities(Collection<String> authorities) {
-		Set<GrantedAuthority> result = new HashSet<GrantedAuthority>();
-		for (String authority : authorities) {
-			result.add(new SimpleGrantedAuthority(authority));
+	private static String digest(String token) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return new String(Hex.encode(digest.digest(token.getBytes("UTF-8"))));
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not available", e);
 		}
-		return result;
 	}
 
 	private String getAuthorizationHeader(String clientId, String clientSecret) {
@@ -213,4 +295,32 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
 		return result;
 	}
 
+	private static class CachedResponse {
+
+		private final Map<String, Object> map;
+
+		private final long expiresAt;
+
+		public CachedResponse(Map<String, Object> map, long expiresAt) {
+			this.map = map;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+	/**
+	 * Only loaded if Apache HttpClient is on the classpath.
+	 */
+	private static class PooledRequestFactory {
+
+		public static ClientHttpRequestFactory create(int maxConnections) {
+			PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
+			connectionManager.setMaxTotal(maxConnections);
+			// All requests go to the same server
+			connectionManager.setDefaultMaxPerRoute(maxConnections);
+			return new HttpComponentsClientHttpRequestFactory(new DefaultHttpClient(connectionManager));
+		}
+
+	}
+
 }
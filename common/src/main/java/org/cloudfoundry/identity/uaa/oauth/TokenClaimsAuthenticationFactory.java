@@ -0,0 +1,123 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.provider.BaseClientDetails;
+import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.util.Assert;
+
+/**
+ * Builds the authentication a resource server uses for a request from the claims of an access token (as returned by
+ * the /check_token endpoint, or decoded locally from the token).
+ *
+ * @see RemoteTokenServices
+ * @see LocalJwtTokenServices
+ */
+public class TokenClaimsAuthenticationFactory {
+
+	private ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * @param map the claims of a valid token
+	 * @return an authentication for the client and (if there is one) the user the token was issued to
+	 */
+	public OAuth2Authentication createAuthentication(Map<String, Object> map) {
+
+		Assert.state(map.containsKey("client_id"), "Client id must be present in response from auth server");
+		String remoteClientId = (String) map.get("client_id");
+
+		Set<String> scope = new HashSet<String>();
+		if (map.containsKey("scope")) {
+			@SuppressWarnings("unchecked")
+			Collection<String> values = (Collection<String>) map.get("scope");
+			scope.addAll(values);
+		}
+		DefaultAuthorizationRequest clientAuthentication = new DefaultAuthorizationRequest(remoteClientId, scope);
+
+		if (map.containsKey("resource_ids") || map.containsKey("client_authorities")) {
+			Set<String> resourceIds = new HashSet<String>();
+			if (map.containsKey("resource_ids")) {
+				@SuppressWarnings("unchecked")
+				Collection<String> values = (Collection<String>) map.get("resource_ids");
+				resourceIds.addAll(values);
+			}
+			Set<GrantedAuthority> clientAuthorities = new HashSet<GrantedAuthority>();
+			if (map.containsKey("client_authorities")) {
+				@SuppressWarnings("unchecked")
+				Collection<String> values = (Collection<String>) map.get("client_authorities");
+				clientAuthorities.addAll(getAuthorities(values));
+			}
+			BaseClientDetails clientDetails = new BaseClientDetails();
+			clientDetails.setClientId(remoteClientId);
+			clientDetails.setResourceIds(resourceIds);
+			clientDetails.setAuthorities(clientAuthorities);
+			clientAuthentication.addClientDetails(clientDetails);
+		}
+
+
+		if (map.containsKey(Claims.ADDITIONAL_AZ_ATTR)) {
+			try {
+				clientAuthentication.setAuthorizationParameters(Collections.singletonMap(Claims.ADDITIONAL_AZ_ATTR,
+						mapper.writeValueAsString(map.get(Claims.ADDITIONAL_AZ_ATTR))));
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot convert access token to JSON", e);
+			}
+		}
+
+		Authentication userAuthentication = getUserAuthentication(map, scope);
+
+		clientAuthentication.setApproved(true);
+		return new OAuth2Authentication(clientAuthentication, userAuthentication);
+	}
+
+	private Authentication getUserAuthentication(Map<String, Object> map, Set<String> scope) {
+		String username = (String) map.get("user_name");
+		if (username==null) {
+			return null;
+		}
+		Set<GrantedAuthority> userAuthorities = new HashSet<GrantedAuthority>();
+		if (map.containsKey("user_authorities")) {
+			@SuppressWarnings("unchecked")
+			Collection<String> values = (Collection<String>) map.get("user_authorities");
+			userAuthorities.addAll(getAuthorities(values));
+		}
+		else {
+			// User authorities had better not be empty or we might mistake user for unauthenticated
+			userAuthorities.addAll(getAuthorities(scope));
+		}
+		String email = (String) map.get("email");
+		String id = (String) map.get("user_id");
+		return new RemoteUserAuthentication(id, username, email, userAuthorities);
+	}
+
+	private Set<GrantedAuthority> getAuthorities(Collection<String> authorities) {
+		Set<GrantedAuthority> result = new HashSet<GrantedAuthority>();
+		for (String authority : authorities) {
+			result.add(new SimpleGrantedAuthority(authority));
+		}
+		return result;
+	}
+
+}
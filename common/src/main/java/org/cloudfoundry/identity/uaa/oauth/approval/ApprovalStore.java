@@ -12,6 +12,7 @@
  */
 package org.cloudfoundry.identity.uaa.oauth.approval;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface ApprovalStore {
@@ -25,4 +26,12 @@ public interface ApprovalStore {
 	public List<Approval> getApprovals (String filter);
 
 	public List<Approval> getApprovals (String userName, String clientId);
+
+	/**
+	 * The approvals of several users, with as few queries as possible.
+	 *
+	 * @param userNames the user names (matched ignoring case)
+	 * @return the approvals of all the users
+	 */
+	public List<Approval> getApprovalsForUsers (Collection<String> userNames);
 }
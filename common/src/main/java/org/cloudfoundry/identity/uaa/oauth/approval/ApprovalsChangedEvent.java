@@ -0,0 +1,57 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.approval;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published by an {@link ApprovalStore} when approvals are added, updated or revoked, so that anything derived from
+ * them (e.g. cached token validations) can be discarded.
+ */
+public class ApprovalsChangedEvent extends ApplicationEvent {
+
+	private final String userName;
+
+	private final String clientId;
+
+	/**
+	 * Approvals changed for a single user and client.
+	 */
+	public ApprovalsChangedEvent(ApprovalStore source, String userName, String clientId) {
+		super(source);
+		this.userName = userName;
+		this.clientId = clientId;
+	}
+
+	/**
+	 * Approvals changed for any number of users and clients.
+	 */
+	public ApprovalsChangedEvent(ApprovalStore source) {
+		this(source, null, null);
+	}
+
+	/**
+	 * @return the user whose approvals changed, or null if it was not a single user
+	 */
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * @return the client whose approvals changed, or null if it was not a single client
+	 */
+	public String getClientId() {
+		return clientId;
+	}
+
+}
@@ -18,6 +18,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -28,6 +31,8 @@ import org.cloudfoundry.identity.uaa.oauth.approval.Approval.ApprovalStatus;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.rest.jdbc.SearchQueryConverter;
 import org.cloudfoundry.identity.uaa.rest.jdbc.SearchQueryConverter.ProcessedFilter;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -36,7 +41,7 @@ import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.util.Assert;
 
-public class JdbcApprovalStore implements ApprovalStore {
+public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublisherAware {
 
 	private final JdbcTemplate jdbcTemplate;
 	
@@ -58,12 +63,19 @@ public class JdbcApprovalStore implements ApprovalStore {
 
 	private static final String GET_AUTHZ_SQL = String.format("select %s from %s", FIELDS, TABLE_NAME);
 
+	private static final String GET_USERS_AUTHZ_SQL = String.format("select %s from %s where lower(userName) in (:userNames)", FIELDS, TABLE_NAME);
+
+	// Keeps the in (...) lists well inside the limits of all the supported databases
+	private static final int MAX_USERS_PER_QUERY = 500;
+
 	private static final String DELETE_AUTHZ_SQL = String.format("delete from %s", TABLE_NAME);
 
 	private static final String EXPIRE_AUTHZ_SQL = String.format("update %s set expiresAt = :expiry", TABLE_NAME);
 
 	private boolean handleRevocationsAsExpiry = false;
 
+	private ApplicationEventPublisher publisher;
+
 	public JdbcApprovalStore(JdbcTemplate jdbcTemplate, JdbcPagingListFactory pagingListFactory, SearchQueryConverter queryConverter) {
 		Assert.notNull(jdbcTemplate);
 		Assert.notNull(queryConverter);
@@ -76,6 +88,11 @@ public class JdbcApprovalStore implements ApprovalStore {
 		this.handleRevocationsAsExpiry = handleRevocationsAsExpiry;
 	}
 
+	@Override
+	public void setApplicationEventPublisher(ApplicationEventPublisher publisher) {
+		this.publisher = publisher;
+	}
+
 	public boolean refreshApproval(final Approval approval) {
 		logger.debug(String.format("refreshing approval: [%s]", approval));
 		int refreshed = jdbcTemplate.update(REFRESH_AUTHZ_SQL, new PreparedStatementSetter() {
@@ -113,6 +130,7 @@ public class JdbcApprovalStore implements ApprovalStore {
 				}
 			});
 		}
+		publish(new ApprovalsChangedEvent(this, approval.getUserName(), approval.getClientId()));
 		return true;
 	}
 
@@ -146,6 +164,7 @@ public class JdbcApprovalStore implements ApprovalStore {
 			logger.error("Error expiring approvals, possible invalid filter: " + where, ex);
 			throw new IllegalArgumentException("Error revoking approvals");
 		}
+		publish(new ApprovalsChangedEvent(this));
 		return true;
 	}
 
@@ -185,6 +204,27 @@ public class JdbcApprovalStore implements ApprovalStore {
 		return getApprovals(String.format("userName eq '%s' and clientId eq '%s'", userName, clientId));
 	}
 
+	@Override
+	public List<Approval> getApprovalsForUsers(Collection<String> userNames) {
+		List<String> names = new ArrayList<String>();
+		for (String userName : userNames) {
+			names.add(userName.toLowerCase());
+		}
+		NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(jdbcTemplate);
+		List<Approval> approvals = new ArrayList<Approval>();
+		for (int i = 0; i < names.size(); i += MAX_USERS_PER_QUERY) {
+			List<String> chunk = names.subList(i, Math.min(names.size(), i + MAX_USERS_PER_QUERY));
+			approvals.addAll(template.query(GET_USERS_AUTHZ_SQL, Collections.singletonMap("userNames", chunk), rowMapper));
+		}
+		return approvals;
+	}
+
+	private void publish(ApprovalsChangedEvent event) {
+		if (publisher != null) {
+			publisher.publishEvent(event);
+		}
+	}
+
 	private static class AuthorizationRowMapper implements RowMapper<Approval> {
 
 		@Override
@@ -0,0 +1,25 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+
+/**
+ * A {@link SignatureVerifier} that can verify the signature of a range of an array, so that the signed content does
+ * not have to be copied out of the buffer a token is being decoded into.
+ */
+public interface BufferVerifier extends SignatureVerifier {
+
+	void verify(byte[] content, int offset, int length, byte[] signature);
+
+}
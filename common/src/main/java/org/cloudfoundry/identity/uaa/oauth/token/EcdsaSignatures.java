@@ -0,0 +1,115 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import java.security.Key;
+import java.security.interfaces.ECKey;
+
+/**
+ * Converts ECDSA signatures between the DER encoding produced and expected by JCA (a sequence of the two integers r
+ * and s) and the encoding used in a JWT (r and s as unsigned big-endian numbers of a fixed length, concatenated).
+ */
+final class EcdsaSignatures {
+
+	private EcdsaSignatures() {
+	}
+
+	/**
+	 * @param key a key
+	 * @return the length of each of r and s in a JWT signature for the key, or 0 if it is not an EC key
+	 */
+	static int getLength(Key key) {
+		if (!(key instanceof ECKey)) {
+			return 0;
+		}
+		return (((ECKey) key).getParams().getCurve().getField().getFieldSize() + 7) / 8;
+	}
+
+	/**
+	 * @param der a DER encoded signature
+	 * @param length the length of each of r and s
+	 * @return the JWT encoding of the signature
+	 */
+	static byte[] toJose(byte[] der, int length) {
+		if (der.length < 8 || der[0] != 0x30) {
+			throw new IllegalArgumentException("Invalid ECDSA signature");
+		}
+		int position = (der[1] & 0xff) == 0x81 ? 3 : 2;
+		byte[] result = new byte[2 * length];
+		position = copyInteger(der, position, result, 0, length);
+		copyInteger(der, position, result, length, length);
+		return result;
+	}
+
+	/**
+	 * @param jose a signature in JWT encoding
+	 * @return the DER encoding of the signature
+	 */
+	static byte[] toDer(byte[] jose) {
+		int length = jose.length / 2;
+		byte[] r = encodeInteger(jose, 0, length);
+		byte[] s = encodeInteger(jose, length, length);
+		int contentLength = r.length + s.length;
+		int headerLength = contentLength > 0x7f ? 3 : 2;
+		byte[] result = new byte[headerLength + contentLength];
+		result[0] = 0x30;
+		if (headerLength == 3) {
+			result[1] = (byte) 0x81;
+		}
+		result[headerLength - 1] = (byte) contentLength;
+		System.arraycopy(r, 0, result, headerLength, r.length);
+		System.arraycopy(s, 0, result, headerLength + r.length, s.length);
+		return result;
+	}
+
+	/**
+	 * Copy the DER integer at the position in the source to a fixed length, right aligned slot in the target.
+	 *
+	 * @return the position after the integer
+	 */
+	private static int copyInteger(byte[] der, int position, byte[] target, int offset, int length) {
+		if (position + 2 > der.length || der[position] != 0x02) {
+			throw new IllegalArgumentException("Invalid ECDSA signature");
+		}
+		int integerLength = der[position + 1] & 0xff;
+		int start = position + 2;
+		int end = start + integerLength;
+		if (end > der.length) {
+			throw new IllegalArgumentException("Invalid ECDSA signature");
+		}
+		while (start < end && der[start] == 0) {
+			start++;
+		}
+		if (end - start > length) {
+			throw new IllegalArgumentException("Invalid ECDSA signature");
+		}
+		System.arraycopy(der, start, target, offset + length - (end - start), end - start);
+		return end;
+	}
+
+	private static byte[] encodeInteger(byte[] bytes, int offset, int length) {
+		int start = offset;
+		int end = offset + length;
+		while (start < end - 1 && bytes[start] == 0) {
+			start++;
+		}
+		// A leading zero keeps the (unsigned) value positive
+		int pad = (bytes[start] & 0x80) != 0 ? 1 : 0;
+		byte[] result = new byte[2 + pad + end - start];
+		result[0] = 0x02;
+		result[1] = (byte) (pad + end - start);
+		System.arraycopy(bytes, start, result, 2 + pad, end - start);
+		return result;
+	}
+
+}
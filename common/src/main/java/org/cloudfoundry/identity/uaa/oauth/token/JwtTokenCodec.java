@@ -0,0 +1,428 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+import org.springframework.security.jwt.crypto.sign.Signer;
+
+/**
+ * Encodes and decodes UAA tokens. Produces the same format as {@link JwtHelper}, but writes the id of the signing key
+ * into the token header as <code>kid</code>, and uses it to look up the verification key when the token is decoded.
+ *
+ * Encoding streams the claims with a {@link JsonGenerator} into a buffer that is reused by each thread, base64url
+ * encodes them in place and appends the signature, instead of building a Map and copying it through several
+ * intermediate Strings and arrays. Decoding works the other way round, straight from the characters of the token into
+ * the same buffer.
+ */
+public class JwtTokenCodec {
+
+	/**
+	 * Callback that writes the claims of a token as fields of the JSON object that makes up the token body.
+	 */
+	public interface ClaimsWriter {
+
+		void writeClaims(JsonGenerator generator) throws IOException;
+
+	}
+
+	/**
+	 * Source of the keys used to verify tokens when they are decoded.
+	 */
+	public interface VerifierSource {
+
+		/**
+		 * @param keyId the value of the <code>kid</code> header of a token, or null if it has none
+		 * @return a verifier for the key, or null if the key is not known
+		 */
+		SignatureVerifier getVerifier(String keyId);
+
+	}
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private static final byte PERIOD = '.';
+
+	private static final byte[] BASE64URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+			.getBytes(ASCII);
+
+	private static final int[] BASE64URL_VALUES = new int[128];
+
+	private static final Map<String, String> ALGORITHMS = new HashMap<String, String>();
+
+	/**
+	 * Buffers that have grown beyond this size (e.g. for a token with a very large number of scopes) are not kept.
+	 */
+	private static final int MAX_BUFFER_SIZE = 16 * 1024;
+
+	static {
+		Arrays.fill(BASE64URL_VALUES, -1);
+		for (int i = 0; i < BASE64URL.length; i++) {
+			BASE64URL_VALUES[BASE64URL[i]] = i;
+		}
+		ALGORITHMS.put("HMACSHA256", "HS256");
+		ALGORITHMS.put("HMACSHA384", "HS384");
+		ALGORITHMS.put("HMACSHA512", "HS512");
+		ALGORITHMS.put("SHA256withRSA", "RS256");
+		ALGORITHMS.put("SHA384withRSA", "RS384");
+		ALGORITHMS.put("SHA512withRSA", "RS512");
+		ALGORITHMS.put("SHA256withECDSA", "ES256");
+	}
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private static final JsonFactory jsonFactory = mapper.getJsonFactory();
+
+	private static final TypeReference<Map<String, Object>> CLAIMS_TYPE = new TypeReference<Map<String, Object>>() {
+	};
+
+	private static final ConcurrentMap<String, byte[]> headers = new ConcurrentHashMap<String, byte[]>();
+
+	private static final ThreadLocal<TokenBuffer> buffers = new ThreadLocal<TokenBuffer>();
+
+	/**
+	 * Encode and sign a JWT.
+	 *
+	 * @param claims a callback that writes the claims
+	 * @param signer the signer to use
+	 * @param keyId the id of the signing key (may be null)
+	 * @return an encoded JWT
+	 * @throws IOException if the claims cannot be written
+	 */
+	public static String encode(ClaimsWriter claims, Signer signer, String keyId) throws IOException {
+		TokenBuffer buffer = getBuffer();
+		buffer.write(getEncodedHeader(signer.algorithm(), keyId));
+		buffer.write(PERIOD);
+
+		int start = buffer.size();
+		JsonGenerator generator = jsonFactory.createJsonGenerator(buffer, JsonEncoding.UTF8);
+		generator.writeStartObject();
+		claims.writeClaims(generator);
+		generator.writeEndObject();
+		generator.close();
+		buffer.encodeBase64Url(start);
+
+		byte[] crypto;
+		if (signer instanceof BufferSigner) {
+			crypto = ((BufferSigner) signer).sign(buffer.bytes(), 0, buffer.size());
+		}
+		else {
+			crypto = signer.sign(Arrays.copyOf(buffer.bytes(), buffer.size()));
+		}
+		buffer.write(PERIOD);
+		buffer.writeBase64Url(crypto);
+
+		return buffer.toAsciiString();
+	}
+
+	/**
+	 * Decode a token, verify its signature with the key named in its header (or the current key if there is none)
+	 * and read its claims.
+	 *
+	 * @param token an encoded JWT
+	 * @param verifiers the source of verification keys
+	 * @return the claims of the token
+	 * @throws InvalidSignatureException if the key is not known or the signature does not match
+	 * @throws IllegalArgumentException if the token is not a well formed JWT
+	 * @throws IOException if the claims cannot be read
+	 */
+	public static Map<String, Object> decodeAndVerify(String token, VerifierSource verifiers) throws IOException {
+		TokenBuffer buffer = verify(token, verifiers);
+		return mapper.readValue(buffer.bytes(), 0, buffer.size(), CLAIMS_TYPE);
+	}
+
+	/**
+	 * Decode a token and verify its signature like {@link #decodeAndVerify(String, VerifierSource)}, but leave the
+	 * claims to be parsed on demand.
+	 *
+	 * @param token an encoded JWT
+	 * @param verifiers the source of verification keys
+	 * @return a view of the claims of the token
+	 * @throws InvalidSignatureException if the key is not known or the signature does not match
+	 * @throws IllegalArgumentException if the token is not a well formed JWT
+	 */
+	public static TokenClaims decodeClaims(String token, VerifierSource verifiers) {
+		TokenBuffer buffer = verify(token, verifiers);
+		return new TokenClaims(Arrays.copyOf(buffer.bytes(), buffer.size()));
+	}
+
+	/**
+	 * Verify the signature of a token, leaving its decoded claims in the buffer for the current thread.
+	 */
+	private static TokenBuffer verify(String token, VerifierSource verifiers) {
+		int firstPeriod = token.indexOf('.');
+		int lastPeriod = token.indexOf('.', firstPeriod + 1);
+		if (firstPeriod < 0 || lastPeriod < 0 || token.indexOf('.', lastPeriod + 1) >= 0) {
+			throw new IllegalArgumentException("JWT must have 3 tokens");
+		}
+		TokenBuffer buffer = getBuffer();
+
+		buffer.writeBase64UrlDecoded(token, 0, firstPeriod);
+		SignatureVerifier verifier = verifiers.getVerifier(readKeyId(buffer));
+		if (verifier == null) {
+			throw new InvalidSignatureException("No verification key found for token");
+		}
+
+		buffer.reset();
+		buffer.writeBase64UrlDecoded(token, lastPeriod + 1, token.length());
+		byte[] crypto = Arrays.copyOf(buffer.bytes(), buffer.size());
+
+		buffer.reset();
+		buffer.writeAscii(token, 0, lastPeriod);
+		if (verifier instanceof BufferVerifier) {
+			((BufferVerifier) verifier).verify(buffer.bytes(), 0, buffer.size(), crypto);
+		}
+		else {
+			verifier.verify(Arrays.copyOf(buffer.bytes(), buffer.size()), crypto);
+		}
+
+		buffer.reset();
+		buffer.writeBase64UrlDecoded(token, firstPeriod + 1, lastPeriod);
+		return buffer;
+	}
+
+	/**
+	 * @param token an encoded JWT
+	 * @return the value of the <code>kid</code> header, or null if there is none
+	 */
+	public static String getKeyId(String token) {
+		int index = token.indexOf('.');
+		if (index < 0) {
+			throw new IllegalArgumentException("JWT must have 3 tokens");
+		}
+		TokenBuffer buffer = getBuffer();
+		buffer.writeBase64UrlDecoded(token, 0, index);
+		return readKeyId(buffer);
+	}
+
+	private static String readKeyId(TokenBuffer buffer) {
+		try {
+			JsonParser parser = jsonFactory.createJsonParser(buffer.bytes(), 0, buffer.size());
+			try {
+				if (parser.nextToken() != JsonToken.START_OBJECT) {
+					throw new IllegalArgumentException("Token header is not a JSON object");
+				}
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String name = parser.getCurrentName();
+					parser.nextToken();
+					if ("kid".equals(name)) {
+						return parser.getText();
+					}
+					parser.skipChildren();
+				}
+				return null;
+			}
+			finally {
+				parser.close();
+			}
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Cannot read token header", e);
+		}
+	}
+
+	private static byte[] getEncodedHeader(String algorithm, String keyId) {
+		String cacheKey = keyId == null ? algorithm : algorithm + "|" + keyId;
+		byte[] header = headers.get(cacheKey);
+		if (header == null) {
+			Map<String, String> map = new LinkedHashMap<String, String>();
+			map.put("alg", getJwtAlgorithm(algorithm));
+			if (keyId != null) {
+				map.put("kid", keyId);
+			}
+			map.put("typ", "JWT");
+			TokenBuffer buffer = new TokenBuffer();
+			try {
+				mapper.writeValue(buffer, map);
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Cannot convert token header to JSON", e);
+			}
+			buffer.encodeBase64Url(0);
+			header = Arrays.copyOf(buffer.bytes(), buffer.size());
+			headers.putIfAbsent(cacheKey, header);
+		}
+		return header;
+	}
+
+	private static String getJwtAlgorithm(String javaName) {
+		String alg = ALGORITHMS.get(javaName);
+		if (alg == null) {
+			throw new IllegalArgumentException("Invalid or unsupported signature algorithm: " + javaName);
+		}
+		return alg;
+	}
+
+	private static TokenBuffer getBuffer() {
+		TokenBuffer buffer = buffers.get();
+		if (buffer == null || buffer.capacity() > MAX_BUFFER_SIZE) {
+			buffer = new TokenBuffer();
+			buffers.set(buffer);
+		}
+		buffer.reset();
+		return buffer;
+	}
+
+	/**
+	 * A growable byte buffer with base64url encoding and decoding, not thread safe.
+	 */
+	private static class TokenBuffer extends OutputStream {
+
+		private byte[] bytes = new byte[1024];
+
+		private int count = 0;
+
+		public byte[] bytes() {
+			return bytes;
+		}
+
+		public int size() {
+			return count;
+		}
+
+		public int capacity() {
+			return bytes.length;
+		}
+
+		public void reset() {
+			count = 0;
+		}
+
+		@Override
+		public void write(int b) {
+			ensureCapacity(count + 1);
+			bytes[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int offset, int length) {
+			ensureCapacity(count + length);
+			System.arraycopy(b, offset, bytes, count, length);
+			count += length;
+		}
+
+		public void writeAscii(String value, int from, int to) {
+			ensureCapacity(count + to - from);
+			for (int i = from; i < to; i++) {
+				bytes[count++] = (byte) value.charAt(i);
+			}
+		}
+
+		public void writeBase64Url(byte[] b) {
+			int start = count;
+			write(b, 0, b.length);
+			encodeBase64Url(start);
+		}
+
+		/**
+		 * Replace the contents of the buffer from the start position onwards with their base64url encoding (without
+		 * padding). Works from the end backwards, so each group of input bytes has been read before its position is
+		 * overwritten by output.
+		 */
+		public void encodeBase64Url(int start) {
+			int length = count - start;
+			int groups = length / 3;
+			int remainder = length % 3;
+			int encodedLength = groups * 4 + (remainder == 0 ? 0 : remainder + 1);
+			ensureCapacity(start + encodedLength);
+
+			int in = start + groups * 3;
+			int out = start + groups * 4;
+			if (remainder == 1) {
+				int b0 = bytes[in] & 0xff;
+				bytes[out] = BASE64URL[b0 >> 2];
+				bytes[out + 1] = BASE64URL[(b0 & 0x03) << 4];
+			}
+			else if (remainder == 2) {
+				int b0 = bytes[in] & 0xff;
+				int b1 = bytes[in + 1] & 0xff;
+				bytes[out] = BASE64URL[b0 >> 2];
+				bytes[out + 1] = BASE64URL[((b0 & 0x03) << 4) | (b1 >> 4)];
+				bytes[out + 2] = BASE64URL[(b1 & 0x0f) << 2];
+			}
+			for (int group = groups - 1; group >= 0; group--) {
+				in = start + group * 3;
+				out = start + group * 4;
+				int b0 = bytes[in] & 0xff;
+				int b1 = bytes[in + 1] & 0xff;
+				int b2 = bytes[in + 2] & 0xff;
+				bytes[out] = BASE64URL[b0 >> 2];
+				bytes[out + 1] = BASE64URL[((b0 & 0x03) << 4) | (b1 >> 4)];
+				bytes[out + 2] = BASE64URL[((b1 & 0x0f) << 2) | (b2 >> 6)];
+				bytes[out + 3] = BASE64URL[b2 & 0x3f];
+			}
+			count = start + encodedLength;
+		}
+
+		/**
+		 * Append the bytes decoded from the base64url characters of the value between the two indexes. Padding is
+		 * optional.
+		 */
+		public void writeBase64UrlDecoded(String value, int from, int to) {
+			while (to > from && value.charAt(to - 1) == '=') {
+				to--;
+			}
+			int length = to - from;
+			if (length % 4 == 1) {
+				throw new IllegalArgumentException("Invalid base64url data");
+			}
+			ensureCapacity(count + length * 3 / 4);
+			int bits = 0;
+			int accumulator = 0;
+			for (int i = from; i < to; i++) {
+				char c = value.charAt(i);
+				int digit = c < 128 ? BASE64URL_VALUES[c] : -1;
+				if (digit < 0) {
+					throw new IllegalArgumentException("Invalid base64url character: " + c);
+				}
+				accumulator = (accumulator << 6) | digit;
+				bits += 6;
+				if (bits >= 8) {
+					bits -= 8;
+					bytes[count++] = (byte) (accumulator >> bits);
+					accumulator &= (1 << bits) - 1;
+				}
+			}
+		}
+
+		public String toAsciiString() {
+			return new String(bytes, 0, count, ASCII);
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, capacity));
+			}
+		}
+
+	}
+
+}
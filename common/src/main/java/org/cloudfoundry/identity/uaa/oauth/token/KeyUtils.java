@@ -0,0 +1,293 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.KeySpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.security.crypto.codec.Base64;
+
+/**
+ * Parses the text representations of signing and verification keys accepted by the {@link SignerProvider}: PEM
+ * encoded RSA keys (PKCS#1 or PKCS#8 private keys, PKCS#1 or X.509 public keys), PEM encoded EC keys (SEC1 or PKCS#8
+ * private keys, X.509 public keys) and OpenSSH RSA public keys.
+ */
+public class KeyUtils {
+
+	private static final Pattern PEM_DATA = Pattern.compile("-----BEGIN (.*)-----(.*)-----END (.*)-----",
+			Pattern.DOTALL);
+
+	private static final Pattern SSH_PUB_KEY = Pattern.compile("ssh-(rsa|dsa) ([A-Za-z0-9/+]+=*)( .*)?");
+
+	/**
+	 * The object identifier of an EC public key (1.2.840.10045.2.1) in PKCS#8 and X.509 key structures.
+	 */
+	private static final byte[] EC_PUBLIC_KEY_OID = { 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x02, 0x01 };
+
+	/**
+	 * @param key a PEM encoded private key
+	 * @return the private key
+	 */
+	public static PrivateKey parsePrivateKey(String key) {
+		Matcher m = PEM_DATA.matcher(key.trim());
+		if (!m.matches()) {
+			throw new IllegalArgumentException("String is not PEM encoded data");
+		}
+		String type = m.group(1);
+		byte[] content = decodeBase64(m.group(2));
+		KeySpec spec;
+		String algorithm = "RSA";
+		if (type.equals("RSA PRIVATE KEY")) {
+			DerReader sequence = new DerReader(content).readSequence();
+			sequence.readInteger(); // version
+			BigInteger modulus = sequence.readInteger();
+			BigInteger publicExponent = sequence.readInteger();
+			BigInteger privateExponent = sequence.readInteger();
+			BigInteger prime1 = sequence.readInteger();
+			BigInteger prime2 = sequence.readInteger();
+			BigInteger exponent1 = sequence.readInteger();
+			BigInteger exponent2 = sequence.readInteger();
+			BigInteger coefficient = sequence.readInteger();
+			spec = new RSAPrivateCrtKeySpec(modulus, publicExponent, privateExponent, prime1, prime2, exponent1,
+					exponent2, coefficient);
+		}
+		else if (type.equals("EC PRIVATE KEY")) {
+			spec = new PKCS8EncodedKeySpec(ecPrivateKeyToPkcs8(content));
+			algorithm = "EC";
+		}
+		else if (type.equals("PRIVATE KEY")) {
+			spec = new PKCS8EncodedKeySpec(content);
+			algorithm = getKeyAlgorithm(content, true);
+		}
+		else {
+			throw new IllegalArgumentException(type + " is not a supported format for a private key");
+		}
+		try {
+			return KeyFactory.getInstance(algorithm).generatePrivate(spec);
+		}
+		catch (Exception e) {
+			throw new IllegalArgumentException("Cannot create private key", e);
+		}
+	}
+
+	/**
+	 * @param key a PEM encoded or OpenSSH public key
+	 * @return the public key
+	 */
+	public static PublicKey parsePublicKey(String key) {
+		key = key.trim();
+		KeySpec spec;
+		String algorithm = "RSA";
+		Matcher m = SSH_PUB_KEY.matcher(key);
+		if (m.matches()) {
+			if (!"rsa".equals(m.group(1))) {
+				throw new IllegalArgumentException("Only RSA is currently supported, but algorithm was " + m.group(1));
+			}
+			spec = parseSshPublicKey(decodeBase64(m.group(2)));
+		}
+		else {
+			m = PEM_DATA.matcher(key);
+			if (!m.matches()) {
+				throw new IllegalArgumentException("String is not PEM encoded data, nor a public key encoded for ssh");
+			}
+			String type = m.group(1);
+			byte[] content = decodeBase64(m.group(2));
+			if (type.equals("RSA PUBLIC KEY")) {
+				DerReader sequence = new DerReader(content).readSequence();
+				BigInteger modulus = sequence.readInteger();
+				BigInteger publicExponent = sequence.readInteger();
+				spec = new RSAPublicKeySpec(modulus, publicExponent);
+			}
+			else if (type.equals("PUBLIC KEY")) {
+				spec = new X509EncodedKeySpec(content);
+				algorithm = getKeyAlgorithm(content, false);
+			}
+			else {
+				throw new IllegalArgumentException(type + " is not a supported format for a public key");
+			}
+		}
+		try {
+			return KeyFactory.getInstance(algorithm).generatePublic(spec);
+		}
+		catch (Exception e) {
+			throw new IllegalArgumentException("Cannot create public key", e);
+		}
+	}
+
+	/**
+	 * Read the algorithm from a PKCS#8 private key or an X.509 public key.
+	 */
+	private static String getKeyAlgorithm(byte[] content, boolean privateKey) {
+		DerReader sequence = new DerReader(content).readSequence();
+		if (privateKey) {
+			sequence.readInteger(); // version
+		}
+		byte[] oid = sequence.readSequence().readObjectIdentifier();
+		return Arrays.equals(oid, EC_PUBLIC_KEY_OID) ? "EC" : "RSA";
+	}
+
+	/**
+	 * Wrap a SEC1 EC private key (as produced by <tt>openssl ecparam -genkey</tt>) in a PKCS#8 structure, which is
+	 * what the JCA key factory understands.
+	 */
+	private static byte[] ecPrivateKeyToPkcs8(byte[] content) {
+		DerReader sequence = new DerReader(content).readSequence();
+		sequence.readInteger(); // version
+		sequence.readOctetString(); // private key
+		if (!sequence.hasMore()) {
+			throw new IllegalArgumentException("EC private key does not name its curve");
+		}
+		byte[] curve = sequence.readExplicit(0).readObjectIdentifier();
+		byte[] algorithm = DerReader.encode(0x30, DerReader.encode(0x06, EC_PUBLIC_KEY_OID),
+				DerReader.encode(0x06, curve));
+		return DerReader.encode(0x30, DerReader.encode(0x02, new byte[] { 0 }), algorithm,
+				DerReader.encode(0x04, content));
+	}
+
+	private static KeySpec parseSshPublicKey(byte[] bytes) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		try {
+			String type = new String(readSshBytes(in), "UTF-8");
+			if (!"ssh-rsa".equals(type)) {
+				throw new IllegalArgumentException("Cannot decode public key of type " + type);
+			}
+			BigInteger publicExponent = new BigInteger(readSshBytes(in));
+			BigInteger modulus = new BigInteger(readSshBytes(in));
+			return new RSAPublicKeySpec(modulus, publicExponent);
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Cannot decode public key", e);
+		}
+	}
+
+	private static byte[] readSshBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static byte[] decodeBase64(String value) {
+		try {
+			return Base64.decode(value.replaceAll("\\s", "").getBytes("UTF-8"));
+		}
+		catch (Exception e) {
+			throw new IllegalArgumentException("Cannot decode key data", e);
+		}
+	}
+
+	/**
+	 * Just enough of a DER decoder to read the sequences of integers that make up PKCS#1 keys, and the algorithm and
+	 * curve identifiers of EC keys.
+	 */
+	private static class DerReader {
+
+		private final byte[] bytes;
+
+		private int position = 0;
+
+		public DerReader(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		public DerReader readSequence() {
+			return new DerReader(readContent(0x30));
+		}
+
+		public BigInteger readInteger() {
+			return new BigInteger(readContent(0x02));
+		}
+
+		public byte[] readOctetString() {
+			return readContent(0x04);
+		}
+
+		public byte[] readObjectIdentifier() {
+			return readContent(0x06);
+		}
+
+		/**
+		 * @param number the number of a context specific, explicitly tagged value
+		 */
+		public DerReader readExplicit(int number) {
+			return new DerReader(readContent(0xa0 | number));
+		}
+
+		public boolean hasMore() {
+			return position < bytes.length;
+		}
+
+		public static byte[] encode(int tag, byte[]... values) {
+			int length = 0;
+			for (byte[] value : values) {
+				length += value.length;
+			}
+			int lengthBytes = length < 0x80 ? 0 : length < 0x100 ? 1 : 2;
+			byte[] result = new byte[2 + lengthBytes + length];
+			result[0] = (byte) tag;
+			if (lengthBytes == 0) {
+				result[1] = (byte) length;
+			}
+			else {
+				result[1] = (byte) (0x80 | lengthBytes);
+				for (int i = 0; i < lengthBytes; i++) {
+					result[1 + lengthBytes - i] = (byte) (length >> (8 * i));
+				}
+			}
+			int position = 2 + lengthBytes;
+			for (byte[] value : values) {
+				System.arraycopy(value, 0, result, position, value.length);
+				position += value.length;
+			}
+			return result;
+		}
+
+		private byte[] readContent(int expectedTag) {
+			if (position >= bytes.length) {
+				throw new IllegalArgumentException("Unexpected end of key data");
+			}
+			int tag = bytes[position++] & 0xff;
+			if (tag != expectedTag) {
+				throw new IllegalArgumentException("Unexpected tag in key data: " + tag);
+			}
+			int length = bytes[position++] & 0xff;
+			if (length >= 0x80) {
+				int count = length & 0x7f;
+				length = 0;
+				for (int i = 0; i < count; i++) {
+					length = (length << 8) | (bytes[position++] & 0xff);
+				}
+			}
+			if (length < 0 || position + length > bytes.length) {
+				throw new IllegalArgumentException("Invalid length in key data");
+			}
+			byte[] content = Arrays.copyOfRange(bytes, position, position + length);
+			position += length;
+			return content;
+		}
+
+	}
+
+}
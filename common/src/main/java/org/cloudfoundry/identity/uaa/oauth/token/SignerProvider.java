@@ -12,50 +12,65 @@
  */
 package org.cloudfoundry.identity.uaa.oauth.token;
 
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
-import org.springframework.security.jwt.crypto.sign.MacSigner;
-import org.springframework.security.jwt.crypto.sign.RsaSigner;
-import org.springframework.security.jwt.crypto.sign.RsaVerifier;
 import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
 import org.springframework.security.jwt.crypto.sign.Signer;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
 
 /**
- * A class that knows how to provide the signing and verification keys
+ * A class that knows how to provide the signing and verification keys. Verifiers are created once per key and cached,
+ * and additional verification keys can be registered by key id so that tokens signed with a previous key remain valid
+ * after a key rotation. Signers and verifiers keep their JCA primitives initialised per thread, so that there is no
+ * provider lookup or key initialisation when a token is signed or verified.
  *
  * @author Joel D'sa
  * @author Luke Taylor
  *
  */
-public class SignerProvider implements InitializingBean {
+public class SignerProvider implements InitializingBean, JwtTokenCodec.VerifierSource {
+
+	private static final String RSA_ALGORITHM = "SHA256withRSA";
+
+	private static final String EC_ALGORITHM = "SHA256withECDSA";
 
 	private final Log logger = LogFactory.getLog(getClass());
 	private String verifierKey = new RandomValueStringGenerator().generate();
 	private String signingKey = verifierKey;
-	private Signer signer = new MacSigner(verifierKey);
+	private Signer signer = new ThreadLocalMacSigner(verifierKey);
+	private String keyId = null;
+	private volatile SignatureVerifier verifier = null;
+	private Map<String, SignatureVerifier> verifiers = Collections.emptyMap();
 
 	@Override
 	public void afterPropertiesSet() throws Exception {
-		if (signer instanceof RsaSigner) {
-			RsaVerifier verifier;
+		if (isAssymetricKey(signingKey)) {
+			SignatureVerifier verifier;
 			try {
-				verifier = new RsaVerifier(verifierKey);
+				verifier = getVerifier();
 			}
 			catch (Exception e) {
-				throw new RuntimeException("Unable to create an RSA verifier from verifierKey", e);
+				throw new RuntimeException("Unable to create a verifier from verifierKey", e);
 			}
 
 			byte[] test = "test".getBytes();
 			try {
 				verifier.verify(test, signer.sign(test));
-				logger.info("Signing and verification RSA keys match");
+				logger.info("Signing and verification keys match");
 			}
 			catch (InvalidSignatureException e) {
-				throw new RuntimeException("Signing and verification RSA keys do not match", e);
+				throw new RuntimeException("Signing and verification keys do not match", e);
 			}
 		}
 		else {
@@ -82,18 +97,43 @@ public class SignerProvider implements InitializingBean {
 		return verifierKey.startsWith("-----BEGIN");
 	}
 
+	/**
+	 * @return the id of the current signing key (may be null)
+	 */
+	public String getKeyId() {
+		return keyId;
+	}
+
+	/**
+	 * @return a verifier for the current key, created once and cached
+	 */
 	public SignatureVerifier getVerifier() {
-		if (isAssymetricKey(signingKey)) {
-			return new RsaVerifier(verifierKey);
+		SignatureVerifier result = verifier;
+		if (result == null) {
+			result = createVerifier(isAssymetricKey(signingKey), verifierKey);
+			verifier = result;
 		}
-		else {
-			return new MacSigner(verifierKey);
+		return result;
+	}
+
+	/**
+	 * Select a verifier by key id, as found in the <code>kid</code> header of a token.
+	 *
+	 * @param keyId the key id (may be null if the token did not specify one)
+	 * @return a verifier for the key, or null if the key id is not known
+	 */
+	@Override
+	public SignatureVerifier getVerifier(String keyId) {
+		if (keyId == null || keyId.equals(this.keyId)) {
+			return getVerifier();
 		}
+		return verifiers.get(keyId);
 	}
 
 	/**
-	 * Sets the JWT signing key. It can be either a simple MAC key or an RSA key. RSA keys should be in OpenSSH format,
-	 * as produced by <tt>ssh-keygen</tt>.
+	 * Sets the JWT signing key. It can be either a simple MAC key, an RSA key or an EC key on the P-256 curve (for
+	 * ES256 signatures, which are much cheaper to compute than RSA signatures and shorter). RSA and EC keys should be
+	 * PEM encoded, as produced by <tt>ssh-keygen</tt> or <tt>openssl</tt>.
 	 *
 	 * @param key the key to be used for signing JWTs.
 	 */
@@ -102,18 +142,36 @@ public class SignerProvider implements InitializingBean {
 		key = key.trim();
 
 		this.signingKey = key;
+		this.verifier = null;
 
 		if (isAssymetricKey(key)) {
-			signer = new RsaSigner(key);
-			logger.info("Configured with RSA signing key");
+			PrivateKey privateKey = KeyUtils.parsePrivateKey(key);
+			signer = new ThreadLocalSignatureSigner(getAlgorithm(privateKey), privateKey);
+			logger.info("Configured with " + privateKey.getAlgorithm() + " signing key");
 		}
 		else {
 			// Assume it's an HMAC key
 			this.verifierKey = key;
-			signer = new MacSigner(key);
+			signer = new ThreadLocalMacSigner(key);
 		}
 	}
 
+	private SignatureVerifier createVerifier(boolean assymetric, String key) {
+		if (assymetric) {
+			PublicKey publicKey = KeyUtils.parsePublicKey(key);
+			return new ThreadLocalSignatureVerifier(getAlgorithm(publicKey), publicKey);
+		}
+		return new ThreadLocalMacSigner(key);
+	}
+
+	private static String getAlgorithm(Key key) {
+		if ("EC".equals(key.getAlgorithm())) {
+			Assert.isTrue(EcdsaSignatures.getLength(key) == 32, "Only EC keys on the P-256 curve are supported");
+			return EC_ALGORITHM;
+		}
+		return RSA_ALGORITHM;
+	}
+
 	/**
 	 * @return true if the key has a public verifier
 	 */
@@ -125,15 +183,16 @@ public class SignerProvider implements InitializingBean {
 	 * The key used for verifying signatures produced by this class. This is not used but is returned from the endpoint
 	 * to allow resource servers to obtain the key.
 	 *
-	 * For an HMAC key it will be the same value as the signing key and does not need to be set. For and RSA key, it
-	 * should be set to the String representation of the public key, in a standard format (e.g. OpenSSH keys)
+	 * For an HMAC key it will be the same value as the signing key and does not need to be set. For an RSA or EC key,
+	 * it should be set to the String representation of the public key, in a standard format (e.g. OpenSSH or PEM
+	 * encoded X.509 keys)
 	 *
-	 * @param verifierKey the signature verification key (typically an RSA public key)
+	 * @param verifierKey the signature verification key (typically an RSA or EC public key)
 	 */
 	public void setVerifierKey(String verifierKey) {
 		boolean valid = false;
 		try {
-			new RsaSigner(verifierKey);
+			KeyUtils.parsePrivateKey(verifierKey);
 		}
 		catch (Exception expected) {
 			// Expected
@@ -143,6 +202,33 @@ public class SignerProvider implements InitializingBean {
 			throw new IllegalArgumentException("Private key cannot be set as verifierKey property");
 		}
 		this.verifierKey = verifierKey;
+		this.verifier = null;
+	}
+
+	/**
+	 * An identifier for the current signing key. If set it is added to the header of every token as <code>kid</code>
+	 * so that the token can be verified with the right key after the signing key has been rotated.
+	 *
+	 * @param keyId the key id to set
+	 */
+	public void setKeyId(String keyId) {
+		this.keyId = StringUtils.hasText(keyId) ? keyId : null;
+	}
+
+	/**
+	 * Additional keys that are accepted when verifying tokens, indexed by key id. Typically these are the keys that
+	 * were used for signing before the last rotation. Each value can be a MAC key or an RSA or EC public key, and it is
+	 * parsed once here rather than every time a token is verified.
+	 *
+	 * @param verificationKeys the verification keys to set
+	 */
+	public void setVerificationKeys(Map<String, String> verificationKeys) {
+		Map<String, SignatureVerifier> verifiers = new LinkedHashMap<String, SignatureVerifier>();
+		for (Map.Entry<String, String> entry : verificationKeys.entrySet()) {
+			String key = entry.getValue().trim();
+			verifiers.put(entry.getKey(), createVerifier(isAssymetricKey(key), key));
+		}
+		this.verifiers = verifiers;
 	}
 
 }
@@ -0,0 +1,97 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
+
+/**
+ * A MAC signer and verifier that keeps an initialised {@link Mac} for each thread instead of looking up the algorithm
+ * and initialising it with the key on every call, which is what {@link MacSigner} does. Produces the same signatures
+ * as a {@link MacSigner} with the same key.
+ */
+public class ThreadLocalMacSigner implements BufferSigner, BufferVerifier {
+
+	private static final String DEFAULT_ALGORITHM = "HMACSHA256";
+
+	private final String algorithm;
+
+	private final SecretKey key;
+
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				Mac mac = Mac.getInstance(algorithm);
+				mac.init(key);
+				return mac;
+			}
+			catch (Exception e) {
+				throw new IllegalStateException("Cannot create MAC for algorithm " + algorithm, e);
+			}
+		}
+	};
+
+	public ThreadLocalMacSigner(String key) {
+		this(new SecretKeySpec(key.getBytes(), DEFAULT_ALGORITHM));
+	}
+
+	public ThreadLocalMacSigner(SecretKey key) {
+		this(DEFAULT_ALGORITHM, key);
+	}
+
+	public ThreadLocalMacSigner(String algorithm, SecretKey key) {
+		this.algorithm = algorithm;
+		this.key = key;
+		// Fail fast if the algorithm or key are not usable
+		macs.get();
+	}
+
+	@Override
+	public String algorithm() {
+		return algorithm;
+	}
+
+	@Override
+	public byte[] sign(byte[] bytes) {
+		return sign(bytes, 0, bytes.length);
+	}
+
+	@Override
+	public byte[] sign(byte[] bytes, int offset, int length) {
+		Mac mac = macs.get();
+		mac.update(bytes, offset, length);
+		// doFinal() leaves the Mac reset and ready for the next call
+		return mac.doFinal();
+	}
+
+	@Override
+	public void verify(byte[] content, byte[] signature) {
+		verify(content, 0, content.length, signature);
+	}
+
+	@Override
+	public void verify(byte[] content, int offset, int length, byte[] signature) {
+		byte[] signed = sign(content, offset, length);
+		if (!MessageDigest.isEqual(signed, signature)) {
+			throw new InvalidSignatureException("Calculated signature did not match actual value");
+		}
+	}
+
+}
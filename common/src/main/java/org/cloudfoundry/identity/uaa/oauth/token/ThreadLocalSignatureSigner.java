@@ -0,0 +1,83 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.SignatureException;
+
+import org.springframework.security.jwt.crypto.sign.RsaSigner;
+
+/**
+ * A signer for a private key (e.g. RSA) that keeps a {@link Signature} for each thread, initialised once with the
+ * key. Unlike {@link RsaSigner} there is no provider lookup or key initialisation per signature: {@link Signature#sign()}
+ * resets the instance to the state it had after initialisation, so it can be reused straight away.
+ *
+ * ECDSA signatures are converted from DER to the fixed length encoding used in a JWT.
+ */
+public class ThreadLocalSignatureSigner implements BufferSigner {
+
+	private final String algorithm;
+
+	private final PrivateKey key;
+
+	private final int ecdsaLength;
+
+	private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>() {
+		@Override
+		protected Signature initialValue() {
+			try {
+				Signature signature = Signature.getInstance(algorithm);
+				signature.initSign(key);
+				return signature;
+			}
+			catch (Exception e) {
+				throw new IllegalStateException("Cannot create signature for algorithm " + algorithm, e);
+			}
+		}
+	};
+
+	public ThreadLocalSignatureSigner(String algorithm, PrivateKey key) {
+		this.algorithm = algorithm;
+		this.key = key;
+		this.ecdsaLength = EcdsaSignatures.getLength(key);
+		// Fail fast if the algorithm or key are not usable
+		signatures.get();
+	}
+
+	@Override
+	public String algorithm() {
+		return algorithm;
+	}
+
+	@Override
+	public byte[] sign(byte[] bytes) {
+		return sign(bytes, 0, bytes.length);
+	}
+
+	@Override
+	public byte[] sign(byte[] bytes, int offset, int length) {
+		Signature signature = signatures.get();
+		try {
+			signature.update(bytes, offset, length);
+			byte[] result = signature.sign();
+			return ecdsaLength > 0 ? EcdsaSignatures.toJose(result, ecdsaLength) : result;
+		}
+		catch (SignatureException e) {
+			// The state of the instance is unknown, so start again with a new one next time
+			signatures.remove();
+			throw new RuntimeException(e);
+		}
+	}
+
+}
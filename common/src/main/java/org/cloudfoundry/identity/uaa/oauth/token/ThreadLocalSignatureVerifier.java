@@ -0,0 +1,93 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.RsaVerifier;
+
+/**
+ * A verifier for a public key (e.g. RSA) that keeps a {@link Signature} for each thread, initialised once with the
+ * key. Unlike {@link RsaVerifier} there is no provider lookup or key initialisation per verification:
+ * {@link Signature#verify(byte[])} resets the instance to the state it had after initialisation.
+ *
+ * ECDSA signatures are expected in the fixed length encoding used in a JWT, and converted to DER for verification.
+ */
+public class ThreadLocalSignatureVerifier implements BufferVerifier {
+
+	private final String algorithm;
+
+	private final PublicKey key;
+
+	private final int ecdsaLength;
+
+	private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>() {
+		@Override
+		protected Signature initialValue() {
+			try {
+				Signature signature = Signature.getInstance(algorithm);
+				signature.initVerify(key);
+				return signature;
+			}
+			catch (Exception e) {
+				throw new IllegalStateException("Cannot create signature for algorithm " + algorithm, e);
+			}
+		}
+	};
+
+	public ThreadLocalSignatureVerifier(String algorithm, PublicKey key) {
+		this.algorithm = algorithm;
+		this.key = key;
+		this.ecdsaLength = EcdsaSignatures.getLength(key);
+		// Fail fast if the algorithm or key are not usable
+		signatures.get();
+	}
+
+	@Override
+	public String algorithm() {
+		return algorithm;
+	}
+
+	@Override
+	public void verify(byte[] content, byte[] sig) {
+		verify(content, 0, content.length, sig);
+	}
+
+	@Override
+	public void verify(byte[] content, int offset, int length, byte[] sig) {
+		if (ecdsaLength > 0) {
+			if (sig.length != 2 * ecdsaLength) {
+				throw new InvalidSignatureException("Signature has the wrong length for the key");
+			}
+			sig = EcdsaSignatures.toDer(sig);
+		}
+		Signature signature = signatures.get();
+		boolean verified;
+		try {
+			signature.update(content, offset, length);
+			verified = signature.verify(sig);
+		}
+		catch (SignatureException e) {
+			// Typically a malformed signature. The state of the instance is unknown, so start again next time.
+			signatures.remove();
+			throw new InvalidSignatureException("Signature could not be verified: " + e.getMessage());
+		}
+		if (!verified) {
+			throw new InvalidSignatureException("Signature did not match content");
+		}
+	}
+
+}
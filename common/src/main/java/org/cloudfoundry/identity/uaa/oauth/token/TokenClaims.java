@@ -0,0 +1,236 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import static org.cloudfoundry.identity.uaa.oauth.Claims.AUTHORITIES;
+import static org.cloudfoundry.identity.uaa.oauth.Claims.CID;
+import static org.cloudfoundry.identity.uaa.oauth.Claims.CLIENT_ID;
+import static org.cloudfoundry.identity.uaa.oauth.Claims.EMAIL;
+import static org.cloudfoundry.identity.uaa.oauth.Claims.EXP;
+import static org.cloudfoundry.identity.uaa.oauth.Claims.GRANT_TYPE;
+import static org.cloudfoundry.identity.uaa.oauth.Claims.IAT;
+import static org.cloudfoundry.identity.uaa.oauth.Claims.SCOPE;
+import static org.cloudfoundry.identity.uaa.oauth.Claims.SUB;
+import static org.cloudfoundry.identity.uaa.oauth.Claims.USER_ID;
+import static org.cloudfoundry.identity.uaa.oauth.Claims.USER_NAME;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+
+/**
+ * The claims of a verified token. Parsing is deferred until a claim is needed: the claims used for validation
+ * (expiry, issue time, client id, scope, authorities and user details) are read in a single pass over the JSON that skips everything else, and
+ * the full set of claims is only materialised as a Map if {@link #get(String)} or {@link #asMap()} is called.
+ *
+ * Instances are cached and shared between requests, so they are thread safe: each lazily parsed map is built
+ * completely before it is published, and {@link #asMap()} returns an unmodifiable view. The values in it (e.g. the
+ * scope list) are shared too and must not be modified.
+ */
+public class TokenClaims {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private static final TypeReference<Map<String, Object>> CLAIMS_TYPE = new TypeReference<Map<String, Object>>() {
+	};
+
+	private static final Set<String> INDEXED_CLAIMS = new HashSet<String>(Arrays.asList(EXP, IAT, CID, CLIENT_ID,
+			SCOPE, EMAIL, SUB, USER_ID, USER_NAME, GRANT_TYPE, AUTHORITIES));
+
+	private final byte[] json;
+
+	private volatile Map<String, Object> indexed;
+
+	private volatile Map<String, Object> claims;
+
+	/**
+	 * @param json the UTF-8 encoded JSON object from the body of a token
+	 */
+	public TokenClaims(byte[] json) {
+		this.json = json;
+	}
+
+	/**
+	 * @return the expiry time of the token (<code>exp</code>), or null if it has none
+	 */
+	public Date getExpiration() {
+		return getDate(EXP);
+	}
+
+	/**
+	 * @return the time the token was issued (<code>iat</code>), or null if it is not known
+	 */
+	public Date getIssuedAt() {
+		return getDate(IAT);
+	}
+
+	/**
+	 * @param now the current time
+	 * @return true if the token has an expiry time before now
+	 */
+	public boolean isExpired(Date now) {
+		Date expiration = getExpiration();
+		return expiration != null && expiration.before(now);
+	}
+
+	/**
+	 * @return the id of the client the token was issued to (<code>cid</code>, or <code>client_id</code> if that is
+	 * missing)
+	 */
+	public String getClientId() {
+		String clientId = getString(CID);
+		return clientId != null ? clientId : getString(CLIENT_ID);
+	}
+
+	/**
+	 * @return the scopes granted by the token, never null
+	 */
+	public List<String> getScope() {
+		@SuppressWarnings("unchecked")
+		List<String> scope = (List<String>) getIndexed(SCOPE);
+		if (scope == null) {
+			return Collections.emptyList();
+		}
+		return scope;
+	}
+
+	public String getSubject() {
+		return getString(SUB);
+	}
+
+	public String getEmail() {
+		return getString(EMAIL);
+	}
+
+	public String getUserId() {
+		return getString(USER_ID);
+	}
+
+	public String getUserName() {
+		return getString(USER_NAME);
+	}
+
+	public String getGrantType() {
+		return getString(GRANT_TYPE);
+	}
+
+	/**
+	 * @return true if the token was issued on behalf of a user (as opposed to a client acting on its own behalf)
+	 */
+	public boolean isUserToken() {
+		return getEmail() != null;
+	}
+
+	public boolean containsKey(String name) {
+		if (INDEXED_CLAIMS.contains(name)) {
+			return getIndexed(name) != null;
+		}
+		return asMap().containsKey(name);
+	}
+
+	/**
+	 * @param name the name of a claim
+	 * @return the value of the claim as Jackson would bind it (String, Integer, List, Map etc.)
+	 */
+	public Object get(String name) {
+		if (INDEXED_CLAIMS.contains(name)) {
+			return getIndexed(name);
+		}
+		return asMap().get(name);
+	}
+
+	/**
+	 * @return all the claims in the token (unmodifiable)
+	 */
+	public Map<String, Object> asMap() {
+		Map<String, Object> claims = this.claims;
+		if (claims == null) {
+			try {
+				Map<String, Object> values = mapper.readValue(json, 0, json.length, CLAIMS_TYPE);
+				claims = Collections.unmodifiableMap(values);
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Cannot read token claims", e);
+			}
+			this.claims = claims;
+		}
+		return claims;
+	}
+
+	private String getString(String name) {
+		Object value = getIndexed(name);
+		return value == null ? null : value.toString();
+	}
+
+	private Date getDate(String name) {
+		Object value = getIndexed(name);
+		if (value instanceof Number) {
+			return new Date(((Number) value).longValue() * 1000l);
+		}
+		return null;
+	}
+
+	private Object getIndexed(String name) {
+		Map<String, Object> claims = this.claims;
+		if (claims != null) {
+			return claims.get(name);
+		}
+		Map<String, Object> indexed = this.indexed;
+		if (indexed == null) {
+			try {
+				indexed = readIndexedClaims();
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Cannot read token claims", e);
+			}
+			this.indexed = indexed;
+		}
+		return indexed.get(name);
+	}
+
+	private Map<String, Object> readIndexedClaims() throws IOException {
+		Map<String, Object> values = new HashMap<String, Object>();
+		JsonParser parser = mapper.getJsonFactory().createJsonParser(json, 0, json.length);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Token claims are not a JSON object");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+				if (INDEXED_CLAIMS.contains(name)) {
+					values.put(name, parser.readValueAs(Object.class));
+				}
+				else {
+					parser.skipChildren();
+				}
+			}
+		}
+		finally {
+			parser.close();
+		}
+		return values;
+	}
+
+}
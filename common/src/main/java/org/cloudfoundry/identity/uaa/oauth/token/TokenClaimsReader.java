@@ -0,0 +1,43 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+
+/**
+ * Token services that can decode and check access tokens, and give back their claims directly.
+ */
+public interface TokenClaimsReader {
+
+	/**
+	 * Decode an access token and check that it is still valid for its user. Expiry is not checked, so that callers
+	 * can report it separately.
+	 *
+	 * @param accessToken an access token value
+	 * @return the claims of the token
+	 * @throws InvalidTokenException if the token cannot be decoded or is no longer valid
+	 */
+	TokenClaims readAccessTokenClaims(String accessToken) throws InvalidTokenException;
+
+	/**
+	 * Decode and check a batch of access tokens in the same way as {@link #readAccessTokenClaims(String)}.
+	 *
+	 * @param accessTokens some access token values
+	 * @return the result for each distinct token, in the order they were first presented
+	 */
+	Map<String, TokenValidation> readAccessTokenClaims(Collection<String> accessTokens);
+
+}
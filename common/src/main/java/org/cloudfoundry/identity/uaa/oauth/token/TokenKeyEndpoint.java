@@ -64,6 +64,9 @@ public class TokenKeyEndpoint implements InitializingBean {
 		Map<String, String> result = new LinkedHashMap<String, String>();
 		result.put("alg", signerProvider.getSigner().algorithm());
 		result.put("value", signerProvider.getVerifierKey());
+		if (signerProvider.getKeyId() != null) {
+			result.put("kid", signerProvider.getKeyId());
+		}
 		return result;
 	}
 
@@ -0,0 +1,51 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+
+/**
+ * The outcome of checking one token in a batch: either its claims or the reason it was rejected.
+ *
+ * @see TokenClaimsReader#readAccessTokenClaims(java.util.Collection)
+ */
+public class TokenValidation {
+
+	private final TokenClaims claims;
+
+	private final OAuth2Exception error;
+
+	public TokenValidation(TokenClaims claims, OAuth2Exception error) {
+		this.claims = claims;
+		this.error = error;
+	}
+
+	public boolean isValid() {
+		return error == null;
+	}
+
+	/**
+	 * @return the claims of the token, or null if it is not valid
+	 */
+	public TokenClaims getClaims() {
+		return claims;
+	}
+
+	/**
+	 * @return the reason the token is not valid, or null if it is
+	 */
+	public OAuth2Exception getError() {
+		return error;
+	}
+
+}
@@ -28,8 +28,9 @@ import static org.cloudfoundry.identity.uaa.oauth.Claims.SUB;
 import static org.cloudfoundry.identity.uaa.oauth.Claims.USER_ID;
 import static org.cloudfoundry.identity.uaa.oauth.Claims.USER_NAME;
 
+import java.io.IOException;
 import java.security.Principal;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
@@ -51,15 +52,13 @@ import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalStore;
 import org.cloudfoundry.identity.uaa.user.UaaAuthority;
 import org.cloudfoundry.identity.uaa.user.UaaUser;
 import org.cloudfoundry.identity.uaa.user.UaaUserDatabase;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.type.TypeReference;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.AuthorityUtils;
-import org.springframework.security.jwt.Jwt;
-import org.springframework.security.jwt.JwtHelper;
 import org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken;
 import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
 import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
@@ -69,6 +68,7 @@ import org.springframework.security.oauth2.common.OAuth2RefreshToken;
 import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
 import org.springframework.security.oauth2.common.exceptions.InvalidScopeException;
 import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
 import org.springframework.security.oauth2.common.util.OAuth2Utils;
 import org.springframework.security.oauth2.provider.AuthorizationRequest;
 import org.springframework.security.oauth2.provider.ClientDetails;
@@ -87,7 +87,7 @@ import org.springframework.util.StringUtils;
  *
  */
 public class UaaTokenServices implements AuthorizationServerTokenServices, ResourceServerTokenServices,
-		InitializingBean {
+		TokenClaimsReader, InitializingBean {
 
 	private int refreshTokenValiditySeconds = 60 * 60 * 24 * 30; // default 30 days.
 
@@ -109,6 +109,8 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
 	private ApprovalStore approvalStore = null;
 
+	private VerifiedTokenCache tokenCache = new VerifiedTokenCache();
+
 	@Override
 	public OAuth2AccessToken refreshAccessToken(String refreshTokenValue, AuthorizationRequest request)
 			throws AuthenticationException {
@@ -122,7 +124,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 					+ request.getAuthorizationParameters().get("grant_type"));
 		}
 
-		Map<String, Object> claims = getClaimsForToken(refreshTokenValue);
+		TokenClaims claims = getClaimsForToken(refreshTokenValue);
 
 		// TODO: Should reuse the access token you get after the first successful authentication.
 		// You will get an invalid_grant error if your previous token has not expired yet.
@@ -131,36 +133,35 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 		// throw new InvalidGrantException("Invalid refresh token: " + refreshTokenValue);
 		// }
 
-		String clientId = (String) claims.get(CID);
+		String clientId = claims.getClientId();
 		if (clientId == null || !clientId.equals(request.getClientId())) {
 			throw new InvalidGrantException("Wrong client for this refresh token: " + refreshTokenValue);
 		}
 
-		String username = (String) claims.get(USER_NAME);
+		String username = claims.getUserName();
 
-		// TODO: Need to add a lookup by id so that the refresh token does not need to contain a name
-		UaaUser user = userDatabase.retrieveUserByName(username);
+		// The subject of a refresh token is the user id, which (unlike the name) cannot change
+		String userId = claims.getSubject();
+		UaaUser user = userId != null ? userDatabase.retrieveUserById(userId) : userDatabase
+				.retrieveUserByName(username);
 
-		Integer refreshTokenIssuedAt = (Integer) claims.get(IAT);
-		long refreshTokenIssueDate = refreshTokenIssuedAt.longValue() * 1000l;
+		Date refreshTokenIssueDate = claims.getIssuedAt();
 
 		// If the user changed their password, expire the refresh token
-		if (user.getModified().after(new Date(refreshTokenIssueDate))) {
+		if (user.getModified().after(refreshTokenIssueDate)) {
 			logger.debug("User was last modified at " + user.getModified() + " refresh token was issued at "
-					+ new Date(refreshTokenIssueDate));
+					+ refreshTokenIssueDate);
 			throw new InvalidTokenException("Invalid refresh token (password changed): " + refreshTokenValue);
 		}
 
-		Integer refreshTokenExpiry = (Integer) claims.get(EXP);
-		long refreshTokenExpireDate = refreshTokenExpiry.longValue() * 1000l;
+		Date refreshTokenExpireDate = claims.getExpiration();
 
-		if (new Date(refreshTokenExpireDate).before(new Date())) {
+		if (refreshTokenExpireDate.before(new Date())) {
 			throw new InvalidTokenException("Invalid refresh token (expired): " + refreshTokenValue + " expired at "
-					+ new Date(refreshTokenExpireDate));
+					+ refreshTokenExpireDate);
 		}
 
-		@SuppressWarnings("unchecked")
-		ArrayList<String> tokenScopes = (ArrayList<String>) claims.get(SCOPE);
+		List<String> tokenScopes = claims.getScope();
 
 		// default request scopes to what is in the refresh token
 		Set<String> requestedScopes = request.getScope();
@@ -177,10 +178,10 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 		// from this point on, we only care about the scopes requested, not what is in the refresh token
 		// ensure all requested scopes are approved: either automatically or explicitly by the user
 		ClientDetails client = clientDetailsService.loadClientByClientId(clientId);
-		String grantType = claims.get(GRANT_TYPE).toString();
+		String grantType = claims.getGrantType();
 		checkForApproval(username, clientId, requestedScopes,
 								getAutoApprovedScopes(grantType, tokenScopes, client),
-								new Date(refreshTokenIssueDate));
+								refreshTokenIssueDate);
 
 		// if we have reached so far, issue an access token
 		Integer validity = client.getAccessTokenValiditySeconds();
@@ -196,12 +197,15 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 	}
 
 	private void checkForApproval (String username, String clientId, Collection<String> requestedScopes, Collection<String> autoApprovedScopes, Date updateCutOff) {
+		checkForApproval(approvalStore.getApprovals(username, clientId), requestedScopes, autoApprovedScopes, updateCutOff);
+	}
+
+	private void checkForApproval (List<Approval> approvals, Collection<String> requestedScopes, Collection<String> autoApprovedScopes, Date updateCutOff) {
 		Set<String> approvedScopes = new HashSet<String>();
 		approvedScopes.addAll(autoApprovedScopes);
 
 		// Search through the users approvals for scopes that are requested, not auto approved, not expired,
 		// not DENIED and not approved more recently than when this access token was issued.
-		List<Approval> approvals = approvalStore.getApprovals(username, clientId);
 		for (Approval approval : approvals) {
 			if (requestedScopes.contains(approval.getScope()) && approval.getStatus() == ApprovalStatus.APPROVED) {
 				if (!approval.isCurrentlyActive()) {
@@ -252,15 +256,15 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 		}
 		accessToken.setAdditionalInformation(info);
 
-		String content;
+		String token;
 		try {
-			content = mapper.writeValueAsString(createJWTAccessToken(accessToken, userId, username, userEmail,
-					clientScopes, requestedScopes, clientId, resourceIds, grantType, refreshToken));
+			token = JwtTokenCodec.encode(createJWTAccessToken(accessToken, userId, username, userEmail, clientScopes,
+					requestedScopes, clientId, resourceIds, grantType, refreshToken), signerProvider.getSigner(),
+					signerProvider.getKeyId());
 		}
-		catch (Exception e) {
+		catch (IOException e) {
 			throw new IllegalStateException("Cannot convert access token to JSON", e);
 		}
-		String token = JwtHelper.encode(content, signerProvider.getSigner()).getEncoded();
 
 		// This setter copies the value and returns. Don't change.
 		accessToken = accessToken.setValue(token);
@@ -268,55 +272,65 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 		return accessToken;
 	}
 
-	private Map<String, ?> createJWTAccessToken(OAuth2AccessToken token, String userId, String username,
-			String userEmail, Collection<GrantedAuthority> clientScopes, Set<String> requestedScopes, String clientId,
-			Set<String> resourceIds, String grantType, String refreshToken) {
+	private JwtTokenCodec.ClaimsWriter createJWTAccessToken(final OAuth2AccessToken token, final String userId,
+			final String username, final String userEmail, final Collection<GrantedAuthority> clientScopes,
+			final Set<String> requestedScopes, final String clientId, final Set<String> resourceIds,
+			final String grantType, final String refreshToken) {
 
-		Map<String, Object> response = new LinkedHashMap<String, Object>();
+		return new JwtTokenCodec.ClaimsWriter() {
+			@Override
+			public void writeClaims(JsonGenerator response) throws IOException {
 
-		response.put(JTI, token.getAdditionalInformation().get(JTI));
-		response.putAll(token.getAdditionalInformation());
-
-		response.put(SUB, userId);
-		if (null != clientScopes) {
-			response.put(AUTHORITIES, AuthorityUtils.authorityListToSet(clientScopes));
-		}
+				response.writeObjectField(JTI, token.getAdditionalInformation().get(JTI));
+				for (Map.Entry<String, Object> entry : token.getAdditionalInformation().entrySet()) {
+					if (!JTI.equals(entry.getKey())) {
+						response.writeObjectField(entry.getKey(), entry.getValue());
+					}
+				}
 
-		response.put(OAuth2AccessToken.SCOPE, requestedScopes);
-		response.put(CLIENT_ID, clientId);
-		response.put(CID, clientId);
+				response.writeStringField(SUB, userId);
+				if (null != clientScopes) {
+					response.writeObjectField(AUTHORITIES, AuthorityUtils.authorityListToSet(clientScopes));
+				}
 
-		if (null != grantType) {
-			response.put(GRANT_TYPE, grantType);
-		}
-		if(!"client_credentials".equals(grantType)) {
-			response.put(USER_ID, userId);
-			response.put(USER_NAME, username == null ? userId : username);
-			if (null != userEmail) {
-				response.put(EMAIL, userEmail);
-			}
-		}
+				response.writeObjectField(OAuth2AccessToken.SCOPE, requestedScopes);
+				response.writeStringField(CLIENT_ID, clientId);
+				response.writeStringField(CID, clientId);
 
-		response.put(IAT, System.currentTimeMillis() / 1000);
-		if (token.getExpiration() != null) {
-			response.put(EXP, token.getExpiration().getTime() / 1000);
-		}
+				if (null != grantType) {
+					response.writeStringField(GRANT_TYPE, grantType);
+				}
+				if (!"client_credentials".equals(grantType)) {
+					response.writeStringField(USER_ID, userId);
+					response.writeStringField(USER_NAME, username == null ? userId : username);
+					if (null != userEmail) {
+						response.writeStringField(EMAIL, userEmail);
+					}
+				}
 
-		if (issuer != null) {
-			String tokenEndpoint = issuer + "/oauth/token";
-			response.put(ISS, tokenEndpoint);
-		}
+				response.writeNumberField(IAT, System.currentTimeMillis() / 1000);
+				if (token.getExpiration() != null) {
+					response.writeNumberField(EXP, token.getExpiration().getTime() / 1000);
+				}
 
-		// TODO: different values for audience in the AT and RT. Need to sync them up
-		response.put(AUD, resourceIds);
+				if (issuer != null) {
+					String tokenEndpoint = issuer + "/oauth/token";
+					response.writeStringField(ISS, tokenEndpoint);
+				}
 
-		return response;
+				// TODO: different values for audience in the AT and RT. Need to sync them up
+				response.writeObjectField(AUD, resourceIds);
+			}
+		};
 	}
 
 	@Override
 	public OAuth2AccessToken createAccessToken(OAuth2Authentication authentication) throws AuthenticationException {
 
-		OAuth2RefreshToken refreshToken = createRefreshToken(authentication);
+		// The refresh token and the access token need the same user and client, so only load them once
+		Lookups lookups = new Lookups();
+
+		OAuth2RefreshToken refreshToken = createRefreshToken(authentication, lookups);
 
 		String userId = null;
 		String username = null;
@@ -325,12 +339,12 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 		Collection<GrantedAuthority> clientScopes = null;
 		// Clients should really by different kinds of users
 		if (authentication.isClientOnly()) {
-			ClientDetails client = clientDetailsService.loadClientByClientId(authentication.getName());
+			ClientDetails client = lookups.getClient(authentication.getName());
 			userId = client.getClientId();
 			clientScopes = client.getAuthorities();
 		}
 		else {
-			UaaUser user = userDatabase.retrieveUserByName(authentication.getName());
+			UaaUser user = lookups.getUser(authentication.getName());
 			userId = user.getId();
 			username = user.getUsername();
 			userEmail = user.getEmail();
@@ -351,7 +365,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 		Map<String, String> additionalAuthorizationAttributes = getAdditionalAuthorizationAttributes(authentication
 				.getAuthorizationRequest().getAuthorizationParameters().get("authorities"));
 
-		ClientDetails client = clientDetailsService.loadClientByClientId(clientId);
+		ClientDetails client = lookups.getClient(clientId);
 		Integer validity = client.getAccessTokenValiditySeconds();
 
 		OAuth2AccessToken accessToken = createAccessToken(userId, username, userEmail,
@@ -389,7 +403,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 		return null;
 	}
 
-	private ExpiringOAuth2RefreshToken createRefreshToken(OAuth2Authentication authentication) {
+	private ExpiringOAuth2RefreshToken createRefreshToken(OAuth2Authentication authentication, Lookups lookups) {
 
 		String grantType = authentication.getAuthorizationRequest().getAuthorizationParameters().get("grant_type");
 		if (!isRefreshTokenSupported(grantType)) {
@@ -399,60 +413,64 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 		Map<String, String> additionalAuthorizationAttributes = getAdditionalAuthorizationAttributes(authentication
 				.getAuthorizationRequest().getAuthorizationParameters().get("authorities"));
 
-		int validitySeconds = getRefreshTokenValiditySeconds(authentication.getAuthorizationRequest());
+		int validitySeconds = getRefreshTokenValiditySeconds(lookups.getClient(authentication
+				.getAuthorizationRequest().getClientId()));
 		ExpiringOAuth2RefreshToken token = new DefaultExpiringOAuth2RefreshToken(UUID.randomUUID().toString(),
 				new Date(System.currentTimeMillis() + (validitySeconds * 1000L)));
 
-		UaaUser user = userDatabase.retrieveUserByName(((Principal) authentication.getPrincipal()).getName());
+		UaaUser user = lookups.getUser(((Principal) authentication.getPrincipal()).getName());
 
-		String content;
+		String jwtToken;
 		try {
-			content = mapper.writeValueAsString(createJWTRefreshToken(token, user, authentication
-					.getAuthorizationRequest().getScope(), authentication.getAuthorizationRequest().getClientId(), grantType, additionalAuthorizationAttributes));
+			jwtToken = JwtTokenCodec.encode(createJWTRefreshToken(token, user, authentication
+					.getAuthorizationRequest().getScope(), authentication.getAuthorizationRequest().getClientId(), grantType, additionalAuthorizationAttributes),
+					signerProvider.getSigner(), signerProvider.getKeyId());
 		}
-		catch (Exception e) {
+		catch (IOException e) {
 			throw new IllegalStateException("Cannot convert access token to JSON", e);
 		}
-		String jwtToken = JwtHelper.encode(content, signerProvider.getSigner()).getEncoded();
 
 		ExpiringOAuth2RefreshToken refreshToken = new DefaultExpiringOAuth2RefreshToken(jwtToken, token.getExpiration());
 
 		return refreshToken;
 	}
 
-	private Map<String, ?> createJWTRefreshToken(OAuth2RefreshToken token, UaaUser user, Set<String> scopes,
-			String clientId, String grantType, Map<String, String> additionalAuthorizationAttributes) {
+	private JwtTokenCodec.ClaimsWriter createJWTRefreshToken(final OAuth2RefreshToken token, final UaaUser user,
+			final Set<String> scopes, final String clientId, final String grantType,
+			final Map<String, String> additionalAuthorizationAttributes) {
 
-		Map<String, Object> response = new LinkedHashMap<String, Object>();
+		return new JwtTokenCodec.ClaimsWriter() {
+			@Override
+			public void writeClaims(JsonGenerator response) throws IOException {
 
-		response.put(JTI, UUID.randomUUID().toString());
-		response.put(SUB, user.getId());
-		response.put(SCOPE, scopes);
-		if (null != additionalAuthorizationAttributes) {
-			response.put(ADDITIONAL_AZ_ATTR, additionalAuthorizationAttributes);
-		}
-
-		response.put(IAT, System.currentTimeMillis() / 1000);
-		if (((ExpiringOAuth2RefreshToken) token).getExpiration() != null) {
-			response.put(EXP, ((ExpiringOAuth2RefreshToken) token).getExpiration().getTime() / 1000);
-		}
+				response.writeStringField(JTI, UUID.randomUUID().toString());
+				response.writeStringField(SUB, user.getId());
+				response.writeObjectField(SCOPE, scopes);
+				if (null != additionalAuthorizationAttributes) {
+					response.writeObjectField(ADDITIONAL_AZ_ATTR, additionalAuthorizationAttributes);
+				}
 
-		response.put(CID, clientId);
-		if (issuer != null) {
-			String tokenEndpoint = issuer + "/oauth/token";
-			response.put(ISS, tokenEndpoint);
-		}
+				response.writeNumberField(IAT, System.currentTimeMillis() / 1000);
+				if (((ExpiringOAuth2RefreshToken) token).getExpiration() != null) {
+					response.writeNumberField(EXP, ((ExpiringOAuth2RefreshToken) token).getExpiration().getTime() / 1000);
+				}
 
-		if (null != grantType) {
-			response.put(GRANT_TYPE, grantType);
-		}
-		if (!"client_credentials".equals(grantType)) {
-			response.put(USER_NAME, user.getUsername());
-		}
+				response.writeStringField(CID, clientId);
+				if (issuer != null) {
+					String tokenEndpoint = issuer + "/oauth/token";
+					response.writeStringField(ISS, tokenEndpoint);
+				}
 
-		response.put(AUD, scopes);
+				if (null != grantType) {
+					response.writeStringField(GRANT_TYPE, grantType);
+				}
+				if (!"client_credentials".equals(grantType)) {
+					response.writeStringField(USER_NAME, user.getUsername());
+				}
 
-		return response;
+				response.writeObjectField(AUD, scopes);
+			}
+		};
 	}
 
 	/**
@@ -469,9 +487,21 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 	 * The refresh token validity period in seconds
 	 * @param authorizationRequest the current authorization request
 	 * @return the refresh token validity period in seconds
+	 * @deprecated no longer consulted when refresh tokens are created, so overriding it has no effect: override
+	 * {@link #getRefreshTokenValiditySeconds(ClientDetails)} instead
 	 */
+	@Deprecated
 	protected int getRefreshTokenValiditySeconds(AuthorizationRequest authorizationRequest) {
-		ClientDetails client = clientDetailsService.loadClientByClientId(authorizationRequest.getClientId());
+		return getRefreshTokenValiditySeconds(clientDetailsService.loadClientByClientId(authorizationRequest
+				.getClientId()));
+	}
+
+	/**
+	 * The refresh token validity period in seconds
+	 * @param client the client the token is issued to
+	 * @return the refresh token validity period in seconds
+	 */
+	protected int getRefreshTokenValiditySeconds(ClientDetails client) {
 		Integer validity = client.getRefreshTokenValiditySeconds();
 		if (validity != null) {
 			return validity;
@@ -492,20 +522,25 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
 	@Override
 	public OAuth2Authentication loadAuthentication(String accessToken) throws AuthenticationException {
-		Map<String, Object> claims = getClaimsForToken(accessToken);
+		TokenClaims claims;
+		VerifiedTokenCache.Entry cached = tokenCache.get(accessToken);
+		if (cached != null) {
+			claims = cached.getClaims();
+		}
+		else {
+			long generation = tokenCache.getGeneration();
+			claims = getClaimsForToken(accessToken);
+			tokenCache.put(accessToken, claims, false, generation);
+		}
 
 		// Check token expiry
-		Integer expiration = (Integer) claims.get(EXP);
-		if(expiration != null && new Date(expiration * 1000l).before(new Date())) {
+		if (claims.isExpired(new Date())) {
 			throw new InvalidTokenException("Invalid access token (expired): " + accessToken + " expired at "
-					+ new Date(expiration * 1000l));
+					+ claims.getExpiration());
 		}
 
-		@SuppressWarnings("unchecked")
-		ArrayList<String> scopes = (ArrayList<String>) claims.get(SCOPE);
-
-		AuthorizationRequest authorizationRequest = new DefaultAuthorizationRequest((String) claims.get(CLIENT_ID),
-				scopes);
+		AuthorizationRequest authorizationRequest = new DefaultAuthorizationRequest(claims.getClientId(),
+				claims.getScope());
 		((DefaultAuthorizationRequest) authorizationRequest).setResourceIds(null);
 		((DefaultAuthorizationRequest) authorizationRequest).setApproved(true);
 
@@ -525,9 +560,9 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
 		Authentication userAuthentication = null;
 		// Is this a user token?
-		if (claims.containsKey(EMAIL)) {
-			UaaUser user = new UaaUser((String) claims.get(USER_ID), (String) claims.get(USER_NAME), null,
-					(String) claims.get(EMAIL), UaaAuthority.USER_AUTHORITIES, null, null, null, null);
+		if (claims.isUserToken()) {
+			UaaUser user = new UaaUser(claims.getUserId(), claims.getUserName(), null, claims.getEmail(),
+					UaaAuthority.USER_AUTHORITIES, null, null, null, null);
 
 			UaaPrincipal principal = new UaaPrincipal(user);
 			userAuthentication = new UaaAuthentication(principal, UaaAuthority.USER_AUTHORITIES, null);
@@ -546,55 +581,125 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 	 */
 	@Override
 	public OAuth2AccessToken readAccessToken(String accessToken) {
-		Map<String, Object> claims = getClaimsForToken(accessToken);
+		TokenClaims claims = readAccessTokenClaims(accessToken);
 
 		// Expiry is verified by check_token
 		DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(accessToken);
 		token.setTokenType(OAuth2AccessToken.BEARER_TYPE);
-		Integer exp = (Integer) claims.get(EXP);
-		if (null != exp) {
-			token.setExpiration(new Date(exp.longValue() * 1000l));
-		}
+		token.setExpiration(claims.getExpiration());
 
-		@SuppressWarnings("unchecked")
-		ArrayList<String> scopes = (ArrayList<String>) claims.get(SCOPE);
-		if (null != scopes && scopes.size() > 0) {
+		List<String> scopes = claims.getScope();
+		if (scopes.size() > 0) {
 			token.setScope(new HashSet<String>(scopes));
 		}
 
-		String email = (String) claims.get(EMAIL);
+		return token;
+	}
+
+	/**
+	 * Decode an access token and check that it is still valid for its user (the password has not changed and the
+	 * approvals for its scopes are still in place). Expiry is not checked, so that callers can report it separately.
+	 *
+	 * @param accessToken an access token value
+	 * @return the claims of the token
+	 * @throws InvalidTokenException if the token cannot be decoded or is no longer valid
+	 */
+	@Override
+	public TokenClaims readAccessTokenClaims(String accessToken) {
+		return readAccessTokenClaims(accessToken, new Lookups());
+	}
+
+	/**
+	 * Decode and check a batch of access tokens in the same way as {@link #readAccessTokenClaims(String)}. Each
+	 * distinct token is only checked once, and each user and client is only loaded once for the whole batch.
+	 *
+	 * @param accessTokens some access token values
+	 * @return the result for each distinct token, in the order they were first presented
+	 */
+	@Override
+	public Map<String, TokenValidation> readAccessTokenClaims(Collection<String> accessTokens) {
+		Lookups lookups = new Lookups();
+		Map<String, TokenValidation> results = new LinkedHashMap<String, TokenValidation>();
+		for (String accessToken : accessTokens) {
+			if (results.containsKey(accessToken)) {
+				continue;
+			}
+			try {
+				results.put(accessToken, new TokenValidation(readAccessTokenClaims(accessToken, lookups), null));
+			}
+			catch (OAuth2Exception e) {
+				results.put(accessToken, new TokenValidation(null, e));
+			}
+			catch (AuthenticationException e) {
+				// e.g. the user has been deleted
+				logger.debug("Cannot check token: " + e.getMessage());
+				results.put(accessToken, new TokenValidation(null, new InvalidTokenException("Invalid access token ("
+						+ e.getMessage() + "): " + accessToken)));
+			}
+			catch (RuntimeException e) {
+				// e.g. the user or client store is unavailable: only this token fails
+				logger.error("Cannot check token", e);
+				OAuth2Exception error = new OAuth2Exception("Cannot check token (" + e.getMessage() + ")") {
+					@Override
+					public String getOAuth2ErrorCode() {
+						return "server_error";
+					}
+
+					@Override
+					public int getHttpErrorCode() {
+						return 500;
+					}
+				};
+				results.put(accessToken, new TokenValidation(null, error));
+			}
+		}
+		return results;
+	}
+
+	private TokenClaims readAccessTokenClaims(String accessToken, Lookups lookups) {
+		VerifiedTokenCache.Entry cached = tokenCache.get(accessToken);
+		if (cached != null && cached.isValidated()) {
+			return cached.getClaims();
+		}
+
+		long generation = tokenCache.getGeneration();
+		TokenClaims claims = cached != null ? cached.getClaims() : getClaimsForToken(accessToken);
 
 		// Only check user access tokens
-		if (null != email) {
-			String username = (String) claims.get(USER_NAME);
+		if (claims.isUserToken()) {
+			checkUserToken(accessToken, claims, lookups);
+		}
 
-			UaaUser user = userDatabase.retrieveUserByName(username);
+		tokenCache.put(accessToken, claims, true, generation);
+		return claims;
+	}
 
-			Integer accessTokenIssuedAt = (Integer) claims.get(IAT);
-			long accessTokenIssueDate = accessTokenIssuedAt.longValue() * 1000l;
+	private void checkUserToken(String accessToken, TokenClaims claims, Lookups lookups) {
+		String username = claims.getUserName();
 
-			// If the user changed their password, expire the access token
-			if (user.getModified().after(new Date(accessTokenIssueDate))) {
-				logger.debug("User was last modified at " + user.getModified() + " access token was issued at "
-						+ new Date(accessTokenIssueDate));
-				throw new InvalidTokenException("Invalid access token (password changed): " + accessToken);
-			}
+		UaaUser user = lookups.getUser(username);
 
-			// Check approvals to make sure they're all valid, approved and not more recent
-			// than the token itself
-			String clientId = (String) claims.get(CLIENT_ID);
-			ClientDetails client = clientDetailsService.loadClientByClientId(clientId);
+		Date accessTokenIssueDate = claims.getIssuedAt();
 
-			@SuppressWarnings("unchecked")
-			ArrayList<String> tokenScopes = (ArrayList<String>) claims.get(SCOPE);
-			Set<String> autoApprovedScopes = getAutoApprovedScopes(claims.get(GRANT_TYPE), tokenScopes, client);
-			if (autoApprovedScopes.containsAll(tokenScopes)) {
-				return token;
-			}
-			checkForApproval(username, clientId, tokenScopes, autoApprovedScopes, new Date(accessTokenIssueDate));
+		// If the user changed their password, expire the access token
+		if (user.getModified().after(accessTokenIssueDate)) {
+			logger.debug("User was last modified at " + user.getModified() + " access token was issued at "
+					+ accessTokenIssueDate);
+			throw new InvalidTokenException("Invalid access token (password changed): " + accessToken);
 		}
 
-		return token;
+		// Check approvals to make sure they're all valid, approved and not more recent
+		// than the token itself
+		String clientId = claims.getClientId();
+		ClientDetails client = lookups.getClient(clientId);
+
+		List<String> tokenScopes = claims.getScope();
+		Set<String> autoApprovedScopes = getAutoApprovedScopes(claims.getGrantType(), tokenScopes, client);
+		if (autoApprovedScopes.containsAll(tokenScopes)) {
+			return;
+		}
+		checkForApproval(lookups.getApprovals(username, clientId), tokenScopes, autoApprovedScopes,
+				accessTokenIssueDate);
 	}
 
 	private Set<String> getAutoApprovedScopes(Object grantType, Collection<String> tokenScopes, ClientDetails client) {
@@ -619,25 +724,16 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 		return autoApprovedScopes;
 	}
 
-	private Map<String, Object> getClaimsForToken(String token) {
-		Jwt tokenJwt = null;
+	private TokenClaims getClaimsForToken(String token) {
+		TokenClaims claims = null;
 		try {
-			tokenJwt = JwtHelper.decodeAndVerify(token, signerProvider.getVerifier());
+			claims = JwtTokenCodec.decodeClaims(token, signerProvider);
 		}
 		catch (Throwable t) {
 			logger.debug("Invalid token (could not decode)");
 			throw new InvalidTokenException("Invalid token (could not decode): " + token);
 		}
 
-		Map<String, Object> claims = null;
-		try {
-			claims = mapper.readValue(tokenJwt.getClaims(), new TypeReference<Map<String, Object>>() {
-			});
-		}
-		catch (Exception e) {
-			throw new IllegalStateException("Cannot read token claims", e);
-		}
-
 		return claims;
 	}
 
@@ -669,4 +765,56 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 		this.approvalStore = approvalStore;
 	}
 
+	/**
+	 * Optional cache of verified tokens, consulted by {@link #loadAuthentication(String)} and
+	 * {@link #readAccessTokenClaims(String)}. The default is disabled (zero size).
+	 *
+	 * @param tokenCache the token cache to set
+	 */
+	public void setTokenCache(VerifiedTokenCache tokenCache) {
+		this.tokenCache = tokenCache;
+	}
+
+	/**
+	 * Users and clients loaded while issuing or checking tokens, so that a single token request, or a batch of tokens,
+	 * does not load them repeatedly.
+	 */
+	private class Lookups {
+
+		private final Map<String, UaaUser> users = new HashMap<String, UaaUser>();
+
+		private final Map<String, ClientDetails> clients = new HashMap<String, ClientDetails>();
+
+		private final Map<List<String>, List<Approval>> approvals = new HashMap<List<String>, List<Approval>>();
+
+		public UaaUser getUser(String username) {
+			UaaUser user = users.get(username);
+			if (user == null) {
+				user = userDatabase.retrieveUserByName(username);
+				users.put(username, user);
+			}
+			return user;
+		}
+
+		public ClientDetails getClient(String clientId) {
+			ClientDetails client = clients.get(clientId);
+			if (client == null) {
+				client = clientDetailsService.loadClientByClientId(clientId);
+				clients.put(clientId, client);
+			}
+			return client;
+		}
+
+		public List<Approval> getApprovals(String username, String clientId) {
+			List<String> key = Arrays.asList(username, clientId);
+			List<Approval> result = approvals.get(key);
+			if (result == null) {
+				result = approvalStore.getApprovals(username, clientId);
+				approvals.put(key, result);
+			}
+			return result;
+		}
+
+	}
+
 }
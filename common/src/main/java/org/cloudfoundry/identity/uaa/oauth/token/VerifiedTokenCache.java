@@ -0,0 +1,469 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.AuditEvent;
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
+import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalsChangedEvent;
+import org.cloudfoundry.identity.uaa.user.UserChangedEvent;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.security.crypto.codec.Hex;
+
+/**
+ * A bounded cache of tokens that have already been verified by the {@link UaaTokenServices}, so that a token
+ * presented many times by a resource server is not decoded, verified and checked against the user, client and
+ * approvals stores every time.
+ *
+ * Entries are keyed by a digest of the token value (so the tokens themselves are not kept in memory) and are evicted
+ * when the token expires, when they are older than {@link #setTimeToLiveSeconds(int) the time to live}, or when the
+ * cache is full (least recently used first). A max size of zero (the default) disables the cache. A large cache is
+ * split into stripes with their own locks, and the entries are indexed by user and client so that removing the
+ * tokens of one does not scan the cache.
+ *
+ * Entries are removed when a user is updated, deactivated or deleted or changes their password (via
+ * {@link UserChangedEvent} and the audit event for a password change), when a client is changed or deleted (via the
+ * audit events published for those changes) and when the approvals for a user and client change (via
+ * {@link ApprovalsChangedEvent}). The time to live bounds how long any other change that makes a token invalid (e.g.
+ * a change made directly in the database) can go unnoticed.
+ *
+ * @see UaaTokenServices#setTokenCache(VerifiedTokenCache)
+ */
+public class VerifiedTokenCache implements ApplicationListener<ApplicationEvent> {
+
+	// Small caches (e.g. in tests) are kept in a single stripe so that they are exactly least recently used
+	private static final int MIN_STRIPE_SIZE = 64;
+
+	private static final int MAX_STRIPES = 16;
+
+	private final Log logger = LogFactory.getLog(getClass());
+
+	private volatile Stripe[] stripes = new Stripe[0];
+
+	private final Index userIndex = new Index();
+
+	private final Index clientIndex = new Index();
+
+	private final Index approvalsIndex = new Index();
+
+	private int timeToLiveSeconds = 60;
+
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * @param maxSize the maximum number of tokens to keep (default 0, which disables the cache)
+	 */
+	public void setMaxSize(int maxSize) {
+		int count = Math.max(1, Math.min(MAX_STRIPES, maxSize / MIN_STRIPE_SIZE));
+		Stripe[] stripes = new Stripe[maxSize > 0 ? count : 0];
+		for (int i = 0; i < stripes.length; i++) {
+			// Spread the remainder so the total is exactly the max size
+			stripes[i] = new Stripe(maxSize / count + (i < maxSize % count ? 1 : 0));
+		}
+		generation.incrementAndGet();
+		this.stripes = stripes;
+		userIndex.clear();
+		clientIndex.clear();
+		approvalsIndex.clear();
+	}
+
+	/**
+	 * @param timeToLiveSeconds the maximum time to keep a token that has not expired (default 60)
+	 */
+	public void setTimeToLiveSeconds(int timeToLiveSeconds) {
+		this.timeToLiveSeconds = timeToLiveSeconds;
+	}
+
+	public boolean isEnabled() {
+		return stripes.length > 0;
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.entries.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return a marker to pass to {@link #put(String, TokenClaims, boolean, long)} so that a token verified
+	 * concurrently with an invalidation is not cached
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * @param token a token value
+	 * @return the cached entry for the token, or null if there is none
+	 */
+	public Entry get(String token) {
+		if (!isEnabled()) {
+			return null;
+		}
+		String key = digest(token);
+		long now = System.currentTimeMillis();
+		Stripe stripe = getStripe(key);
+		Entry entry;
+		synchronized (stripe) {
+			entry = stripe.entries.get(key);
+			if (entry == null || entry.expiresAt > now) {
+				return entry;
+			}
+			stripe.entries.remove(key);
+		}
+		unindex(key, entry);
+		return null;
+	}
+
+	/**
+	 * Cache the claims of a token that has been verified.
+	 *
+	 * @param token the token value
+	 * @param claims the claims of the token
+	 * @param validated true if the token has been checked against the user and approvals stores as well as verified
+	 * @param generation the value of {@link #getGeneration()} from before the token was verified
+	 */
+	public void put(String token, TokenClaims claims, boolean validated, long generation) {
+		if (!isEnabled() || generation != this.generation.get()) {
+			return;
+		}
+		long expiresAt = System.currentTimeMillis() + timeToLiveSeconds * 1000l;
+		Date expiration = claims.getExpiration();
+		if (expiration != null) {
+			expiresAt = Math.min(expiresAt, expiration.getTime());
+		}
+		// Parse the claims fully so that the cached view is only ever read from now on
+		claims.asMap();
+		Entry entry = new Entry(claims, validated, expiresAt);
+		String key = digest(token);
+		index(key, entry);
+		Stripe stripe = getStripe(key);
+		synchronized (stripe) {
+			stripe.entries.put(key, entry);
+		}
+		// An invalidation since the token was verified may have missed this entry, so take it out again. One that
+		// starts after this check finds it in the indexes.
+		if (generation != this.generation.get()) {
+			remove(key);
+		}
+	}
+
+	/**
+	 * Remove the tokens of a user.
+	 *
+	 * @param userId the id of the user
+	 */
+	public void invalidateUser(String userId) {
+		generation.incrementAndGet();
+		removeAll(userIndex.take(userId));
+	}
+
+	/**
+	 * Remove the tokens of a client, including those issued to it on behalf of users.
+	 *
+	 * @param clientId the id of the client
+	 */
+	public void invalidateClient(String clientId) {
+		generation.incrementAndGet();
+		removeAll(clientIndex.take(clientId));
+	}
+
+	/**
+	 * Remove the tokens issued to a client on behalf of a user.
+	 *
+	 * @param userName the name of the user
+	 * @param clientId the id of the client
+	 */
+	public void invalidateApprovals(String userName, String clientId) {
+		generation.incrementAndGet();
+		removeAll(approvalsIndex.take(getApprovalsKey(userName, clientId)));
+	}
+
+	public void clear() {
+		generation.incrementAndGet();
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.entries.clear();
+			}
+		}
+		userIndex.clear();
+		clientIndex.clear();
+		approvalsIndex.clear();
+	}
+
+	@Override
+	public void onApplicationEvent(ApplicationEvent event) {
+		if (!isEnabled()) {
+			return;
+		}
+		if (event instanceof ApprovalsChangedEvent) {
+			onApprovalsChanged((ApprovalsChangedEvent) event);
+		}
+		else if (event instanceof UserChangedEvent) {
+			onUserChanged((UserChangedEvent) event);
+		}
+		else if (event instanceof AbstractUaaEvent) {
+			onAuditEvent(((AbstractUaaEvent) event).getAuditEvent());
+		}
+	}
+
+	private void onApprovalsChanged(ApprovalsChangedEvent event) {
+		if (event.getUserName() == null || event.getClientId() == null) {
+			clear();
+		}
+		else {
+			invalidateApprovals(event.getUserName(), event.getClientId());
+		}
+	}
+
+	private void onUserChanged(UserChangedEvent event) {
+		String userId = event.getUserId();
+		logger.debug("Removing cached tokens for user " + userId);
+		if (userId == null) {
+			clear();
+		}
+		else {
+			invalidateUser(userId);
+		}
+	}
+
+	private void onAuditEvent(AuditEvent auditEvent) {
+		String principalId = auditEvent.getPrincipalId();
+		switch (auditEvent.getType()) {
+		case PasswordChangeSuccess:
+			logger.debug("Removing cached tokens for user " + principalId);
+			if (principalId == null) {
+				clear();
+			}
+			else {
+				invalidateUser(principalId);
+			}
+			break;
+		case ClientUpdateSuccess:
+		case ClientDeleteSuccess:
+		case SecretChangeSuccess:
+			logger.debug("Removing cached tokens for client " + principalId);
+			if (principalId == null) {
+				clear();
+			}
+			else {
+				invalidateClient(principalId);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private Stripe getStripe(String key) {
+		Stripe[] stripes = this.stripes;
+		return stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+	}
+
+	private void removeAll(Collection<String> keys) {
+		for (String key : keys) {
+			remove(key);
+		}
+	}
+
+	private void remove(String key) {
+		Stripe stripe = getStripe(key);
+		Entry entry;
+		synchronized (stripe) {
+			entry = stripe.entries.remove(key);
+		}
+		if (entry != null) {
+			unindex(key, entry);
+		}
+	}
+
+	private void index(String key, Entry entry) {
+		userIndex.add(entry.userId, key);
+		clientIndex.add(entry.clientId, key);
+		approvalsIndex.add(getApprovalsKey(entry.userName, entry.clientId), key);
+	}
+
+	private void unindex(String key, Entry entry) {
+		userIndex.remove(entry.userId, key);
+		clientIndex.remove(entry.clientId, key);
+		approvalsIndex.remove(getApprovalsKey(entry.userName, entry.clientId), key);
+	}
+
+	private static String getApprovalsKey(String userName, String clientId) {
+		return userName == null || clientId == null ? null : userName + '\0' + clientId;
+	}
+
+	private static String digest(String token) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return new String(Hex.encode(digest.digest(token.getBytes("UTF-8"))));
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not available", e);
+		}
+	}
+
+	/**
+	 * The least recently used entries for some of the token digests.
+	 */
+	private class Stripe {
+
+		private final Map<String, Entry> entries;
+
+		private Stripe(final int maxSize) {
+			this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+					if (size() > maxSize) {
+						// Called with the stripe locked, which is never taken while an index is locked
+						unindex(eldest.getKey(), eldest.getValue());
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+	}
+
+	/**
+	 * The token digests for each user or client, so that invalidation does not scan the cache. Striped like the
+	 * entries, and a stripe is only ever locked on its own.
+	 */
+	private static class Index {
+
+		private final Map<String, Set<String>>[] stripes;
+
+		@SuppressWarnings("unchecked")
+		private Index() {
+			stripes = new Map[MAX_STRIPES];
+			for (int i = 0; i < stripes.length; i++) {
+				stripes[i] = new HashMap<String, Set<String>>();
+			}
+		}
+
+		private void add(String name, String key) {
+			if (name == null) {
+				return;
+			}
+			Map<String, Set<String>> stripe = getStripe(name);
+			synchronized (stripe) {
+				Set<String> keys = stripe.get(name);
+				if (keys == null) {
+					keys = new HashSet<String>();
+					stripe.put(name, keys);
+				}
+				keys.add(key);
+			}
+		}
+
+		private void remove(String name, String key) {
+			if (name == null) {
+				return;
+			}
+			Map<String, Set<String>> stripe = getStripe(name);
+			synchronized (stripe) {
+				Set<String> keys = stripe.get(name);
+				if (keys != null && keys.remove(key) && keys.isEmpty()) {
+					stripe.remove(name);
+				}
+			}
+		}
+
+		private Collection<String> take(String name) {
+			if (name == null) {
+				return Collections.emptySet();
+			}
+			Map<String, Set<String>> stripe = getStripe(name);
+			synchronized (stripe) {
+				Set<String> keys = stripe.remove(name);
+				return keys == null ? Collections.<String> emptySet() : keys;
+			}
+		}
+
+		private void clear() {
+			for (Map<String, Set<String>> stripe : stripes) {
+				synchronized (stripe) {
+					stripe.clear();
+				}
+			}
+		}
+
+		private Map<String, Set<String>> getStripe(String name) {
+			return stripes[(name.hashCode() & Integer.MAX_VALUE) % stripes.length];
+		}
+
+	}
+
+	/**
+	 * The cached claims of a verified token.
+	 */
+	public static class Entry {
+
+		private final TokenClaims claims;
+
+		private final boolean validated;
+
+		private final long expiresAt;
+
+		private final String userId;
+
+		private final String userName;
+
+		private final String clientId;
+
+		private Entry(TokenClaims claims, boolean validated, long expiresAt) {
+			this.claims = claims;
+			this.validated = validated;
+			this.expiresAt = expiresAt;
+			this.userId = claims.getUserId();
+			this.userName = claims.getUserName();
+			this.clientId = claims.getClientId();
+		}
+
+		public TokenClaims getClaims() {
+			return claims;
+		}
+
+		/**
+		 * @return true if the token was checked against the user and approvals stores when it was cached
+		 */
+		public boolean isValidated() {
+			return validated;
+		}
+
+	}
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.rest;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.util.StringUtils;
+
+/**
+ * Reads an attribute of the objects in {@link SearchResults}, given as a SpEL expression. The expression is parsed
+ * once, and accessors are cached (see {@link #forExpression(String)}) so they can be shared by all requests for the
+ * same attribute.
+ *
+ * An expression that is just a property path (e.g. "userName" or "meta.created") is read by calling the getters
+ * directly, looked up once for each class, instead of evaluating the expression. Anything else (e.g.
+ * "emails.![value]"), or a path the getters cannot be used for (e.g. a null in the middle), is evaluated as an
+ * expression, so the results and errors are the same either way.
+ */
+class AttributeAccessor {
+
+	private static final Pattern PROPERTY_PATH = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*(\\.[a-zA-Z_][a-zA-Z0-9_]*)*");
+
+	// The attributes come from requests, so only a bounded number are kept
+	private static final int MAX_CACHED = 1000;
+
+	// Cached for the classes a property has no getter on, so the expression is used for them
+	private static final Method NO_GETTER = ReflectionUtils.findMethod(Object.class, "toString");
+
+	private static final ConcurrentMap<String, AttributeAccessor> cache = new ConcurrentHashMap<String, AttributeAccessor>();
+
+	private final Expression expression;
+
+	private final String[] path;
+
+	private final ConcurrentMap<Class<?>, Method>[] getters;
+
+	/**
+	 * @param spel a SpEL expression
+	 * @return an accessor for it, shared with other callers
+	 * @throws org.springframework.expression.ParseException if the expression is not valid
+	 */
+	static AttributeAccessor forExpression(String spel) {
+		AttributeAccessor accessor = cache.get(spel);
+		if (accessor == null) {
+			accessor = new AttributeAccessor(spel);
+			if (cache.size() >= MAX_CACHED) {
+				cache.clear();
+			}
+			AttributeAccessor existing = cache.putIfAbsent(spel, accessor);
+			if (existing != null) {
+				accessor = existing;
+			}
+		}
+		return accessor;
+	}
+
+	@SuppressWarnings("unchecked")
+	private AttributeAccessor(String spel) {
+		this.expression = new SpelExpressionParser().parseExpression(spel);
+		if (PROPERTY_PATH.matcher(spel).matches()) {
+			path = spel.split("\\.");
+			getters = new ConcurrentMap[path.length];
+			for (int i = 0; i < path.length; i++) {
+				getters[i] = new ConcurrentHashMap<Class<?>, Method>();
+			}
+		}
+		else {
+			path = null;
+			getters = null;
+		}
+	}
+
+	/**
+	 * @param context the context to evaluate the expression in, if it is needed
+	 * @param object the object to read the attribute of
+	 * @return the value of the attribute
+	 */
+	Object getValue(EvaluationContext context, Object object) {
+		if (path != null) {
+			Object value = object;
+			for (int i = 0; i < path.length && value != null; i++) {
+				Method getter = getGetter(i, value.getClass());
+				if (getter == null) {
+					break;
+				}
+				try {
+					value = getter.invoke(value);
+				}
+				catch (IllegalAccessException e) {
+					break;
+				}
+				catch (InvocationTargetException e) {
+					break;
+				}
+				if (i == path.length - 1) {
+					return value;
+				}
+			}
+		}
+		return expression.getValue(context, object);
+	}
+
+	private Method getGetter(int index, Class<?> type) {
+		Method getter = getters[index].get(type);
+		if (getter == null) {
+			getter = findGetter(type, path[index]);
+			getters[index].putIfAbsent(type, getter == null ? NO_GETTER : getter);
+		}
+		return getter == NO_GETTER ? null : getter;
+	}
+
+	private static Method findGetter(Class<?> type, String property) {
+		String name = StringUtils.capitalize(property);
+		Method getter = ReflectionUtils.findMethod(type, "get" + name);
+		if (getter == null) {
+			getter = ReflectionUtils.findMethod(type, "is" + name);
+			if (getter != null && getter.getReturnType() != boolean.class && getter.getReturnType() != Boolean.class) {
+				getter = null;
+			}
+		}
+		if (getter == null || !Modifier.isPublic(getter.getModifiers()) || Modifier.isStatic(getter.getModifiers())) {
+			return null;
+		}
+		ReflectionUtils.makeAccessible(getter);
+		return getter;
+	}
+
+}
@@ -8,8 +8,6 @@ import java.util.List;
 import java.util.Map;
 
 import org.cloudfoundry.identity.uaa.util.UaaPagingUtils;
-import org.springframework.expression.Expression;
-import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.expression.spel.support.StandardEvaluationContext;
 import org.springframework.util.Assert;
 
@@ -20,13 +18,13 @@ public class SearchResultsFactory {
 
 	public static <T> SearchResults<Map<String, Object>> buildSearchResultFrom(List<T> input, int startIndex, int count, int total, String[] attributes, AttributeNameMapper mapper, List<String> schemas) {
 		Assert.state(input.size()<=count, "Cannot build search results from parent list. Use subList before you call this method.");
-		Map<String, Expression> expressions = buildExpressions(attributes, mapper);
+		Map<String, AttributeAccessor> accessors = buildAccessors(attributes, mapper);
 		StandardEvaluationContext context = new StandardEvaluationContext();
 		Collection<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
 		for (T object : UaaPagingUtils.subList(input, startIndex, count)) {
 			Map<String, Object> map = new LinkedHashMap<String, Object>();
-			for (String attribute : expressions.keySet()) {
-				map.put(attribute, expressions.get(attribute).getValue(context, object));
+			for (Map.Entry<String, AttributeAccessor> entry : accessors.entrySet()) {
+				map.put(entry.getKey(), entry.getValue().getValue(context, object));
 			}
 			results.add(map);
 		}
@@ -34,14 +32,14 @@ public class SearchResultsFactory {
 		return new SearchResults<Map<String, Object>>(schemas, results, startIndex, count, total);
 	}
 
-	private static Map<String, Expression> buildExpressions(String[] attributes, AttributeNameMapper mapper) {
-		Map<String, Expression> expressions = new LinkedHashMap<String, Expression>();
+	private static Map<String, AttributeAccessor> buildAccessors(String[] attributes, AttributeNameMapper mapper) {
+		Map<String, AttributeAccessor> accessors = new LinkedHashMap<String, AttributeAccessor>();
 		for (String attribute : attributes) {
+			// Keyed by the expression the mapper gives, so accessors are shared by requests (and mappers) that agree
 			String spel = mapper != null ? mapper.mapToInternal(attribute) : attribute;
-			Expression expression = new SpelExpressionParser().parseExpression(spel);
-			expressions.put(attribute, expression);
+			accessors.put(attribute, AttributeAccessor.forExpression(spel));
 		}
-		return expressions;
+		return accessors;
 	}
 
 }
@@ -51,11 +51,21 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
 
 	@Override
 	public List<T> query(String filter, String sortBy, boolean ascending) {
+		return query(filter, sortBy, ascending, getBaseSqlQuery(), rowMapper);
+	}
+
+	/**
+	 * Query with a different base query and row mapper than usual, e.g. to only select some of the columns.
+	 * 
+	 * @param baseSqlQuery the query to add the where clause to
+	 * @param rowMapper a row mapper for the results of the query
+	 */
+	protected List<T> query(String filter, String sortBy, boolean ascending, String baseSqlQuery, RowMapper<T> rowMapper) {
 		SearchQueryConverter.ProcessedFilter where = queryConverter.convert(filter, sortBy, ascending);
 		logger.debug("Filtering groups with SQL: " + where);
 		List<T> result;
 		try {
-			String completeSql = getBaseSqlQuery() + " where " + where.getSql();
+			String completeSql = baseSqlQuery + " where " + where.getSql();
 			logger.debug("complete sql: " + completeSql + ", params: " + where.getParams());
 			if (pageSize > 0 && pageSize < Integer.MAX_VALUE) {
 				result = pagingListFactory.createJdbcPagingList(completeSql, where.getParams(), rowMapper, pageSize);
@@ -0,0 +1,245 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.user;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.AuditEvent;
+import org.cloudfoundry.identity.uaa.audit.AuditEventType;
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.util.Assert;
+
+/**
+ * A bounded cache in front of another {@link UaaUserDatabase}, so that a user is not loaded from the database every
+ * time they authenticate, are issued a token or present one.
+ *
+ * Users are cached by name and by id, and are evicted when they are older than {@link #setTimeToLiveSeconds(int) the
+ * time to live}, or when the cache is full (least recently used first). A max size of zero (the default) disables
+ * the cache. Users that are not found are not cached.
+ *
+ * Users are removed when a {@link UserChangedEvent} is published for them (e.g. when they are updated or deleted,
+ * their password is changed or their group memberships change) and when their password is changed (via the audit
+ * event). Since the modification date of a user comes from the same cached copy, a token issued before a password
+ * change is rejected as soon as the change is seen here. The time to live bounds how long a change made some other way
+ * (e.g. by another server sharing the database) can go unnoticed.
+ */
+@ManagedResource
+public class CachingUaaUserDatabase implements UaaUserDatabase, ApplicationListener<ApplicationEvent> {
+
+	private static final String NAME_PREFIX = "name:";
+
+	private static final String ID_PREFIX = "id:";
+
+	private final Log logger = LogFactory.getLog(getClass());
+
+	private final UaaUserDatabase delegate;
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > maxSize;
+		}
+	};
+
+	private volatile int maxSize = 0;
+
+	private int timeToLiveSeconds = 60;
+
+	private long generation = 0;
+
+	private AtomicInteger hitCount = new AtomicInteger();
+
+	private AtomicInteger missCount = new AtomicInteger();
+
+	public CachingUaaUserDatabase(UaaUserDatabase delegate) {
+		Assert.notNull(delegate, "A UaaUserDatabase must be provided");
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @param maxSize the maximum number of entries to keep (one per name and one per id a user is loaded by, default
+	 * 0, which disables the cache)
+	 */
+	public void setMaxSize(int maxSize) {
+		synchronized (entries) {
+			this.maxSize = maxSize;
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @param timeToLiveSeconds the maximum time to keep a user (default 60)
+	 */
+	public void setTimeToLiveSeconds(int timeToLiveSeconds) {
+		this.timeToLiveSeconds = timeToLiveSeconds;
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "User Cache Hit Count")
+	public int getHitCount() {
+		return hitCount.get();
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "User Cache Miss Count")
+	public int getMissCount() {
+		return missCount.get();
+	}
+
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "User Cache Size")
+	public int getSize() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	@Override
+	public UaaUser retrieveUserByName(String username) throws UsernameNotFoundException {
+		if (!isEnabled()) {
+			return delegate.retrieveUserByName(username);
+		}
+		String key = NAME_PREFIX + username.toLowerCase(Locale.US);
+		long generation = getGeneration();
+		UaaUser user = get(key);
+		if (user == null) {
+			user = delegate.retrieveUserByName(username);
+			put(key, user, generation);
+		}
+		return user;
+	}
+
+	@Override
+	public UaaUser retrieveUserById(String id) throws UsernameNotFoundException {
+		if (!isEnabled()) {
+			return delegate.retrieveUserById(id);
+		}
+		String key = ID_PREFIX + id;
+		long generation = getGeneration();
+		UaaUser user = get(key);
+		if (user == null) {
+			user = delegate.retrieveUserById(id);
+			put(key, user, generation);
+		}
+		return user;
+	}
+
+	/**
+	 * Remove a user from the cache.
+	 *
+	 * @param userId the id of the user
+	 */
+	public void invalidate(String userId) {
+		synchronized (entries) {
+			generation++;
+			for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+				if (userId.equals(iterator.next().user.getId())) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			generation++;
+			entries.clear();
+		}
+	}
+
+	@Override
+	public void onApplicationEvent(ApplicationEvent event) {
+		if (!isEnabled()) {
+			return;
+		}
+		String userId;
+		if (event instanceof UserChangedEvent) {
+			userId = ((UserChangedEvent) event).getUserId();
+		}
+		else if (event instanceof AbstractUaaEvent) {
+			AuditEvent auditEvent = ((AbstractUaaEvent) event).getAuditEvent();
+			if (auditEvent.getType() != AuditEventType.PasswordChangeSuccess) {
+				return;
+			}
+			userId = auditEvent.getPrincipalId();
+		}
+		else {
+			return;
+		}
+		logger.debug("Removing cached user " + userId);
+		if (userId == null) {
+			clear();
+		}
+		else {
+			invalidate(userId);
+		}
+	}
+
+	private long getGeneration() {
+		synchronized (entries) {
+			return generation;
+		}
+	}
+
+	private UaaUser get(String key) {
+		long now = System.currentTimeMillis();
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.expiresAt > now) {
+				hitCount.incrementAndGet();
+				return entry.user;
+			}
+			if (entry != null) {
+				entries.remove(key);
+			}
+		}
+		missCount.incrementAndGet();
+		return null;
+	}
+
+	private void put(String key, UaaUser user, long generation) {
+		Entry entry = new Entry(user, System.currentTimeMillis() + timeToLiveSeconds * 1000l);
+		synchronized (entries) {
+			if (generation == this.generation) {
+				entries.put(key, entry);
+			}
+		}
+	}
+
+	private static class Entry {
+
+		private final UaaUser user;
+
+		private final long expiresAt;
+
+		private Entry(UaaUser user, long expiresAt) {
+			this.user = user;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+}
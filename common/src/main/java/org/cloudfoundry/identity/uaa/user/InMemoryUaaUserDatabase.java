@@ -42,6 +42,18 @@ public class InMemoryUaaUserDatabase implements UaaUserDatabase {
 
 	}
 
+	@Override
+	public UaaUser retrieveUserById(String id) throws UsernameNotFoundException {
+
+		for (UaaUser u : users.values()) {
+			if (id.equals(u.getId())) {
+				return u;
+			}
+		}
+		throw new UsernameNotFoundException("User " + id + " not found");
+
+	}
+
 	public void updateUser(String username, UaaUser user) throws UsernameNotFoundException {
 
 		if (!users.containsKey(username)) {
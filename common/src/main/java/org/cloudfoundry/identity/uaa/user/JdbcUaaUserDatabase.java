@@ -14,22 +14,35 @@ package org.cloudfoundry.identity.uaa.user;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
-import org.springframework.dao.EmptyResultDataAccessException;
+import org.cloudfoundry.identity.uaa.util.SingleFlight;
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.RowMapper;
-import org.springframework.security.core.GrantedAuthority;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.security.core.authority.AuthorityUtils;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
 /**
+ * Loads users, with their authorities, in a single query.
+ *
+ * The user queries select the {@link #USER_FIELDS_WITH_AUTHORITIES}: the {@link #USER_FIELDS} and then a column of
+ * authorities, which may hold a comma-separated list. A query may return several rows for the same user (e.g. one per
+ * group the user is a member of, if it joins the group membership), in which case the authorities from all of them
+ * are combined. A query that only selects the {@link #USER_FIELDS} still works: the authorities are then loaded with
+ * a second query for each user, as in earlier versions.
+ *
  * @author Luke Taylor
  * @author Dave Syer
  * @author Vidya Valmikinathan
@@ -38,25 +51,52 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
 
 	public static final String USER_FIELDS = "id,username,password,email,givenName,familyName,created,lastModified ";
 
-	public static final String DEFAULT_USER_BY_USERNAME_QUERY = "select " + USER_FIELDS + "from users "
+	public static final String USER_FIELDS_WITH_AUTHORITIES = "id,username,password,email,givenName,familyName,created,lastModified,authorities ";
+
+	public static final String DEFAULT_USER_BY_USERNAME_QUERY = "select " + USER_FIELDS_WITH_AUTHORITIES + "from users "
 			+ "where lower(username) = ? and active=?";
 
+	public static final String DEFAULT_USER_BY_ID_QUERY = "select " + USER_FIELDS_WITH_AUTHORITIES + "from users "
+			+ "where id = ? and active=?";
+
+	/**
+	 * @deprecated the authorities are selected with the user. This query is only used for user queries that do not
+	 * select them, and no {@link #setUserAuthoritiesQuery(String) authorities query} is set.
+	 */
+	@Deprecated
 	public static final String DEFAULT_USER_AUTHORITIES_QUERY = "select authorities from users where id = ?";
 
-	private String userAuthoritiesQuery = DEFAULT_USER_AUTHORITIES_QUERY;
+	private static final int AUTHORITIES_COLUMN = 9;
+
+	private String userAuthoritiesQuery = null;
 
 	private String userByUserNameQuery = DEFAULT_USER_BY_USERNAME_QUERY;
 
+	private String userByIdQuery = DEFAULT_USER_BY_ID_QUERY;
+
 	private JdbcTemplate jdbcTemplate;
 
-	private final RowMapper<UaaUser> mapper = new UaaUserRowMapper();
+	private final ResultSetExtractor<List<UaaUser>> extractor = new UaaUserExtractor();
 
 	private Set<String> defaultAuthorities = new HashSet<String>();
 
+	// Concurrent requests for the same user (e.g. a burst of logins) share one query and one connection
+	private final SingleFlight<String, UaaUser> userByNameLoads = new SingleFlight<String, UaaUser>();
+
+	private final SingleFlight<String, UaaUser> userByIdLoads = new SingleFlight<String, UaaUser>();
+
 	public void setUserByUserNameQuery(String userByUserNameQuery) {
 		this.userByUserNameQuery = userByUserNameQuery;
 	}
 
+	public void setUserByIdQuery(String userByIdQuery) {
+		this.userByIdQuery = userByIdQuery;
+	}
+
+	/**
+	 * @param userAuthoritiesQuery an optional separate query for the authorities of a user (by id), which costs an
+	 * extra round trip for every user loaded. If it is set the authorities selected with the user are ignored.
+	 */
 	public void setUserAuthoritiesQuery(String userAuthoritiesQuery) {
 		this.userAuthoritiesQuery = userAuthoritiesQuery;
 	}
@@ -71,34 +111,125 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
 	}
 
 	@Override
-	public UaaUser retrieveUserByName(String username) throws UsernameNotFoundException {
-		try {
-			return jdbcTemplate.queryForObject(userByUserNameQuery, mapper, username.toLowerCase(Locale.US), true);
+	public UaaUser retrieveUserByName(final String username) throws UsernameNotFoundException {
+		final String name = username.toLowerCase(Locale.US);
+		return userByNameLoads.execute(name, new Callable<UaaUser>() {
+			@Override
+			public UaaUser call() throws Exception {
+				return getSingleUser(jdbcTemplate.query(userByUserNameQuery, extractor, name, true), username);
+			}
+		});
+	}
+
+	@Override
+	public UaaUser retrieveUserById(final String id) throws UsernameNotFoundException {
+		return userByIdLoads.execute(id, new Callable<UaaUser>() {
+			@Override
+			public UaaUser call() throws Exception {
+				return getSingleUser(jdbcTemplate.query(userByIdQuery, extractor, id, true), id);
+			}
+		});
+	}
+
+	private UaaUser getSingleUser(List<UaaUser> users, String key) {
+		if (users.isEmpty()) {
+			throw new UsernameNotFoundException(key);
 		}
-		catch (EmptyResultDataAccessException e) {
-			throw new UsernameNotFoundException(username);
+		if (users.size() > 1) {
+			throw new IncorrectResultSizeDataAccessException(1, users.size());
 		}
+		return users.get(0);
 	}
 
-	private final class UaaUserRowMapper implements RowMapper<UaaUser> {
-		@Override
-		public UaaUser mapRow(ResultSet rs, int rowNum) throws SQLException {
-			String id = rs.getString(1);
-			List<GrantedAuthority> authorities = AuthorityUtils.commaSeparatedStringToAuthorityList(getAuthorities(id));
-			return new UaaUser(id, rs.getString(2), rs.getString(3), rs.getString(4),
-					authorities, rs.getString(5), rs.getString(6),
-					rs.getTimestamp(7), rs.getTimestamp(8));
+	@SuppressWarnings("deprecation")
+	private Set<String> getAuthorities(String userId, Set<String> selected, boolean authoritiesSelected) {
+		Set<String> authorities = new HashSet<String>(defaultAuthorities);
+		String query = userAuthoritiesQuery;
+		if (query == null && !authoritiesSelected) {
+			query = DEFAULT_USER_AUTHORITIES_QUERY;
+		}
+		if (query == null) {
+			authorities.addAll(selected);
+		}
+		else {
+			for (String value : jdbcTemplate.queryForList(query, String.class, userId)) {
+				addAuthorities(authorities, value);
+			}
+		}
+		return authorities;
+	}
+
+	private static void addAuthorities(Set<String> authorities, String value) {
+		if (value != null) {
+			authorities.addAll(Arrays.asList(StringUtils.tokenizeToStringArray(value, ",")));
 		}
+	}
 
-		private String getAuthorities(final String userId) {
-			List<String> authorities;
-			try {
-				authorities = jdbcTemplate.queryForList(userAuthoritiesQuery, String.class, userId);
-			} catch (EmptyResultDataAccessException ex) {
-				authorities = Collections.<String>emptyList();
+	private final class UaaUserExtractor implements ResultSetExtractor<List<UaaUser>> {
+		@Override
+		public List<UaaUser> extractData(ResultSet rs) throws SQLException {
+			Map<String, UaaUserRow> rows = new LinkedHashMap<String, UaaUserRow>();
+			boolean authoritiesSelected = rs.getMetaData().getColumnCount() >= AUTHORITIES_COLUMN;
+			while (rs.next()) {
+				String id = rs.getString(1);
+				UaaUserRow row = rows.get(id);
+				if (row == null) {
+					row = new UaaUserRow(rs, authoritiesSelected);
+					rows.put(id, row);
+				}
+				if (authoritiesSelected) {
+					addAuthorities(row.authorities, rs.getString(AUTHORITIES_COLUMN));
+				}
+			}
+			List<UaaUser> users = new ArrayList<UaaUser>();
+			for (UaaUserRow row : rows.values()) {
+				users.add(row.toUser());
 			}
-			authorities.addAll(defaultAuthorities);
-			return StringUtils.collectionToCommaDelimitedString(new HashSet<String>(authorities));
+			return users;
+		}
+	}
+
+	private final class UaaUserRow {
+
+		private final String id;
+
+		private final String username;
+
+		private final String password;
+
+		private final String email;
+
+		private final String givenName;
+
+		private final String familyName;
+
+		private final Date created;
+
+		private final Date modified;
+
+		private final Set<String> authorities = new HashSet<String>();
+
+		private final boolean authoritiesSelected;
+
+		private UaaUserRow(ResultSet rs, boolean authoritiesSelected) throws SQLException {
+			this.authoritiesSelected = authoritiesSelected;
+			id = rs.getString(1);
+			username = rs.getString(2);
+			password = rs.getString(3);
+			email = rs.getString(4);
+			givenName = rs.getString(5);
+			familyName = rs.getString(6);
+			created = rs.getTimestamp(7);
+			modified = rs.getTimestamp(8);
 		}
+
+		private UaaUser toUser() {
+			String authorities = StringUtils.collectionToCommaDelimitedString(getAuthorities(id, this.authorities,
+					authoritiesSelected));
+			return new UaaUser(id, username, password, email,
+					AuthorityUtils.commaSeparatedStringToAuthorityList(authorities), givenName, familyName, created,
+					modified);
+		}
+
 	}
 }
@@ -19,4 +19,6 @@ import org.springframework.security.core.userdetails.UsernameNotFoundException;
  */
 public interface UaaUserDatabase {
 	UaaUser retrieveUserByName(String username) throws UsernameNotFoundException;
+
+	UaaUser retrieveUserById(String id) throws UsernameNotFoundException;
 }
@@ -0,0 +1,47 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.user;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published when the data a {@link UaaUserDatabase} loads for a user (including their authorities) is changed, so
+ * that copies of it (e.g. in a {@link CachingUaaUserDatabase}) can be discarded.
+ */
+public class UserChangedEvent extends ApplicationEvent {
+
+	private final String userId;
+
+	/**
+	 * A single user changed.
+	 */
+	public UserChangedEvent(Object source, String userId) {
+		super(source);
+		this.userId = userId;
+	}
+
+	/**
+	 * Any number of users changed (e.g. a group they are members of was renamed).
+	 */
+	public UserChangedEvent(Object source) {
+		this(source, null);
+	}
+
+	/**
+	 * @return the id of the user that changed, or null if it was not a single user
+	 */
+	public String getUserId() {
+		return userId;
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces concurrent loads of the same key: the first caller runs the load and any caller that asks for the same key
+ * while it is in progress waits for it and gets the same result (or exception), instead of running the load again.
+ * Nothing is remembered once the load completes, so this is not a cache: a caller that arrives afterwards runs a new
+ * load.
+ *
+ * All the callers get the value that was loaded, passed through {@link #share(Object)}. If values are mutable,
+ * override it to give each caller its own copy.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class SingleFlight<K, V> {
+
+	private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	private final AtomicInteger coalescedCount = new AtomicInteger();
+
+	/**
+	 * Load the value for a key, or wait for a load of the same key that is already in progress.
+	 *
+	 * @param key the key
+	 * @param loader the load to run if there is none in progress for the key
+	 * @return the loaded value
+	 */
+	public V execute(K key, Callable<V> loader) {
+		FutureTask<V> task = new FutureTask<V>(loader);
+		FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+		if (existing != null) {
+			coalescedCount.incrementAndGet();
+			return share(getResult(existing));
+		}
+		try {
+			task.run();
+			return share(getResult(task));
+		}
+		finally {
+			inFlight.remove(key, task);
+		}
+	}
+
+	/**
+	 * @return the number of callers that shared a load with another one
+	 */
+	public int getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * Hook for the value handed to each caller. The default is to return it unchanged, so all the callers sharing a
+	 * load get the same instance.
+	 *
+	 * @param value the loaded value
+	 * @return the value to return to a caller
+	 */
+	protected V share(V value) {
+		return value;
+	}
+
+	private V getResult(FutureTask<V> task) {
+		try {
+			return task.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a concurrent load", e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException("Could not load value", cause);
+		}
+	}
+
+}
@@ -37,6 +37,9 @@ CREATE TABLE sec_audit (
    created TIMESTAMP default current_timestamp
 ) ;
 
+CREATE INDEX audit_principal ON sec_audit (principal_id);
+CREATE INDEX audit_created ON sec_audit (created);
+
 CREATE TABLE oauth_client_details (
   client_id VARCHAR(256) PRIMARY KEY,
   resource_ids VARCHAR(1024),
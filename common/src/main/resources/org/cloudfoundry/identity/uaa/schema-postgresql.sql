@@ -37,6 +37,9 @@ CREATE TABLE SEC_AUDIT (
    created TIMESTAMP default current_timestamp
 ) ;
 
+CREATE INDEX audit_principal ON SEC_AUDIT (principal_id);
+CREATE INDEX audit_created ON SEC_AUDIT (created);
+
 CREATE TABLE OAUTH_CLIENT_DETAILS (
   client_id VARCHAR(256) PRIMARY KEY,
   resource_ids VARCHAR(1024),
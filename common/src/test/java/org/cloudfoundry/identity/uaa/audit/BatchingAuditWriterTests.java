@@ -0,0 +1,128 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.audit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.audit.BatchingAuditWriter.OverflowPolicy;
+import org.junit.After;
+import org.junit.Test;
+
+public class BatchingAuditWriterTests {
+
+	private List<List<AuditEvent>> batches = new ArrayList<List<AuditEvent>>();
+
+	private CountDownLatch release = new CountDownLatch(0);
+
+	private BatchingAuditWriter.Sink sink = new BatchingAuditWriter.Sink() {
+		@Override
+		public void write(List<AuditEvent> events) {
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (batches) {
+				batches.add(new ArrayList<AuditEvent>(events));
+				batches.notifyAll();
+			}
+		}
+	};
+
+	private BatchingAuditWriter writer;
+
+	@After
+	public void close() {
+		release = new CountDownLatch(0);
+		if (writer != null) {
+			writer.close(1000);
+		}
+	}
+
+	@Test
+	public void testEventsWrittenInBatches() throws Exception {
+		writer = new BatchingAuditWriter(sink, 100, 2, 10000, OverflowPolicy.BLOCK);
+		for (int i = 0; i < 4; i++) {
+			writer.add(createEvent(i));
+		}
+		waitForEvents(4);
+		assertEquals(2, batches.size());
+		assertEquals(2, batches.get(0).size());
+	}
+
+	@Test
+	public void testEventsWrittenAfterFlushInterval() throws Exception {
+		writer = new BatchingAuditWriter(sink, 100, 10, 50, OverflowPolicy.BLOCK);
+		writer.add(createEvent(0));
+		waitForEvents(1);
+		assertEquals(1, batches.size());
+	}
+
+	@Test
+	public void testEventsWrittenOnClose() throws Exception {
+		writer = new BatchingAuditWriter(sink, 100, 10, 10000, OverflowPolicy.BLOCK);
+		writer.add(createEvent(0));
+		writer.add(createEvent(1));
+		writer.close(1000);
+		assertEquals(2, countEvents());
+	}
+
+	@Test
+	public void testEventsDroppedWhenQueueFull() throws Exception {
+		release = new CountDownLatch(1);
+		writer = new BatchingAuditWriter(sink, 1, 1, 0, OverflowPolicy.DROP);
+		// One event being written (blocked) and one queued
+		writer.add(createEvent(0));
+		while (writer.getQueueSize() > 0) {
+			Thread.sleep(10);
+		}
+		writer.add(createEvent(1));
+		writer.add(createEvent(2));
+		assertEquals(1, writer.getOverflowCount());
+		release.countDown();
+		waitForEvents(2);
+	}
+
+	private void waitForEvents(int count) throws InterruptedException {
+		long timeout = System.currentTimeMillis() + 5000;
+		synchronized (batches) {
+			while (countEvents() < count && System.currentTimeMillis() < timeout) {
+				batches.wait(100);
+			}
+		}
+		assertTrue(countEvents() >= count);
+	}
+
+	private int countEvents() {
+		synchronized (batches) {
+			int count = 0;
+			for (List<AuditEvent> batch : batches) {
+				count += batch.size();
+			}
+			return count;
+		}
+	}
+
+	private AuditEvent createEvent(int i) {
+		return new AuditEvent(AuditEventType.UserAuthenticationFailure, "" + i, "1.1.1.1", "joe",
+				System.currentTimeMillis());
+	}
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.audit;
+
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationFailure;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationSuccess;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.cloudfoundry.identity.uaa.authentication.manager.PeriodLockoutPolicy;
+import org.cloudfoundry.identity.uaa.test.NullSafeSystemProfileValueSource;
+import org.cloudfoundry.identity.uaa.user.UaaAuthority;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.IfProfileValue;
+import org.springframework.test.annotation.ProfileValueSourceConfiguration;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+@ContextConfiguration("classpath:/test-data-source.xml")
+@RunWith(SpringJUnit4ClassRunner.class)
+@IfProfileValue(name = "spring.profiles.active", values = { "", "hsqldb", "test,postgresql", "test,mysql", "test,oracle" })
+@ProfileValueSourceConfiguration(NullSafeSystemProfileValueSource.class)
+public class CachingFailedLoginCountingAuditServiceTests {
+
+	@Autowired
+	private DataSource dataSource;
+
+	private JdbcTemplate template;
+
+	private CachingFailedLoginCountingAuditService auditService;
+
+	@Before
+	public void createService() throws Exception {
+		template = new JdbcTemplate(dataSource);
+		template.execute("DELETE FROM sec_audit WHERE principal_id='1' or principal_id='2'");
+		auditService = new CachingFailedLoginCountingAuditService(dataSource);
+		auditService.setPurgeIntervalSeconds(0);
+		auditService.afterPropertiesSet();
+	}
+
+	@Test
+	public void failuresWrittenThroughAndFoundInMemory() throws Exception {
+		auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+		auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+		assertEquals(2, template.queryForInt("select count(*) from sec_audit where principal_id='1'"));
+		template.execute("DELETE FROM sec_audit WHERE principal_id='1'");
+		List<AuditEvent> events = auditService.find("1", 0);
+		assertEquals(2, events.size());
+		assertEquals("joe", events.get(0).getData());
+		assertEquals(0, auditService.find("2", 0).size());
+	}
+
+	@Test
+	public void findOnlyReturnsEventsWithinRequestedPeriod() throws Exception {
+		long now = System.currentTimeMillis();
+		auditService.log(new AuditEvent(UserAuthenticationFailure, "1", "1.1.1.1", "joe", now - 3600 * 1000));
+		auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+		assertEquals(1, auditService.find("1", now - 120 * 1000).size());
+	}
+
+	@Test
+	public void successResetsFailures() throws Exception {
+		auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+		auditService.log(getAuditEvent(UserAuthenticationSuccess, "1"));
+		assertEquals(0, auditService.find("1", 0).size());
+		assertEquals(0, template.queryForInt("select count(*) from sec_audit where principal_id='1'"));
+	}
+
+	@Test
+	public void failuresLoadedOnStartup() throws Exception {
+		new JdbcFailedLoginCountingAuditService(dataSource).log(getAuditEvent(UserAuthenticationFailure, "1"));
+		auditService = new CachingFailedLoginCountingAuditService(dataSource);
+		auditService.setPurgeIntervalSeconds(0);
+		auditService.afterPropertiesSet();
+		template.execute("DELETE FROM sec_audit WHERE principal_id='1'");
+		assertEquals(1, auditService.find("1", 0).size());
+	}
+
+	@Test
+	public void evictedUsersFoundInDatabase() throws Exception {
+		auditService.setMaxUsers(1);
+		auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+		for (int i = 0; i < 20; i++) {
+			auditService.log(getAuditEvent(UserAuthenticationSuccess, "other" + i));
+			auditService.log(getAuditEvent(UserAuthenticationFailure, "other" + i));
+		}
+		assertEquals(1, auditService.find("1", 0).size());
+		template.execute("DELETE FROM sec_audit WHERE principal_id like 'other%'");
+	}
+
+	@Test
+	public void evictedUserStillLockedOut() throws Exception {
+		auditService.setMaxUsers(1);
+		PeriodLockoutPolicy policy = new PeriodLockoutPolicy(auditService);
+		policy.setLockoutAfterFailures(5);
+		UaaUser user = new UaaUser("1", "joe", "", "joe@test.org", UaaAuthority.USER_AUTHORITIES, null, null, null,
+				null);
+		for (int i = 0; i < 4; i++) {
+			auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+		}
+		assertTrue(policy.isAllowed(user, null));
+		// Some of these share a stripe with user 1 and push it out
+		for (int i = 0; i < 50; i++) {
+			auditService.log(getAuditEvent(UserAuthenticationFailure, "other" + i));
+		}
+		auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+		assertEquals(5, auditService.find("1", 0).size());
+		assertFalse(policy.isAllowed(user, null));
+		template.execute("DELETE FROM sec_audit WHERE principal_id like 'other%'");
+	}
+
+	@Test
+	public void databaseOnlyUsedForSavePeriodAfterEviction() throws Exception {
+		auditService.setSaveDataPeriodMillis(500);
+		auditService.setMaxUsers(1);
+		auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+		for (int i = 0; i < 50; i++) {
+			auditService.log(getAuditEvent(UserAuthenticationFailure, "other" + i));
+		}
+		// Dropped from memory but still found in the database
+		assertEquals(1, auditService.find("1", 0).size());
+		Thread.sleep(600);
+		// The failure has expired, so the database is no longer consulted
+		assertEquals(0, auditService.find("1", 0).size());
+		template.execute("DELETE FROM sec_audit WHERE principal_id like 'other%'");
+	}
+
+	private AuditEvent getAuditEvent(AuditEventType type, String principal) {
+		return new AuditEvent(type, principal, "1.1.1.1", "joe", System.currentTimeMillis());
+	}
+
+}
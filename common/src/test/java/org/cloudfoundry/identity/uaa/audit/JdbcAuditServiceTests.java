@@ -93,6 +93,18 @@ public class JdbcAuditServiceTests {
 		assertEquals(1, events.size());
 	}
 
+	@Test
+	public void asyncEventsWrittenOnDestroy() throws Exception {
+		auditService.setAsync(true);
+		auditService.setFlushIntervalMillis(10000);
+		auditService.afterPropertiesSet();
+		auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"));
+		auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientB"));
+		auditService.destroy();
+		assertEquals(1, auditService.find("clientA", 0).size());
+		assertEquals(1, auditService.find("clientB", 0).size());
+	}
+
 	private AuditEvent getAuditEvent(AuditEventType type, String principal) {
 		return getAuditEvent(type, principal, null);
 	}
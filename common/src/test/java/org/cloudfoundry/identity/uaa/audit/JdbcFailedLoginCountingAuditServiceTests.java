@@ -22,6 +22,7 @@ import java.util.List;
 
 import javax.sql.DataSource;
 
+import org.cloudfoundry.identity.uaa.audit.BatchingAuditWriter.OverflowPolicy;
 import org.cloudfoundry.identity.uaa.test.NullSafeSystemProfileValueSource;
 import org.junit.Before;
 import org.junit.Test;
@@ -72,13 +73,38 @@ public class JdbcFailedLoginCountingAuditServiceTests {
 	}
 
 	@Test
-	public void userAuthenticationFailureDeletesOldData() throws Exception {
+	public void lockoutEventsNeverDroppedWhenAsync() throws Exception {
+		auditService.setOverflowPolicy(OverflowPolicy.DROP);
+		assertEquals(OverflowPolicy.BLOCK, auditService.getOverflowPolicy(getAuditEvent(UserAuthenticationFailure, "1", "joe")));
+		assertEquals(OverflowPolicy.BLOCK, auditService.getOverflowPolicy(getAuditEvent(UserAuthenticationSuccess, "1", "joe")));
+		assertEquals(OverflowPolicy.BLOCK, auditService.getOverflowPolicy(getAuditEvent(PasswordChangeSuccess, "1", "joe")));
+	}
+
+	@Test
+	public void purgeDeletesOldData() throws Exception {
 		long now = System.currentTimeMillis();
 		auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
 		assertEquals(1, template.queryForInt("select count(*) from sec_audit where principal_id='1'"));
 		// Set the created column to 3 hours past
 		template.update("update sec_audit set created=?", new Timestamp(now - 3*3600*1000));
 		auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+		assertEquals(2, template.queryForInt("select count(*) from sec_audit where principal_id='1'"));
+		auditService.purge();
+		assertEquals(1, template.queryForInt("select count(*) from sec_audit where principal_id='1'"));
+	}
+
+	@Test
+	public void purgeDeletesOldDataInChunks() throws Exception {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 5; i++) {
+			auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+			// Set the created column to 3 hours past (a different time for each row)
+			template.update("update sec_audit set created=? where principal_id='1' and created > ?", new Timestamp(now
+					- 3 * 3600 * 1000 - i * 1000), new Timestamp(now - 3600 * 1000));
+		}
+		auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+		auditService.setPurgeChunkSize(2);
+		auditService.purge();
 		assertEquals(1, template.queryForInt("select count(*) from sec_audit where principal_id='1'"));
 	}
 
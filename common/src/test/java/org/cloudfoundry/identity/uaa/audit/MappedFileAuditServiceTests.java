@@ -0,0 +1,131 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.audit;
+
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationFailure;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationSuccess;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedFileAuditServiceTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+
+	private MappedFileAuditService auditService;
+
+	@Before
+	public void createService() throws Exception {
+		directory = new File(folder.getRoot(), "audit");
+		auditService = createService(64 * 1024, 3);
+	}
+
+	@After
+	public void closeService() throws Exception {
+		auditService.destroy();
+	}
+
+	@Test
+	public void eventsFoundMostRecentFirst() throws Exception {
+		auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+		auditService.log(getAuditEvent(UserAuthenticationSuccess, "1", "joe"));
+		auditService.log(getAuditEvent(UserAuthenticationFailure, "2", "bob"));
+		List<AuditEvent> events = auditService.find("1", 0);
+		assertEquals(2, events.size());
+		assertEquals(UserAuthenticationSuccess, events.get(0).getType());
+		assertEquals("joe", events.get(0).getData());
+		assertEquals("1.1.1.1", events.get(0).getOrigin());
+		assertEquals(0, auditService.find("3", 0).size());
+	}
+
+	@Test
+	public void findOnlyReturnsEventsWithinRequestedPeriod() throws Exception {
+		long now = System.currentTimeMillis();
+		auditService.log(new AuditEvent(UserAuthenticationFailure, "1", "1.1.1.1", "joe", now - 3600 * 1000));
+		auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+		assertEquals(1, auditService.find("1", now - 120 * 1000).size());
+	}
+
+	@Test
+	public void nullValuesAreKept() throws Exception {
+		auditService.log(new AuditEvent(UserAuthenticationFailure, "1", null, null, System.currentTimeMillis()));
+		AuditEvent event = auditService.find("1", 0).get(0);
+		assertNull(event.getOrigin());
+		assertNull(event.getData());
+	}
+
+	@Test
+	public void segmentsRolledOverAndOldOnesDeleted() throws Exception {
+		String data = new String(new char[1000]).replace('\0', 'x');
+		for (int i = 0; i < 300; i++) {
+			auditService.log(getAuditEvent(UserAuthenticationFailure, "1", data));
+		}
+		assertEquals(3, auditService.getSegmentCount());
+		assertEquals(3, MappedFileAuditService.listSegments(directory).length);
+		List<AuditEvent> events = auditService.find("1", 0);
+		// Only the events in the remaining segments can be found
+		assertTrue(events.size() > 0);
+		assertTrue(events.size() < 300);
+	}
+
+	@Test
+	public void indexRebuiltOnRestart() throws Exception {
+		auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+		auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+		auditService.destroy();
+		auditService = createService(64 * 1024, 3);
+		assertEquals(2, auditService.find("1", 0).size());
+		auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+		assertEquals(3, auditService.find("1", 0).size());
+		assertEquals(1, auditService.getSegmentCount());
+	}
+
+	@Test
+	public void segmentsExportedAsJson() throws Exception {
+		auditService.log(new AuditEvent(UserAuthenticationFailure, "1", "1.1.1.1", "joe", 1000L));
+		auditService.log(new AuditEvent(UserAuthenticationSuccess, "1", "1.1.1.1", "joe", 2000L));
+		StringWriter writer = new StringWriter();
+		int count = new AuditJournalExporter().export(MappedFileAuditService.listSegments(directory)[0], writer);
+		assertEquals(2, count);
+		String[] lines = writer.toString().split("\n");
+		assertEquals(
+				"{\"type\":\"UserAuthenticationFailure\",\"principalId\":\"1\",\"origin\":\"1.1.1.1\",\"data\":\"joe\",\"time\":1000}",
+				lines[0]);
+	}
+
+	private MappedFileAuditService createService(int segmentSize, int maxSegments) throws Exception {
+		MappedFileAuditService service = new MappedFileAuditService(directory);
+		service.setSegmentSize(segmentSize);
+		service.setMaxSegments(maxSegments);
+		service.afterPropertiesSet();
+		return service;
+	}
+
+	private AuditEvent getAuditEvent(AuditEventType type, String principal, String data) {
+		return new AuditEvent(type, principal, "1.1.1.1", data, System.currentTimeMillis());
+	}
+
+}
@@ -12,10 +12,14 @@
  */
 package org.cloudfoundry.identity.uaa.authentication;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
+
+import org.cloudfoundry.identity.uaa.authentication.manager.PasswordEncoderBusyException;
 import org.junit.Test;
 import org.springframework.mock.web.MockFilterChain;
 import org.springframework.mock.web.MockHttpServletRequest;
@@ -42,4 +46,25 @@ public class AuthzAuthenticationFilterTests {
 		filter.doFilter(request, response, new MockFilterChain());
 		
 	}
+
+	@Test
+	public void busyPasswordEncoderReturnsServiceUnavailable() throws Exception {
+
+		String msg = "{ \"username\":\"marissa\", \"password\":\"koala\"}";
+
+		AuthenticationManager am = mock(AuthenticationManager.class);
+		when(am.authenticate(any(AuthzAuthenticationRequest.class))).thenThrow(
+				new PasswordEncoderBusyException("Busy"));
+		AuthzAuthenticationFilter filter = new AuthzAuthenticationFilter(am);
+		filter.setParameterNames(Arrays.asList("credentials"));
+
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/oauth/authorize");
+		request.setParameter("credentials", msg);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, new MockFilterChain());
+		assertEquals(503, response.getStatus());
+		assertEquals("1", response.getHeader("Retry-After"));
+
+	}
 }
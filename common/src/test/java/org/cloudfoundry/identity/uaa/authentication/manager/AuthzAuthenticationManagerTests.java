@@ -89,6 +89,29 @@ public class AuthzAuthenticationManagerTests {
 		mgr.authenticate(createAuthRequest("auser","password"));
 	}
 
+	@Test
+	public void successfulAuthenticationRehashesPassword() throws Exception {
+		when(db.retrieveUserByName("auser")).thenReturn(user);
+		PasswordRehasher rehasher = mock(PasswordRehasher.class);
+		mgr.setPasswordRehasher(rehasher);
+		mgr.authenticate(createAuthRequest("auser", "password"));
+		verify(rehasher).rehashIfNeeded(user, "password");
+	}
+
+	@Test
+	public void invalidPasswordDoesNotRehashPassword() throws Exception {
+		when(db.retrieveUserByName("auser")).thenReturn(user);
+		PasswordRehasher rehasher = mock(PasswordRehasher.class);
+		mgr.setPasswordRehasher(rehasher);
+		try {
+			mgr.authenticate(createAuthRequest("auser", "wrongpassword"));
+			fail();
+		}
+		catch (BadCredentialsException expected) {
+		}
+		verifyZeroInteractions(rehasher);
+	}
+
 	@Test
 	public void missingUserPublishesNotFoundEvent() {
 		when(db.retrieveUserByName(eq("aguess"))).thenThrow(new UsernameNotFoundException("mocked"));
@@ -0,0 +1,101 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.authentication.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+public class BoundedPasswordEncoderTests {
+
+	private CountDownLatch started = new CountDownLatch(1);
+
+	private CountDownLatch release = new CountDownLatch(1);
+
+	private PasswordEncoder delegate = new PasswordEncoder() {
+		@Override
+		public String encode(CharSequence rawPassword) {
+			return "{" + rawPassword + "}";
+		}
+
+		@Override
+		public boolean matches(CharSequence rawPassword, String encodedPassword) {
+			started.countDown();
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return encodedPassword.equals(encode(rawPassword));
+		}
+	};
+
+	private BoundedPasswordEncoder encoder = new BoundedPasswordEncoder(delegate, 1, 1);
+
+	@After
+	public void close() {
+		release.countDown();
+		encoder.destroy();
+	}
+
+	@Test
+	public void testDelegates() {
+		release.countDown();
+		assertEquals("{koala}", encoder.encode("koala"));
+		assertTrue(encoder.matches("koala", "{koala}"));
+		assertFalse(encoder.matches("koala", "{wombat}"));
+		assertEquals(3, encoder.getHashCount());
+		assertEquals(0, encoder.getRejectedCount());
+	}
+
+	@Test
+	public void testRejectedWhenSaturated() throws Exception {
+		// One request running and one waiting fill the pool and the queue
+		startMatching();
+		started.await(5, TimeUnit.SECONDS);
+		startMatching();
+		while (encoder.getQueueDepth() == 0) {
+			Thread.sleep(10);
+		}
+		try {
+			encoder.matches("koala", "{koala}");
+			fail("Expected PasswordEncoderBusyException");
+		}
+		catch (PasswordEncoderBusyException e) {
+			// expected
+		}
+		assertEquals(1, encoder.getRejectedCount());
+		release.countDown();
+	}
+
+	private void startMatching() {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				encoder.matches("koala", "{koala}");
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+}
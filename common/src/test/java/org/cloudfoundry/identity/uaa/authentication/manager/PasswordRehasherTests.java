@@ -0,0 +1,91 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.authentication.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.cloudfoundry.identity.uaa.user.UserChangedEvent;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+public class PasswordRehasherTests {
+
+	// "password" with strength 10
+	private static final String PASSWORD = "$2a$10$HoWPAUn9zqmmb0b.2TBZWe6cjQcxyo8TDwTX.5G46PBL347N3/0zO";
+
+	private JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
+	private ApplicationEventPublisher publisher = mock(ApplicationEventPublisher.class);
+
+	private PasswordRehasher rehasher = new PasswordRehasher(jdbcTemplate, 4);
+
+	private UaaUser user = new UaaUser("auser", PASSWORD, "auser@blah.com", "A", "User");
+
+	@Before
+	public void init() {
+		rehasher.setTaskExecutor(new SyncTaskExecutor());
+		rehasher.setApplicationEventPublisher(publisher);
+	}
+
+	@Test
+	public void testRehashNeededForOtherStrength() {
+		assertTrue(rehasher.isRehashNeeded(PASSWORD));
+		assertFalse(new PasswordRehasher(jdbcTemplate, 10).isRehashNeeded(PASSWORD));
+	}
+
+	@Test
+	public void testRehashNotNeededForOtherFormats() {
+		assertFalse(rehasher.isRehashNeeded("password"));
+		assertFalse(rehasher.isRehashNeeded(null));
+	}
+
+	@Test
+	public void testRehashStoresNewHash() {
+		when(jdbcTemplate.update(anyString(), any(), eq("NaN"), eq(PASSWORD))).thenReturn(1);
+		rehasher.rehashIfNeeded(user, "password");
+		verify(jdbcTemplate).update(anyString(), any(), eq("NaN"), eq(PASSWORD));
+		verify(publisher).publishEvent(isA(UserChangedEvent.class));
+		assertEquals(1, rehasher.getRehashCount());
+	}
+
+	@Test
+	public void testRehashNotStoredIfPasswordChanged() {
+		when(jdbcTemplate.update(anyString(), any(), eq("NaN"), eq(PASSWORD))).thenReturn(0);
+		rehasher.rehashIfNeeded(user, "password");
+		verifyZeroInteractions(publisher);
+		assertEquals(0, rehasher.getRehashCount());
+	}
+
+	@Test
+	public void testNoRehashAtTargetStrength() {
+		rehasher = new PasswordRehasher(jdbcTemplate, 10);
+		rehasher.setTaskExecutor(new SyncTaskExecutor());
+		rehasher.rehashIfNeeded(user, "password");
+		verifyZeroInteractions(jdbcTemplate);
+	}
+
+}
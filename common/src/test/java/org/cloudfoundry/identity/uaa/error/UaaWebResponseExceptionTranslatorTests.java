@@ -0,0 +1,86 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.error;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cloudfoundry.identity.uaa.authentication.manager.PasswordEncoderBusyException;
+import org.junit.Test;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+import org.springframework.security.oauth2.provider.BaseClientDetails;
+import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest;
+import org.springframework.security.oauth2.provider.InMemoryClientDetailsService;
+import org.springframework.security.oauth2.provider.endpoint.TokenEndpoint;
+import org.springframework.security.oauth2.provider.password.ResourceOwnerPasswordTokenGranter;
+import org.springframework.security.oauth2.provider.token.AuthorizationServerTokenServices;
+
+public class UaaWebResponseExceptionTranslatorTests {
+
+	private UaaWebResponseExceptionTranslator translator = new UaaWebResponseExceptionTranslator();
+
+	@Test
+	public void passwordGrantWithBusyPasswordEncoderIsServiceUnavailable() throws Exception {
+		AuthenticationManager authenticationManager = mock(AuthenticationManager.class);
+		when(authenticationManager.authenticate(any(Authentication.class))).thenThrow(
+				new PasswordEncoderBusyException("Busy"));
+		InMemoryClientDetailsService clientDetailsService = new InMemoryClientDetailsService();
+		clientDetailsService.setClientDetailsStore(Collections.singletonMap("app", new BaseClientDetails("app", "",
+				"read", "password", "")));
+		ResourceOwnerPasswordTokenGranter granter = new ResourceOwnerPasswordTokenGranter(authenticationManager,
+				mock(AuthorizationServerTokenServices.class), clientDetailsService);
+
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("client_id", "app");
+		parameters.put("grant_type", "password");
+		parameters.put("username", "marissa");
+		parameters.put("password", "koala");
+		try {
+			granter.grant("password", new DefaultAuthorizationRequest(parameters));
+			fail("Expected PasswordEncoderBusyException");
+		}
+		catch (PasswordEncoderBusyException e) {
+			ResponseEntity<OAuth2Exception> result = translator.translate(e);
+			assertEquals(503, result.getStatusCode().value());
+			assertEquals("1", result.getHeaders().getFirst("Retry-After"));
+			assertEquals("temporarily_unavailable", result.getBody().getOAuth2ErrorCode());
+		}
+	}
+
+	@Test
+	public void tokenEndpointUsesTheTranslator() throws Exception {
+		TokenEndpoint endpoint = new TokenEndpoint();
+		new EndpointExceptionTranslatorPostProcessor(translator).postProcessBeforeInitialization(endpoint, "endpoint");
+		ResponseEntity<OAuth2Exception> result = endpoint.handleException(new PasswordEncoderBusyException("Busy"));
+		assertEquals(503, result.getStatusCode().value());
+		assertEquals("1", result.getHeaders().getFirst("Retry-After"));
+	}
+
+	@Test
+	public void otherExceptionsTranslatedAsUsual() throws Exception {
+		ResponseEntity<OAuth2Exception> result = translator.translate(new BadCredentialsException("Bad"));
+		assertEquals(401, result.getStatusCode().value());
+	}
+
+}
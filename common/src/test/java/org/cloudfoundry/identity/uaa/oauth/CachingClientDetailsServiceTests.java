@@ -0,0 +1,192 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cloudfoundry.identity.uaa.oauth.event.ClientCreateEvent;
+import org.cloudfoundry.identity.uaa.oauth.event.ClientDeleteEvent;
+import org.cloudfoundry.identity.uaa.oauth.event.ClientUpdateEvent;
+import org.cloudfoundry.identity.uaa.oauth.event.SecretChangeEvent;
+import org.cloudfoundry.identity.uaa.rest.QueryableResourceManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.security.oauth2.common.exceptions.InvalidClientException;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+import org.springframework.security.oauth2.provider.BaseClientDetails;
+import org.springframework.security.oauth2.provider.ClientDetails;
+import org.springframework.security.oauth2.provider.ClientDetailsService;
+
+public class CachingClientDetailsServiceTests {
+
+	private Map<String, ClientDetails> clients = new HashMap<String, ClientDetails>();
+
+	private int loads = 0;
+
+	private ClientDetailsService delegate = new ClientDetailsService() {
+		@Override
+		public ClientDetails loadClientByClientId(String clientId) throws OAuth2Exception {
+			loads++;
+			ClientDetails client = clients.get(clientId);
+			if (client == null) {
+				throw new InvalidClientException("Client not found: " + clientId);
+			}
+			return client;
+		}
+	};
+
+	private CachingClientDetailsService service = new CachingClientDetailsService(delegate);
+
+	@Before
+	public void init() {
+		clients.put("app", new BaseClientDetails("app", "", "openid", "authorization_code", "uaa.none"));
+		service.setMaxSize(10);
+	}
+
+	@Test
+	public void testDisabledByDefault() {
+		service = new CachingClientDetailsService(delegate);
+		service.loadClientByClientId("app");
+		service.loadClientByClientId("app");
+		assertEquals(2, loads);
+		assertEquals(0, service.getSize());
+	}
+
+	@Test
+	public void testClientCached() {
+		ClientDetails client = service.loadClientByClientId("app");
+		assertSame(client, service.loadClientByClientId("app"));
+		assertEquals(1, loads);
+		assertEquals(1, service.getHitCount());
+		assertEquals(1, service.getMissCount());
+	}
+
+	@Test
+	public void testUnknownClientCached() {
+		for (int i = 0; i < 2; i++) {
+			try {
+				service.loadClientByClientId("foo");
+				fail("Expected InvalidClientException");
+			}
+			catch (InvalidClientException e) {
+				assertEquals("Client not found: foo", e.getMessage());
+			}
+		}
+		assertEquals(1, loads);
+	}
+
+	@Test
+	public void testCacheBoundedBySize() {
+		service.setMaxSize(1);
+		clients.put("other", new BaseClientDetails("other", "", "openid", "client_credentials", "uaa.none"));
+		service.loadClientByClientId("app");
+		service.loadClientByClientId("other");
+		service.loadClientByClientId("app");
+		assertEquals(3, loads);
+		assertEquals(1, service.getSize());
+	}
+
+	@Test
+	public void testCacheBoundedByTimeToLive() {
+		service.setTimeToLiveSeconds(0);
+		service.loadClientByClientId("app");
+		service.loadClientByClientId("app");
+		assertEquals(2, loads);
+	}
+
+	@Test
+	public void testClientCreateEventRemovesUnknownClient() {
+		loadUnknown("other");
+		BaseClientDetails other = new BaseClientDetails("other", "", "openid", "client_credentials", "uaa.none");
+		clients.put("other", other);
+		service.onApplicationEvent(new ClientCreateEvent(other, null));
+		assertSame(other, service.loadClientByClientId("other"));
+		assertEquals(2, loads);
+	}
+
+	@Test
+	public void testClientUpdateEventRemovesClient() {
+		service.loadClientByClientId("app");
+		BaseClientDetails updated = new BaseClientDetails("app", "", "openid,read", "authorization_code", "uaa.none");
+		clients.put("app", updated);
+		service.onApplicationEvent(new ClientUpdateEvent(updated, null));
+		assertSame(updated, service.loadClientByClientId("app"));
+		assertEquals(2, loads);
+	}
+
+	@Test
+	public void testSecretChangeEventRemovesClient() {
+		ClientDetails client = service.loadClientByClientId("app");
+		service.onApplicationEvent(new SecretChangeEvent(client, null));
+		service.loadClientByClientId("app");
+		assertEquals(2, loads);
+	}
+
+	@Test
+	public void testClientDeleteEventRemovesClient() {
+		ClientDetails client = service.loadClientByClientId("app");
+		clients.remove("app");
+		service.onApplicationEvent(new ClientDeleteEvent(client, null));
+		loadUnknown("app");
+		assertEquals(2, loads);
+	}
+
+	@Test
+	public void testResourceManagerFallbackCached() {
+		@SuppressWarnings("unchecked")
+		QueryableResourceManager<ClientDetails> manager = Mockito.mock(QueryableResourceManager.class);
+		BaseClientDetails fallback = new BaseClientDetails("foo", "openid", "openid", "authorization_code", "uaa.none");
+		Mockito.when(manager.retrieve("foo")).thenReturn(fallback);
+		service = new CachingClientDetailsService(manager);
+		service.setMaxSize(10);
+		assertSame(fallback, service.retrieve("foo"));
+		assertSame(fallback, service.loadClientByClientId("foo"));
+		Mockito.verify(manager, Mockito.times(1)).retrieve("foo");
+	}
+
+	@Test
+	public void testResourceManagerUpdateRemovesClient() {
+		@SuppressWarnings("unchecked")
+		QueryableResourceManager<ClientDetails> manager = Mockito.mock(QueryableResourceManager.class);
+		BaseClientDetails client = new BaseClientDetails("app", "", "openid", "authorization_code", "uaa.none");
+		Mockito.when(manager.retrieve("app")).thenReturn(client);
+		service = new CachingClientDetailsService(manager);
+		service.setMaxSize(10);
+		service.retrieve("app");
+		service.update("app", client);
+		service.retrieve("app");
+		Mockito.verify(manager, Mockito.times(2)).retrieve("app");
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testQueryNotSupportedForClientDetailsService() {
+		service.query("client_id eq 'app'");
+	}
+
+	private void loadUnknown(String clientId) {
+		try {
+			service.loadClientByClientId(clientId);
+			fail("Expected InvalidClientException");
+		}
+		catch (InvalidClientException e) {
+			// expected
+		}
+	}
+
+}
@@ -14,28 +14,35 @@ package org.cloudfoundry.identity.uaa.oauth;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationTestFactory;
 import org.cloudfoundry.identity.uaa.oauth.approval.Approval;
 import org.cloudfoundry.identity.uaa.oauth.approval.Approval.ApprovalStatus;
 import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalStore;
+import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalsChangedEvent;
 import org.cloudfoundry.identity.uaa.oauth.approval.InMemoryApprovalStore;
 import org.cloudfoundry.identity.uaa.oauth.token.SignerProvider;
 import org.cloudfoundry.identity.uaa.oauth.token.UaaTokenServices;
+import org.cloudfoundry.identity.uaa.oauth.token.VerifiedTokenCache;
 import org.cloudfoundry.identity.uaa.user.MockUaaUserDatabase;
 import org.cloudfoundry.identity.uaa.user.UaaUserDatabase;
 import org.junit.Test;
 import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidRequestException;
 import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
 import org.springframework.security.oauth2.provider.BaseClientDetails;
 import org.springframework.security.oauth2.provider.ClientDetails;
 import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest;
 import org.springframework.security.oauth2.provider.InMemoryClientDetailsService;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
 
 /**
  * @author Dave Syer
@@ -67,6 +74,7 @@ public class CheckTokenEndpointTests {
 		signerProvider.setVerifierKey("abc");
 		tokenServices.setSignerProvider(signerProvider);
 		endpoint.setTokenServices(tokenServices);
+		endpoint.setClaimsReader(tokenServices);
 		Date oneSecondAgo = new Date(System.currentTimeMillis() - 1000);
 		Date thirtySecondsAhead = new Date(System.currentTimeMillis() + 30000);
 		UaaUserDatabase userDatabase = new MockUaaUserDatabase("12345", "olds", "olds@vmware.com", null, null, oneSecondAgo, oneSecondAgo);
@@ -168,6 +176,97 @@ public class CheckTokenEndpointTests {
 		assertEquals(null, result.get("client_authorities"));
 	}
 
+	@Test
+	public void testScopeInResult() {
+		Map<String, ?> result = endpoint.checkToken(accessToken.getValue());
+		assertEquals(Collections.singletonList("read"), result.get("scope"));
+	}
+
+	@Test
+	public void testOtherTokenServices() {
+		// Any other ResourceServerTokenServices is still asked to read the token first
+		endpoint.setTokenServices(new ResourceServerTokenServices() {
+			@Override
+			public OAuth2AccessToken readAccessToken(String accessToken) {
+				return tokenServices.readAccessToken(accessToken);
+			}
+
+			@Override
+			public OAuth2Authentication loadAuthentication(String accessToken) {
+				return tokenServices.loadAuthentication(accessToken);
+			}
+		});
+		Map<String, ?> result = endpoint.checkToken(accessToken.getValue());
+		assertEquals("olds", result.get("user_name"));
+		assertEquals("client", result.get("client_id"));
+	}
+
+	@Test
+	public void testCachedTokenRevalidatedWhenApprovalsChange() {
+		VerifiedTokenCache tokenCache = new VerifiedTokenCache();
+		tokenCache.setMaxSize(10);
+		tokenServices.setTokenCache(tokenCache);
+		endpoint.checkToken(accessToken.getValue());
+
+		Date thirtySecondsAhead = new Date(System.currentTimeMillis() + 30000);
+		approvalStore.addApproval(new Approval("olds", "client", "read", thirtySecondsAhead, ApprovalStatus.APPROVED,
+				new Date()));
+		// Still cached, because the store did not tell anyone
+		assertEquals("olds", endpoint.checkToken(accessToken.getValue()).get("user_name"));
+
+		tokenCache.onApplicationEvent(new ApprovalsChangedEvent(approvalStore, "olds", "client"));
+		try {
+			endpoint.checkToken(accessToken.getValue());
+			fail("Expected InvalidTokenException");
+		}
+		catch (InvalidTokenException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testBatch() {
+		OAuth2AccessToken clientToken = tokenServices.createAccessToken(new OAuth2Authentication(
+				new DefaultAuthorizationRequest("client", Collections.singleton("read")), null));
+		List<Map<String, ?>> results = endpoint.checkTokens(Arrays.asList(accessToken.getValue(), "FOO",
+				clientToken.getValue(), accessToken.getValue()));
+		assertEquals(4, results.size());
+		assertEquals("olds", results.get(0).get("user_name"));
+		assertEquals("invalid_token", results.get(1).get("error"));
+		assertEquals("client", results.get(2).get("client_id"));
+		assertEquals(results.get(0), results.get(3));
+	}
+
+	@Test
+	public void testBatchWithUpdatedApprovals() {
+		approvalStore.addApproval(new Approval("olds", "client", "read", new Date(System.currentTimeMillis() + 30000),
+				ApprovalStatus.APPROVED, new Date()));
+		List<Map<String, ?>> results = endpoint.checkTokens(Collections.singletonList(accessToken.getValue()));
+		assertEquals("invalid_token", results.get(0).get("error"));
+	}
+
+	@Test
+	public void testBatchWithFailingApprovalStore() {
+		OAuth2AccessToken clientToken = tokenServices.createAccessToken(new OAuth2Authentication(
+				new DefaultAuthorizationRequest("client", Collections.singleton("read")), null));
+		tokenServices.setApprovalStore(new InMemoryApprovalStore() {
+			@Override
+			public List<Approval> getApprovals(String userName, String clientId) {
+				throw new IllegalStateException("Database unavailable");
+			}
+		});
+		List<Map<String, ?>> results = endpoint.checkTokens(Arrays.asList(accessToken.getValue(),
+				clientToken.getValue()));
+		assertEquals("server_error", results.get(0).get("error"));
+		assertEquals("client", results.get(1).get("client_id"));
+	}
+
+	@Test(expected = InvalidRequestException.class)
+	public void testBatchTooLarge() {
+		endpoint.setMaxBatchSize(1);
+		endpoint.checkTokens(Arrays.asList(accessToken.getValue(), accessToken.getValue()));
+	}
+
 	@Test
 	public void testClientOnly() {
 		authentication = new OAuth2Authentication(new DefaultAuthorizationRequest("client", Collections.singleton("read")), null);
@@ -0,0 +1,198 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cloudfoundry.identity.uaa.oauth.token.JwtTokenCodec;
+import org.cloudfoundry.identity.uaa.oauth.token.SignerProvider;
+import org.codehaus.jackson.JsonGenerator;
+import org.junit.Test;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+public class LocalJwtTokenServicesTests {
+
+	private LocalJwtTokenServices services = new LocalJwtTokenServices();
+
+	private SignerProvider signerProvider = new SignerProvider();
+
+	private Map<String, Object> claims = new HashMap<String, Object>();
+
+	private int fetches = 0;
+
+	private boolean unavailable = false;
+
+	public LocalJwtTokenServicesTests() {
+		signerProvider.setSigningKey("tokenkey");
+		signerProvider.setKeyId("key-1");
+		claims.put(Claims.CLIENT_ID, "remote");
+		claims.put(Claims.USER_NAME, "olds");
+		claims.put(Claims.EMAIL, "olds@vmware.com");
+		claims.put(Claims.USER_ID, "HDGFJSHGDF");
+		claims.put(Claims.SCOPE, Collections.singletonList("read"));
+		claims.put(Claims.EXP, System.currentTimeMillis() / 1000 + 60);
+		services.setTokenKeyEndpointUrl("http://localhost:8080/uaa/token_key");
+		services.setRestTemplate(new RestTemplate() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public <T> ResponseEntity<T> exchange(String url, HttpMethod method, HttpEntity<?> requestEntity,
+					Class<T> responseType, Object... uriVariables) throws RestClientException {
+				fetches++;
+				if (unavailable) {
+					throw new ResourceAccessException("Connection refused");
+				}
+				Map<String, String> body = new HashMap<String, String>();
+				body.put("alg", signerProvider.getSigner().algorithm());
+				body.put("value", signerProvider.getVerifierKey());
+				body.put("kid", signerProvider.getKeyId());
+				return new ResponseEntity<T>((T) body, new HttpHeaders(), HttpStatus.OK);
+			}
+		});
+	}
+
+	@Test
+	public void testSameAuthenticationAsRemote() throws Exception {
+		OAuth2Authentication result = services.loadAuthentication(encode());
+		OAuth2Authentication expected = new TokenClaimsAuthenticationFactory().createAuthentication(claims);
+		assertEquals("remote", result.getAuthorizationRequest().getClientId());
+		assertEquals("olds", result.getUserAuthentication().getName());
+		assertEquals("HDGFJSHGDF", ((RemoteUserAuthentication) result.getUserAuthentication()).getId());
+		assertEquals(expected.getAuthorizationRequest().getScope(), result.getAuthorizationRequest().getScope());
+		assertEquals(expected.getAuthorities(), result.getAuthorities());
+	}
+
+	@Test
+	public void testKeyFetchedOnce() throws Exception {
+		assertNotNull(services.loadAuthentication(encode()));
+		assertNotNull(services.loadAuthentication(encode()));
+		assertEquals(1, fetches);
+	}
+
+	@Test
+	public void testKeyFetchedAgainAfterRotation() throws Exception {
+		services.setMinRefreshIntervalSeconds(0);
+		String oldToken = encode();
+		assertNotNull(services.loadAuthentication(oldToken));
+		signerProvider.setSigningKey("newkey");
+		signerProvider.setKeyId("key-2");
+		assertNotNull(services.loadAuthentication(encode()));
+		assertEquals(2, fetches);
+		// Tokens signed with the old key can still be verified
+		assertNotNull(services.loadAuthentication(oldToken));
+		assertEquals(2, fetches);
+	}
+
+	@Test
+	public void testOnlyThePreviousKeyKeptAfterRotation() throws Exception {
+		services.setMinRefreshIntervalSeconds(0);
+		String oldestToken = encode();
+		assertNotNull(services.loadAuthentication(oldestToken));
+		signerProvider.setSigningKey("newkey");
+		signerProvider.setKeyId("key-2");
+		assertNotNull(services.loadAuthentication(encode()));
+		signerProvider.setSigningKey("newerkey");
+		signerProvider.setKeyId("key-3");
+		assertNotNull(services.loadAuthentication(encode()));
+		assertEquals(3, fetches);
+		try {
+			services.loadAuthentication(oldestToken);
+			fail("Expected InvalidTokenException");
+		}
+		catch (InvalidTokenException e) {
+			// expected, key-1 was discarded
+		}
+	}
+
+	@Test
+	public void testKeyServerUnavailable() throws Exception {
+		unavailable = true;
+		String token = encode();
+		for (int i = 0; i < 3; i++) {
+			try {
+				services.loadAuthentication(token);
+				fail("Expected InvalidTokenException");
+			}
+			catch (InvalidTokenException e) {
+				// expected
+			}
+		}
+		// Not fetched again until the refresh interval has passed
+		assertEquals(1, fetches);
+	}
+
+	@Test
+	public void testUnknownKeyFetchesAreLimited() throws Exception {
+		assertNotNull(services.loadAuthentication(encode()));
+		signerProvider.setKeyId("key-2");
+		for (int i = 0; i < 3; i++) {
+			try {
+				services.loadAuthentication(encode());
+			}
+			catch (InvalidTokenException e) {
+				// expected, the server does not know that key yet
+			}
+		}
+		assertEquals(1, fetches);
+	}
+
+	@Test(expected = InvalidTokenException.class)
+	public void testExpiredToken() throws Exception {
+		claims.put(Claims.EXP, System.currentTimeMillis() / 1000 - 1);
+		services.loadAuthentication(encode());
+	}
+
+	@Test(expected = InvalidTokenException.class)
+	public void testInvalidSignature() throws Exception {
+		String token = encode();
+		signerProvider.setSigningKey("otherkey");
+		services.loadAuthentication(token);
+	}
+
+	@Test(expected = InvalidTokenException.class)
+	public void testNotAToken() throws Exception {
+		services.loadAuthentication("FOO");
+	}
+
+	@Test
+	public void testReadAccessToken() throws Exception {
+		assertEquals(Collections.singleton("read"), services.readAccessToken(encode()).getScope());
+	}
+
+	private String encode() throws IOException {
+		return JwtTokenCodec.encode(new JwtTokenCodec.ClaimsWriter() {
+			@Override
+			public void writeClaims(JsonGenerator generator) throws IOException {
+				for (Map.Entry<String, Object> entry : claims.entrySet()) {
+					generator.writeObjectField(entry.getKey(), entry.getValue());
+				}
+			}
+		}, signerProvider.getSigner(), signerProvider.getKeyId());
+	}
+
+}
@@ -17,6 +17,8 @@ import static org.junit.Assert.*;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Test;
@@ -25,6 +27,7 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
@@ -43,6 +46,10 @@ public class RemoteTokenServicesTests {
 
 	private HttpStatus status = HttpStatus.OK;
 
+	private AtomicInteger calls = new AtomicInteger();
+
+	private CountDownLatch latch = new CountDownLatch(0);
+
 	public RemoteTokenServicesTests() {
 		services.setClientId("client");
 		services.setClientSecret("secret");
@@ -55,6 +62,13 @@ public class RemoteTokenServicesTests {
 			@Override
 			public <T> ResponseEntity<T> exchange(String url, HttpMethod method, HttpEntity<?> requestEntity,
 					Class<T> responseType, Object... uriVariables) throws RestClientException {
+				calls.incrementAndGet();
+				try {
+					latch.await();
+				}
+				catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
 				return new ResponseEntity<T>((T) body, headers, status);
 			}
 		});
@@ -97,4 +111,94 @@ public class RemoteTokenServicesTests {
 		assertEquals(mapper.writeValueAsString(additionalAuthorizationAttributesMap), result.getAuthorizationRequest()
 				.getAuthorizationParameters().get(Claims.ADDITIONAL_AZ_ATTR));
 	}
+
+	@Test
+	public void testNotCachedByDefault() throws Exception {
+		services.loadAuthentication("FOO");
+		services.loadAuthentication("FOO");
+		assertEquals(2, calls.get());
+		assertEquals(2, services.getMissCount());
+	}
+
+	@Test
+	public void testCachedResponse() throws Exception {
+		services.setCacheMaxSize(10);
+		body.put(Claims.EXP, System.currentTimeMillis() / 1000 + 60);
+		services.loadAuthentication("FOO");
+		OAuth2Authentication result = services.loadAuthentication("FOO");
+		assertEquals("olds", result.getUserAuthentication().getName());
+		assertEquals(1, calls.get());
+		assertEquals(1, services.getHitCount());
+		assertEquals(1, services.getMissCount());
+		assertEquals(1, services.getCacheSize());
+		services.loadAuthentication("BAR");
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void testCacheBoundedByExpiry() throws Exception {
+		services.setCacheMaxSize(10);
+		body.put(Claims.EXP, System.currentTimeMillis() / 1000 - 1);
+		services.loadAuthentication("FOO");
+		services.loadAuthentication("FOO");
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void testCacheBoundedByMaxAge() throws Exception {
+		services.setCacheMaxSize(10);
+		services.setCacheMaxAgeSeconds(0);
+		services.loadAuthentication("FOO");
+		Thread.sleep(10);
+		services.loadAuthentication("FOO");
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void testErrorNotCached() throws Exception {
+		services.setCacheMaxSize(10);
+		body.put("error", "invalid_token");
+		for (int i = 0; i < 2; i++) {
+			try {
+				services.loadAuthentication("FOO");
+				fail("Expected InvalidTokenException");
+			}
+			catch (InvalidTokenException e) {
+				// expected
+			}
+		}
+		assertEquals(2, calls.get());
+		assertEquals(0, services.getCacheSize());
+	}
+
+	@Test
+	public void testConcurrentRequestsShareOneCall() throws Exception {
+		latch = new CountDownLatch(1);
+		final AtomicInteger results = new AtomicInteger();
+		Thread[] threads = new Thread[3];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					if (services.loadAuthentication("FOO") != null) {
+						results.incrementAndGet();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		long timeout = System.currentTimeMillis() + 5000;
+		while (services.getCoalescedCount() < threads.length - 1 && System.currentTimeMillis() < timeout) {
+			Thread.sleep(10);
+		}
+		latch.countDown();
+		for (Thread thread : threads) {
+			thread.join(5000);
+		}
+		assertEquals(threads.length, results.get());
+		assertEquals(1, calls.get());
+		assertEquals(1, services.getMissCount());
+		assertEquals(threads.length - 1, services.getCoalescedCount());
+	}
+
 }
@@ -0,0 +1,122 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+import org.springframework.security.jwt.Jwt;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.codec.Codecs;
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
+
+public class JwtTokenCodecTests {
+
+	private SignerProvider signerProvider = new SignerProvider();
+
+	private ObjectMapper mapper = new ObjectMapper();
+
+	private JwtTokenCodec.ClaimsWriter claims = new JwtTokenCodec.ClaimsWriter() {
+		@Override
+		public void writeClaims(JsonGenerator generator) throws IOException {
+			generator.writeStringField("sub", "joel");
+			generator.writeObjectField("scope", Arrays.asList("read", "write"));
+			generator.writeNumberField("exp", 1234567890L);
+		}
+	};
+
+	public JwtTokenCodecTests() {
+		signerProvider.setSigningKey("testkey");
+	}
+
+	@Test
+	public void testEncodedTokenCanBeReadByJwtHelper() throws Exception {
+		String token = JwtTokenCodec.encode(claims, signerProvider.getSigner(), null);
+		Jwt jwt = JwtHelper.decodeAndVerify(token, new MacSigner("testkey"));
+		@SuppressWarnings("unchecked")
+		Map<String, Object> map = mapper.readValue(jwt.getClaims(), Map.class);
+		assertEquals("joel", map.get("sub"));
+		assertEquals(Arrays.asList("read", "write"), map.get("scope"));
+		assertEquals(1234567890, map.get("exp"));
+	}
+
+	@Test
+	public void testDecodeTokenFromJwtHelper() throws Exception {
+		String token = JwtHelper.encode("{\"sub\":\"joel\",\"name\":\"J\\u00f6el\"}", new MacSigner("testkey"))
+				.getEncoded();
+		Map<String, Object> map = JwtTokenCodec.decodeAndVerify(token, signerProvider);
+		assertEquals("joel", map.get("sub"));
+		assertEquals("Jöel", map.get("name"));
+		assertNull(JwtTokenCodec.getKeyId(token));
+	}
+
+	@Test
+	public void testRoundTripWithKeyId() throws Exception {
+		signerProvider.setKeyId("key-1");
+		String token = JwtTokenCodec.encode(claims, signerProvider.getSigner(), signerProvider.getKeyId());
+		assertEquals("key-1", JwtTokenCodec.getKeyId(token));
+		assertEquals("joel", JwtTokenCodec.decodeAndVerify(token, signerProvider).get("sub"));
+	}
+
+	@Test
+	public void testRepeatedEncodingIsConsistent() throws Exception {
+		String token = JwtTokenCodec.encode(claims, signerProvider.getSigner(), null);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(token, JwtTokenCodec.encode(claims, signerProvider.getSigner(), null));
+		}
+	}
+
+	@Test(expected = InvalidSignatureException.class)
+	public void testTamperedTokenIsRejected() throws Exception {
+		String token = JwtTokenCodec.encode(claims, signerProvider.getSigner(), null);
+		String tampered = JwtHelper.encode("{\"sub\":\"admin\"}", new MacSigner("testkey")).getEncoded();
+		String[] parts = token.split("\\.");
+		JwtTokenCodec.decodeAndVerify(parts[0] + "." + tampered.split("\\.")[1] + "." + parts[2], signerProvider);
+	}
+
+	@Test(expected = InvalidSignatureException.class)
+	public void testUnknownKeyIdIsRejected() throws Exception {
+		SignerProvider other = new SignerProvider();
+		other.setSigningKey("testkey");
+		other.setKeyId("key-1");
+		signerProvider.setVerificationKeys(Collections.singletonMap("key-2", "testkey"));
+		JwtTokenCodec.decodeAndVerify(JwtTokenCodec.encode(claims, other.getSigner(), other.getKeyId()),
+				signerProvider);
+	}
+
+	@Test
+	public void testRoundTripWithEcKey() throws Exception {
+		signerProvider.setSigningKey(SignerProviderTests.EC_PRIVATE_KEY);
+		signerProvider.setVerifierKey(SignerProviderTests.EC_PUBLIC_KEY);
+		String token = JwtTokenCodec.encode(claims, signerProvider.getSigner(), null);
+		String header = Codecs.utf8Decode(Codecs.b64UrlDecode(token.substring(0, token.indexOf('.'))));
+		assertTrue(header.startsWith("{\"alg\":\"ES256\""));
+		assertEquals("joel", JwtTokenCodec.decodeAndVerify(token, signerProvider).get("sub"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMalformedToken() throws Exception {
+		JwtTokenCodec.decodeAndVerify("foo.bar", signerProvider);
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TokenClaimsTests {
+
+	private TokenClaims claims = new TokenClaims(("{\"jti\":\"abc\",\"sub\":\"12345\",\"scope\":[\"read\",\"write\"],"
+			+ "\"client_id\":\"app\",\"cid\":\"app\",\"user_id\":\"12345\",\"user_name\":\"olds\","
+			+ "\"email\":\"olds@vmware.com\",\"az_attr\":{\"external_group\":\"domain\\\\group1\"},"
+			+ "\"iat\":1370000000,\"exp\":1370043200,\"aud\":[\"app\"]}").getBytes());
+
+	@Test
+	public void testTypedClaims() {
+		assertEquals(new Date(1370000000000l), claims.getIssuedAt());
+		assertEquals(new Date(1370043200000l), claims.getExpiration());
+		assertEquals("app", claims.getClientId());
+		assertEquals(Arrays.asList("read", "write"), claims.getScope());
+		assertEquals("12345", claims.getSubject());
+		assertEquals("12345", claims.getUserId());
+		assertEquals("olds", claims.getUserName());
+		assertEquals("olds@vmware.com", claims.getEmail());
+		assertNull(claims.getGrantType());
+		assertTrue(claims.isUserToken());
+	}
+
+	@Test
+	public void testExpiry() {
+		assertTrue(claims.isExpired(new Date()));
+		assertFalse(claims.isExpired(new Date(1370000000000l)));
+		assertFalse(new TokenClaims("{}".getBytes()).isExpired(new Date()));
+	}
+
+	@Test
+	public void testMissingClaims() {
+		TokenClaims empty = new TokenClaims("{\"cid\":\"app\"}".getBytes());
+		assertEquals("app", empty.getClientId());
+		assertEquals(Collections.emptyList(), empty.getScope());
+		assertNull(empty.getExpiration());
+		assertFalse(empty.isUserToken());
+		assertFalse(empty.containsKey("authorities"));
+	}
+
+	@Test
+	public void testOtherClaims() {
+		assertEquals(Collections.singletonMap("external_group", "domain\\group1"), claims.get("az_attr"));
+		assertEquals(Arrays.asList("app"), claims.get("aud"));
+		assertNull(claims.get("foo"));
+	}
+
+	@Test
+	public void testAsMap() {
+		// typed claims read before and after the map is built agree
+		assertEquals("olds", claims.getUserName());
+		Map<String, Object> map = claims.asMap();
+		assertEquals(12, map.size());
+		assertEquals(1370043200, map.get("exp"));
+		assertEquals(Arrays.asList("read", "write"), map.get("scope"));
+		assertEquals("olds", claims.getUserName());
+		assertEquals("app", claims.getClientId());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testAsMapIsUnmodifiable() {
+		claims.asMap().put("exp", 0);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testInvalidJson() {
+		new TokenClaims("[]".getBytes()).getClientId();
+	}
+
+}
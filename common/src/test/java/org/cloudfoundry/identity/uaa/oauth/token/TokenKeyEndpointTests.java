@@ -11,6 +11,8 @@ package org.cloudfoundry.identity.uaa.oauth.token;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.Map;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.security.access.AccessDeniedException;
@@ -51,4 +53,14 @@ public class TokenKeyEndpointTests {
 								.createAuthorityList("ROLE_ANONYMOUS"))).toString());
 	}
 
+	@Test
+	public void ecPublicKeyIsReturnedAnonymously() throws Exception {
+		signerProvider.setSigningKey(SignerProviderTests.EC_PRIVATE_KEY);
+		signerProvider.setVerifierKey(SignerProviderTests.EC_PUBLIC_KEY);
+		Map<String, String> key = tokenEnhancer.getKey(new AnonymousAuthenticationToken("anon", "anonymousUser",
+				AuthorityUtils.createAuthorityList("ROLE_ANONYMOUS")));
+		assertEquals("SHA256withECDSA", key.get("alg"));
+		assertEquals(SignerProviderTests.EC_PUBLIC_KEY, key.get("value"));
+	}
+
 }
@@ -0,0 +1,215 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.oauth.approval.InMemoryApprovalStore;
+import org.cloudfoundry.identity.uaa.test.NullSafeSystemProfileValueSource;
+import org.cloudfoundry.identity.uaa.test.TestUtils;
+import org.cloudfoundry.identity.uaa.user.JdbcUaaUserDatabase;
+import org.cloudfoundry.identity.uaa.user.UaaAuthority;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.BaseClientDetails;
+import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest;
+import org.springframework.security.oauth2.provider.JdbcClientDetailsService;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.test.annotation.IfProfileValue;
+import org.springframework.test.annotation.ProfileValueSourceConfiguration;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Counts the statements sent to the database while issuing tokens.
+ */
+@ContextConfiguration("classpath:/test-data-source.xml")
+@RunWith(SpringJUnit4ClassRunner.class)
+@IfProfileValue(name = "spring.profiles.active", values = { "", "hsqldb", "test,postgresql", "test,mysql", "test,oracle" })
+@ProfileValueSourceConfiguration(NullSafeSystemProfileValueSource.class)
+public class UaaTokenServicesJdbcTests {
+
+	private static final String USER_ID = UUID.randomUUID().toString();
+
+	@Autowired
+	private DataSource dataSource;
+
+	private AtomicInteger statements = new AtomicInteger();
+
+	private UaaTokenServices tokenServices = new UaaTokenServices();
+
+	private JdbcUaaUserDatabase userDatabase;
+
+	private JdbcClientDetailsService clientDetailsService;
+
+	@Before
+	public void setUp() throws Exception {
+		DataSource countingDataSource = new CountingDataSource(dataSource, statements);
+		userDatabase = new JdbcUaaUserDatabase(new JdbcTemplate(countingDataSource));
+		clientDetailsService = new JdbcClientDetailsService(countingDataSource);
+
+		TestUtils.assertNoSuchUser(new JdbcTemplate(dataSource), "userName", "jdsa");
+		new JdbcTemplate(dataSource).update(
+				"insert into users (id, username, password, email, givenName, familyName) values (?,?,?,?,?,?)",
+				USER_ID, "jdsa", "password", "jdsa@vmware.com", "Joel", "D'sa");
+		BaseClientDetails client = new BaseClientDetails("client", "scim,clients", "read,write",
+				"authorization_code,password,client_credentials,refresh_token", "uaa.none");
+		client.setClientSecret("secret");
+		clientDetailsService.addClientDetails(client);
+
+		tokenServices.setClientDetailsService(clientDetailsService);
+		tokenServices.setUserDatabase(userDatabase);
+		tokenServices.setApprovalStore(new InMemoryApprovalStore());
+		tokenServices.setIssuer("http://localhost:8080/uaa");
+		tokenServices.afterPropertiesSet();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		JdbcTemplate template = new JdbcTemplate(dataSource);
+		template.update("delete from users where id=?", USER_ID);
+		template.update("delete from oauth_client_details where client_id=?", "client");
+	}
+
+	@Test
+	public void testPasswordGrantLoadsUserAndClientOnce() throws Exception {
+		int userStatements = countStatements(new Runnable() {
+			@Override
+			public void run() {
+				userDatabase.retrieveUserByName("jdsa");
+			}
+		});
+		int clientStatements = countStatements(new Runnable() {
+			@Override
+			public void run() {
+				clientDetailsService.loadClientByClientId("client");
+			}
+		});
+
+		final OAuth2Authentication authentication = createAuthentication("password");
+		final OAuth2AccessToken[] token = new OAuth2AccessToken[1];
+		int tokenStatements = countStatements(new Runnable() {
+			@Override
+			public void run() {
+				token[0] = tokenServices.createAccessToken(authentication);
+			}
+		});
+
+		assertNotNull(token[0].getRefreshToken());
+		assertEquals(userStatements + clientStatements, tokenStatements);
+	}
+
+	@Test
+	public void testClientCredentialsGrantLoadsClientOnce() throws Exception {
+		int clientStatements = countStatements(new Runnable() {
+			@Override
+			public void run() {
+				clientDetailsService.loadClientByClientId("client");
+			}
+		});
+
+		DefaultAuthorizationRequest authorizationRequest = createAuthorizationRequest("client_credentials");
+		final OAuth2Authentication authentication = new OAuth2Authentication(authorizationRequest, null);
+		int tokenStatements = countStatements(new Runnable() {
+			@Override
+			public void run() {
+				tokenServices.createAccessToken(authentication);
+			}
+		});
+
+		assertEquals(clientStatements, tokenStatements);
+	}
+
+	private int countStatements(Runnable runnable) {
+		int before = statements.get();
+		runnable.run();
+		return statements.get() - before;
+	}
+
+	private OAuth2Authentication createAuthentication(String grantType) {
+		UaaUser user = userDatabase.retrieveUserByName("jdsa");
+		Authentication userAuthentication = new UsernamePasswordAuthenticationToken(new UaaPrincipal(user), "n/a",
+				UaaAuthority.USER_AUTHORITIES);
+		return new OAuth2Authentication(createAuthorizationRequest(grantType), userAuthentication);
+	}
+
+	private DefaultAuthorizationRequest createAuthorizationRequest(String grantType) {
+		DefaultAuthorizationRequest authorizationRequest = new DefaultAuthorizationRequest("client", Arrays.asList(
+				"read", "write"));
+		Map<String, String> parameters = new HashMap<String, String>(authorizationRequest.getAuthorizationParameters());
+		parameters.put("grant_type", grantType);
+		authorizationRequest.setAuthorizationParameters(parameters);
+		authorizationRequest.setResourceIds(Collections.singleton("scim"));
+		return authorizationRequest;
+	}
+
+	private static class CountingDataSource extends DelegatingDataSource {
+
+		private final AtomicInteger statements;
+
+		public CountingDataSource(DataSource dataSource, AtomicInteger statements) {
+			super(dataSource);
+			this.statements = statements;
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			final Connection connection = super.getConnection();
+			return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { Connection.class }, new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+							String name = method.getName();
+							if (name.equals("prepareStatement") || name.equals("createStatement")
+									|| name.equals("prepareCall")) {
+								statements.incrementAndGet();
+							}
+							try {
+								return method.invoke(connection, args);
+							}
+							catch (InvocationTargetException e) {
+								throw e.getTargetException();
+							}
+						}
+					});
+		}
+
+	}
+
+}
@@ -1058,6 +1058,28 @@ public class UaaTokenServicesTests {
 		assertEquals(accessToken, tokenServices.readAccessToken(accessToken.getValue()));
 	}
 
+	@Test
+	public void testReadAccessTokenClaimsForAUser() {
+		DefaultAuthorizationRequest authorizationRequest = new DefaultAuthorizationRequest("client",
+				Arrays.asList(new String[] { "read", "write" }));
+		Map<String, String> azParameters = new HashMap<String, String>(
+				authorizationRequest.getAuthorizationParameters());
+		azParameters.put("grant_type", "password");
+		authorizationRequest.setAuthorizationParameters(azParameters);
+		Authentication userAuthentication = new UsernamePasswordAuthenticationToken(new UaaPrincipal(new UaaUser(
+				"jdsa", "password", "jdsa@vmware.com", null, null)), "n/a", null);
+
+		OAuth2Authentication authentication = new OAuth2Authentication(authorizationRequest, userAuthentication);
+		OAuth2AccessToken accessToken = tokenServices.createAccessToken(authentication);
+		TokenClaims claims = tokenServices.readAccessTokenClaims(accessToken.getValue());
+		assertEquals("client", claims.getClientId());
+		assertEquals("jdsa", claims.getUserName());
+		assertEquals("jdsa@vmware.com", claims.getEmail());
+		assertEquals(accessToken.getScope(), new HashSet<String>(claims.getScope()));
+		assertEquals(accessToken.getExpiration().getTime() / 1000, claims.getExpiration().getTime() / 1000);
+		assertEquals(claims.asMap().get("jti"), accessToken.getAdditionalInformation().get("jti"));
+	}
+
 	@Test
 	public void testLoadAuthenticationForAUser() {
 		DefaultAuthorizationRequest authorizationRequest = new DefaultAuthorizationRequest("client",
@@ -1155,4 +1177,54 @@ public class UaaTokenServicesTests {
 		azMap.put("external_id", "abcd1234");
 		assertEquals(azMap, token.getAdditionalInformation().get("az_attr"));
 	}
+
+	@Test
+	public void testLoadAuthenticationAfterKeyRotation() {
+		SignerProvider oldSignerProvider = new SignerProvider();
+		oldSignerProvider.setSigningKey("oldkey");
+		oldSignerProvider.setKeyId("key-1");
+		tokenServices.setSignerProvider(oldSignerProvider);
+
+		DefaultAuthorizationRequest authorizationRequest = new DefaultAuthorizationRequest("client",
+				Arrays.asList(new String[] { "read", "write" }));
+		Map<String, String> azParameters = new HashMap<String, String>(
+				authorizationRequest.getAuthorizationParameters());
+		azParameters.put("grant_type", "client_credentials");
+		authorizationRequest.setAuthorizationParameters(azParameters);
+		OAuth2AccessToken accessToken = tokenServices.createAccessToken(new OAuth2Authentication(
+				authorizationRequest, null));
+
+		SignerProvider newSignerProvider = new SignerProvider();
+		newSignerProvider.setSigningKey("newkey");
+		newSignerProvider.setKeyId("key-2");
+		newSignerProvider.setVerificationKeys(Collections.singletonMap("key-1", "oldkey"));
+		tokenServices.setSignerProvider(newSignerProvider);
+
+		assertEquals("key-1", JwtTokenCodec.getKeyId(accessToken.getValue()));
+		assertEquals("client", tokenServices.loadAuthentication(accessToken.getValue()).getName());
+	}
+
+	@Test(expected = InvalidTokenException.class)
+	public void testLoadAuthenticationWithUnknownKeyId() {
+		SignerProvider oldSignerProvider = new SignerProvider();
+		oldSignerProvider.setSigningKey("oldkey");
+		oldSignerProvider.setKeyId("key-1");
+		tokenServices.setSignerProvider(oldSignerProvider);
+
+		DefaultAuthorizationRequest authorizationRequest = new DefaultAuthorizationRequest("client",
+				Arrays.asList(new String[] { "read", "write" }));
+		Map<String, String> azParameters = new HashMap<String, String>(
+				authorizationRequest.getAuthorizationParameters());
+		azParameters.put("grant_type", "client_credentials");
+		authorizationRequest.setAuthorizationParameters(azParameters);
+		OAuth2AccessToken accessToken = tokenServices.createAccessToken(new OAuth2Authentication(
+				authorizationRequest, null));
+
+		SignerProvider newSignerProvider = new SignerProvider();
+		newSignerProvider.setSigningKey("newkey");
+		newSignerProvider.setKeyId("key-2");
+		tokenServices.setSignerProvider(newSignerProvider);
+
+		tokenServices.loadAuthentication(accessToken.getValue());
+	}
 }
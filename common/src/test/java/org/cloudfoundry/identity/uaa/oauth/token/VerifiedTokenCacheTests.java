@@ -0,0 +1,170 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalsChangedEvent;
+import org.cloudfoundry.identity.uaa.oauth.approval.InMemoryApprovalStore;
+import org.cloudfoundry.identity.uaa.oauth.event.ClientUpdateEvent;
+import org.cloudfoundry.identity.uaa.user.UserChangedEvent;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.provider.BaseClientDetails;
+
+public class VerifiedTokenCacheTests {
+
+	private VerifiedTokenCache cache = new VerifiedTokenCache();
+
+	private long exp = System.currentTimeMillis() / 1000 + 3600;
+
+	@Before
+	public void init() {
+		cache.setMaxSize(2);
+	}
+
+	@Test
+	public void testDisabledByDefault() {
+		cache = new VerifiedTokenCache();
+		assertFalse(cache.isEnabled());
+		cache.put("FOO", claims("marissa", "app", exp), true, cache.getGeneration());
+		assertNull(cache.get("FOO"));
+	}
+
+	@Test
+	public void testPutAndGet() {
+		TokenClaims claims = claims("marissa", "app", exp);
+		cache.put("FOO", claims, true, cache.getGeneration());
+		VerifiedTokenCache.Entry entry = cache.get("FOO");
+		assertNotNull(entry);
+		assertSame(claims, entry.getClaims());
+		assertTrue(entry.isValidated());
+		assertNull(cache.get("BAR"));
+	}
+
+	@Test
+	public void testExpiredTokenNotReturned() {
+		cache.put("FOO", claims("marissa", "app", System.currentTimeMillis() / 1000 - 1), true, cache.getGeneration());
+		assertNull(cache.get("FOO"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testTimeToLive() throws Exception {
+		cache.setTimeToLiveSeconds(0);
+		cache.put("FOO", claims("marissa", "app", exp), true, cache.getGeneration());
+		Thread.sleep(10);
+		assertNull(cache.get("FOO"));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEvicted() {
+		cache.put("FOO", claims("marissa", "app", exp), true, cache.getGeneration());
+		cache.put("BAR", claims("marissa", "app", exp), true, cache.getGeneration());
+		assertNotNull(cache.get("FOO"));
+		cache.put("SPAM", claims("marissa", "app", exp), true, cache.getGeneration());
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get("FOO"));
+		assertNull(cache.get("BAR"));
+	}
+
+	@Test
+	public void testStalePutIgnored() {
+		long generation = cache.getGeneration();
+		cache.invalidateUser("nobody");
+		cache.put("FOO", claims("marissa", "app", exp), true, generation);
+		assertNull(cache.get("FOO"));
+	}
+
+	@Test
+	public void testInvalidateUser() {
+		cache.put("FOO", claims("marissa", "app", exp), true, cache.getGeneration());
+		cache.put("BAR", claims("dale", "app", exp), true, cache.getGeneration());
+		cache.invalidateUser("marissa-id");
+		assertNull(cache.get("FOO"));
+		assertNotNull(cache.get("BAR"));
+	}
+
+	@Test
+	public void testUserChangedEvent() {
+		cache.put("FOO", claims("marissa", "app", exp), true, cache.getGeneration());
+		cache.put("BAR", claims("dale", "app", exp), true, cache.getGeneration());
+		cache.onApplicationEvent(new UserChangedEvent(this, "marissa-id"));
+		assertNull(cache.get("FOO"));
+		assertNotNull(cache.get("BAR"));
+		cache.onApplicationEvent(new UserChangedEvent(this));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testClientUpdateEvent() {
+		cache.put("FOO", claims("marissa", "app", exp), true, cache.getGeneration());
+		cache.put("BAR", claims("marissa", "other", exp), true, cache.getGeneration());
+		cache.onApplicationEvent(new ClientUpdateEvent(new BaseClientDetails("app", "", "", "", ""), null));
+		assertNull(cache.get("FOO"));
+		assertNotNull(cache.get("BAR"));
+	}
+
+	@Test
+	public void testApprovalsChangedEvent() {
+		InMemoryApprovalStore store = new InMemoryApprovalStore();
+		cache.put("FOO", claims("marissa", "app", exp), true, cache.getGeneration());
+		cache.put("BAR", claims("dale", "app", exp), true, cache.getGeneration());
+		cache.onApplicationEvent(new ApprovalsChangedEvent(store, "marissa", "app"));
+		assertNull(cache.get("FOO"));
+		assertNotNull(cache.get("BAR"));
+		cache.onApplicationEvent(new ApprovalsChangedEvent(store));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testInvalidateUserInStripedCache() {
+		cache.setMaxSize(8192);
+		for (int i = 0; i < 1000; i++) {
+			cache.put("FOO" + i, claims("marissa", "app", exp), true, cache.getGeneration());
+			cache.put("BAR" + i, claims("dale", "other", exp), true, cache.getGeneration());
+		}
+		assertEquals(2000, cache.size());
+		cache.invalidateUser("marissa-id");
+		assertEquals(1000, cache.size());
+		assertNull(cache.get("FOO10"));
+		assertNotNull(cache.get("BAR10"));
+		cache.invalidateClient("other");
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testEvictedEntryRemovedFromIndex() {
+		cache.put("FOO", claims("marissa", "app", exp), true, cache.getGeneration());
+		cache.put("BAR", claims("dale", "app", exp), true, cache.getGeneration());
+		cache.put("SPAM", claims("dale", "app", exp), true, cache.getGeneration());
+		cache.invalidateUser("marissa-id");
+		cache.put("FOO", claims("dale", "app", exp), true, cache.getGeneration());
+		cache.invalidateUser("marissa-id");
+		assertNotNull(cache.get("FOO"));
+	}
+
+	private TokenClaims claims(String userName, String clientId, long exp) {
+		return new TokenClaims(("{\"user_id\":\"" + userName + "-id\",\"user_name\":\"" + userName
+				+ "\",\"email\":\"" + userName + "@test.org\",\"cid\":\"" + clientId + "\",\"scope\":"
+				+ Collections.singletonList("\"read\"") + ",\"exp\":" + exp + "}").getBytes());
+	}
+
+}
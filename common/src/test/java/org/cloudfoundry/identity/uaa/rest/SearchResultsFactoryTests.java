@@ -0,0 +1,109 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.expression.spel.SpelEvaluationException;
+
+public class SearchResultsFactoryTests {
+
+	private List<String> schemas = Collections.singletonList("urn:test");
+
+	@Test
+	public void propertiesAndNestedPropertiesRead() {
+		Map<String, Object> result = buildResult(new Item("a", new Item("b", null)), "name", "child.name", "child.child");
+		assertEquals("a", result.get("name"));
+		assertEquals("b", result.get("child.name"));
+		assertNull(result.get("child.child"));
+	}
+
+	@Test
+	public void booleanPropertiesRead() {
+		assertEquals(true, buildResult(new Item("a", null), "active").get("active"));
+	}
+
+	@Test
+	public void expressionsEvaluated() {
+		Map<String, Object> result = buildResult(new Item("a", null), "tags.![toUpperCase()]", "name.length()");
+		assertEquals(Arrays.asList("X", "Y"), result.get("tags.![toUpperCase()]"));
+		assertEquals(1, result.get("name.length()"));
+	}
+
+	@Test
+	public void attributesMappedBeforeReading() {
+		AttributeNameMapper mapper = new SimpleAttributeNameMapper(Collections.singletonMap("display_name", "name"));
+		SearchResults<Map<String, Object>> results = SearchResultsFactory.buildSearchResultFrom(
+				Arrays.asList(new Item("a", null)), 1, 1, 1, new String[] { "display_name" }, mapper, schemas);
+		assertEquals("a", results.getResources().iterator().next().get("display_name"));
+	}
+
+	@Test(expected = SpelEvaluationException.class)
+	public void propertyOfNullIsAnError() {
+		buildResult(new Item("a", null), "child.name");
+	}
+
+	@Test(expected = SpelEvaluationException.class)
+	public void unknownPropertyIsAnError() {
+		buildResult(new Item("a", null), "unknown");
+	}
+
+	@Test
+	public void accessorsShared() {
+		assertSame(AttributeAccessor.forExpression("child.name"), AttributeAccessor.forExpression("child.name"));
+	}
+
+	private Map<String, Object> buildResult(Item item, String... attributes) {
+		SearchResults<Map<String, Object>> results = SearchResultsFactory.buildSearchResultFrom(Arrays.asList(item),
+				1, 1, 1, attributes, schemas);
+		return results.getResources().iterator().next();
+	}
+
+	public static class Item {
+
+		private final String name;
+
+		private final Item child;
+
+		public Item(String name, Item child) {
+			this.name = name;
+			this.child = child;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Item getChild() {
+			return child;
+		}
+
+		public boolean isActive() {
+			return true;
+		}
+
+		public List<String> getTags() {
+			return Arrays.asList("x", "y");
+		}
+
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+
+public class CachingUaaUserDatabaseTests {
+
+	private int loads = 0;
+
+	private MockUaaUserDatabase delegate = new MockUaaUserDatabase("12345", "jdsa", "jdsa@vmware.com", "Joel", "D'sa") {
+		@Override
+		public UaaUser retrieveUserByName(String username) throws UsernameNotFoundException {
+			loads++;
+			return super.retrieveUserByName(username);
+		}
+
+		@Override
+		public UaaUser retrieveUserById(String id) throws UsernameNotFoundException {
+			loads++;
+			return super.retrieveUserById(id);
+		}
+	};
+
+	private CachingUaaUserDatabase database = new CachingUaaUserDatabase(delegate);
+
+	@Before
+	public void init() {
+		database.setMaxSize(10);
+	}
+
+	@Test
+	public void testDisabledByDefault() {
+		database = new CachingUaaUserDatabase(delegate);
+		database.retrieveUserByName("jdsa");
+		database.retrieveUserByName("jdsa");
+		assertEquals(2, loads);
+		assertEquals(0, database.getSize());
+	}
+
+	@Test
+	public void testUserCachedByNameAndId() {
+		UaaUser user = database.retrieveUserByName("jdsa");
+		assertSame(user, database.retrieveUserByName("jdsa"));
+		assertSame(user, database.retrieveUserById("12345"));
+		assertSame(user, database.retrieveUserById("12345"));
+		assertEquals(2, loads);
+		assertEquals(2, database.getHitCount());
+		assertEquals(2, database.getMissCount());
+	}
+
+	@Test
+	public void testUnknownUserNotCached() {
+		for (int i = 0; i < 2; i++) {
+			try {
+				database.retrieveUserByName("foo");
+			}
+			catch (UsernameNotFoundException e) {
+				// expected
+			}
+		}
+		assertEquals(2, loads);
+		assertEquals(0, database.getSize());
+	}
+
+	@Test
+	public void testCacheBoundedByTimeToLive() {
+		database.setTimeToLiveSeconds(0);
+		database.retrieveUserByName("jdsa");
+		database.retrieveUserByName("jdsa");
+		assertEquals(2, loads);
+	}
+
+	@Test
+	public void testUserChangedEventRemovesUser() {
+		database.retrieveUserByName("jdsa");
+		database.retrieveUserById("12345");
+		database.onApplicationEvent(new UserChangedEvent(this, "12345"));
+		assertEquals(0, database.getSize());
+		database.retrieveUserByName("jdsa");
+		assertEquals(3, loads);
+	}
+
+	@Test
+	public void testUserChangedEventForOtherUser() {
+		database.retrieveUserByName("jdsa");
+		database.onApplicationEvent(new UserChangedEvent(this, "67890"));
+		database.retrieveUserByName("jdsa");
+		assertEquals(1, loads);
+	}
+
+	@Test
+	public void testUserChangedEventForAllUsers() {
+		database.retrieveUserByName("jdsa");
+		database.onApplicationEvent(new UserChangedEvent(this));
+		assertEquals(0, database.getSize());
+	}
+
+}
@@ -131,4 +131,37 @@ public class JdbcUaaUserDatabaseTests {
 		assertTrue("authorities does not contain uaa.user", joe.getAuthorities().contains(new SimpleGrantedAuthority("uaa.user")));
 		assertTrue("authorities does not contain dash.admin", joe.getAuthorities().contains(new SimpleGrantedAuthority("dash.admin")));
 	}
+
+	@Test
+	public void getValidUserById() {
+		addAuthority("dash.admin", JOE_ID);
+		UaaUser joe = db.retrieveUserById(JOE_ID);
+		assertEquals("Joe", joe.getUsername());
+		assertEquals("joe@test.org", joe.getEmail());
+		assertTrue("authorities does not contain uaa.user", joe.getAuthorities().contains(new SimpleGrantedAuthority("uaa.user")));
+		assertTrue("authorities does not contain dash.admin", joe.getAuthorities().contains(new SimpleGrantedAuthority("dash.admin")));
+	}
+
+	@Test(expected = UsernameNotFoundException.class)
+	public void getNonExistentUserByIdRaisedNotFoundException() {
+		db.retrieveUserById(UUID.randomUUID().toString());
+	}
+
+	@Test
+	public void getUserWithSeparateAuthoritiesQuery() {
+		addAuthority("dash.admin", JOE_ID);
+		db.setUserAuthoritiesQuery(getAuthoritiesSql);
+		UaaUser joe = db.retrieveUserByName("joe");
+		assertTrue("authorities does not contain dash.admin", joe.getAuthorities().contains(new SimpleGrantedAuthority("dash.admin")));
+	}
+
+	@Test
+	public void getUserWithQueryThatDoesNotSelectAuthorities() {
+		addAuthority("dash.admin", JOE_ID);
+		db.setUserByUserNameQuery("select " + JdbcUaaUserDatabase.USER_FIELDS
+				+ "from users where lower(username) = ? and active=?");
+		UaaUser joe = db.retrieveUserByName("joe");
+		assertTrue("authorities does not contain uaa.user", joe.getAuthorities().contains(new SimpleGrantedAuthority("uaa.user")));
+		assertTrue("authorities does not contain dash.admin", joe.getAuthorities().contains(new SimpleGrantedAuthority("dash.admin")));
+	}
 }
@@ -41,4 +41,14 @@ public class MockUaaUserDatabase implements UaaUserDatabase {
 			throw new UsernameNotFoundException(username);
 		}
 	}
+
+	@Override
+	public UaaUser retrieveUserById(String id) throws UsernameNotFoundException {
+		if (user.getId().equals(id)) {
+			return user;
+		}
+		else {
+			throw new UsernameNotFoundException(id);
+		}
+	}
 }
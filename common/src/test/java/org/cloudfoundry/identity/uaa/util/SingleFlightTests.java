@@ -0,0 +1,146 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SingleFlightTests {
+
+	private SingleFlight<String, List<String>> flight = new SingleFlight<String, List<String>>();
+
+	private ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	private AtomicInteger loads = new AtomicInteger();
+
+	private CountDownLatch started = new CountDownLatch(1);
+
+	private CountDownLatch release = new CountDownLatch(1);
+
+	@After
+	public void close() {
+		release.countDown();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testConcurrentCallersShareLoad() throws Exception {
+		Future<List<String>> first = executor.submit(new Callable<List<String>>() {
+			@Override
+			public List<String> call() {
+				return flight.execute("foo", blockingLoader(null));
+			}
+		});
+		started.await(5, TimeUnit.SECONDS);
+		Future<List<String>> second = startWaiter();
+		release.countDown();
+		assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+		assertEquals(1, loads.get());
+		assertEquals(1, flight.getCoalescedCount());
+	}
+
+	@Test
+	public void testSequentialCallersLoadAgain() throws Exception {
+		release.countDown();
+		flight.execute("foo", blockingLoader(null));
+		flight.execute("foo", blockingLoader(null));
+		assertEquals(2, loads.get());
+		assertEquals(0, flight.getCoalescedCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testExceptionSharedWithWaiters() throws Throwable {
+		executor.submit(new Callable<List<String>>() {
+			@Override
+			public List<String> call() {
+				return flight.execute("foo", blockingLoader(new IllegalArgumentException("Planned")));
+			}
+		});
+		started.await(5, TimeUnit.SECONDS);
+		Future<List<String>> second = startWaiter();
+		release.countDown();
+		try {
+			second.get(5, TimeUnit.SECONDS);
+		}
+		catch (Exception e) {
+			throw e.getCause();
+		}
+	}
+
+	@Test
+	public void testShareCopiesValue() throws Exception {
+		flight = new SingleFlight<String, List<String>>() {
+			@Override
+			protected List<String> share(List<String> value) {
+				return new ArrayList<String>(value);
+			}
+		};
+		final List<String> loaded = new ArrayList<String>();
+		List<String> result = flight.execute("foo", new Callable<List<String>>() {
+			@Override
+			public List<String> call() {
+				return loaded;
+			}
+		});
+		assertNotSame(loaded, result);
+	}
+
+	private Future<List<String>> startWaiter() throws InterruptedException {
+		final CountDownLatch waiting = new CountDownLatch(1);
+		final ExecutorService other = Executors.newSingleThreadExecutor();
+		Future<List<String>> result = other.submit(new Callable<List<String>>() {
+			@Override
+			public List<String> call() {
+				waiting.countDown();
+				return flight.execute("foo", blockingLoader(null));
+			}
+		});
+		other.shutdown();
+		waiting.await(5, TimeUnit.SECONDS);
+		// Give the waiter time to join the load in progress
+		while (flight.getCoalescedCount() == 0 && !result.isDone()) {
+			Thread.sleep(10);
+		}
+		return result;
+	}
+
+	private Callable<List<String>> blockingLoader(final RuntimeException error) {
+		return new Callable<List<String>>() {
+			@Override
+			public List<String> call() throws Exception {
+				loads.incrementAndGet();
+				started.countDown();
+				release.await(5, TimeUnit.SECONDS);
+				if (error != null) {
+					throw error;
+				}
+				return new ArrayList<String>();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,35 @@
+import com.excilys.ebi.gatling.core.Predef._
+import com.excilys.ebi.gatling.http.Predef._
+
+import uaa.Config._
+import uaa.OAuthComponents._
+import bootstrap._
+
+/**
+ * Repeatedly validates the same token at /check_token, as a resource server would.
+ *
+ * Useful for measuring the cost of token verification on the server (compare the response times before and after
+ * a change to the token services).
+ */
+class CheckTokenSimulation extends Simulation {
+  val Duration = sys.env.getOrElse("GATLING_DURATION", "120").toInt
+
+  val resource_client_id = sys.env.getOrElse("GATLING_UAA_RESOURCE_CLIENT", "app")
+  val resource_client_secret = sys.env.getOrElse("GATLING_UAA_RESOURCE_SECRET", "appclientsecret")
+
+  val checkTokens = scenario("Check token")
+    .exec(clientCredentialsAccessTokenRequest(resource_client_id, resource_client_secret, resource_client_id))
+    .doIf(haveAccessToken) {
+      during(Duration) {
+        exec(
+          http("Check token")
+            .post("/check_token")
+            .basicAuth(resource_client_id, resource_client_secret)
+            .param("token", "${access_token}")
+            .header("Accept", "application/json")
+            .check(status is 200))
+      }
+    }
+
+  setUp(checkTokens.users(20).ramp(5).protocolConfig(uaaHttpConfig))
+}
@@ -0,0 +1,26 @@
+import com.excilys.ebi.gatling.core.Predef._
+import com.excilys.ebi.gatling.http.Predef._
+
+import uaa.Config._
+import uaa.OAuthComponents._
+import bootstrap._
+
+/**
+ * Repeatedly obtains client credentials tokens, so most of the server time goes on building and signing the token.
+ *
+ * Useful for comparing the cost of the signing algorithms: run it against the server configured with a shared
+ * (HS256), RSA (RS256) and EC P-256 (ES256) signing key in turn and compare the response times.
+ */
+class TokenIssuanceSimulation extends Simulation {
+  val Duration = sys.env.getOrElse("GATLING_DURATION", "120").toInt
+
+  val client_id = sys.env.getOrElse("GATLING_UAA_RESOURCE_CLIENT", "app")
+  val client_secret = sys.env.getOrElse("GATLING_UAA_RESOURCE_SECRET", "appclientsecret")
+
+  val issueTokens = scenario("Issue tokens")
+    .during(Duration) {
+      exec(clientCredentialsAccessTokenRequest(client_id, client_secret, client_id))
+    }
+
+  setUp(issueTokens.users(20).ramp(5).protocolConfig(uaaHttpConfig))
+}
@@ -4,7 +4,9 @@ import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException
 import org.cloudfoundry.identity.uaa.scim.exception.MemberNotFoundException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public interface ScimGroupMembershipManager {
@@ -46,6 +48,15 @@ public interface ScimGroupMembershipManager {
 	 */
 	Set<ScimGroup> getGroupsWithMember(String memberId, boolean transitive) throws ScimResourceNotFoundException;
 
+	/**
+	 * Retrieve all groups that each of the given members belongs to, with a few queries for all of them rather than a
+	 * few for each one
+	 * @param memberIds
+	 * @param transitive true means indirect/transitive membership is also processed (nested groups)
+	 * @return the groups of each member, by member id
+	 */
+	Map<String, Set<ScimGroup>> getGroupsWithMembers(Collection<String> memberIds, boolean transitive);
+
 	/**
 	 * Retrieve a particular member's membership details
 	 * @param groupId
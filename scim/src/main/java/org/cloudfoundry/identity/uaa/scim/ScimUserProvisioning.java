@@ -12,6 +12,9 @@
  */
 package org.cloudfoundry.identity.uaa.scim;
 
+import java.util.List;
+import java.util.Set;
+
 import org.cloudfoundry.identity.uaa.rest.Queryable;
 import org.cloudfoundry.identity.uaa.rest.ResourceManager;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidPasswordException;
@@ -29,4 +32,11 @@ public interface ScimUserProvisioning extends ResourceManager<ScimUser>, Queryab
 
 	public boolean changePassword(String id, String oldPassword, String newPassword) throws ScimResourceNotFoundException;
 
+	/**
+	 * Find users, but only load what is needed for some of their attributes (the others might be missing).
+	 * 
+	 * @param attributes the names of the top level attributes needed (e.g. "userName" or "emails"), ignoring case
+	 */
+	public List<ScimUser> query(String filter, String sortBy, boolean ascending, Set<String> attributes);
+
 }
@@ -15,6 +15,7 @@ package org.cloudfoundry.identity.uaa.scim.endpoints;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -224,26 +225,33 @@ public class ScimUserEndpoints implements InitializingBean {
 			startIndex = 1;
 		}
 
+		// Only load what is needed for the attributes requested
+		String[] attributes = StringUtils.hasLength(attributesCommaSeparated) ? attributesCommaSeparated.split(",") : null;
+		Set<String> needed = attributes == null ? null : getTopLevelAttributes(attributes);
+		if (needed != null && needed.contains("approvals")) {
+			// Approvals are found by user name
+			needed.add("username");
+		}
+
 		List<ScimUser> input = new ArrayList<ScimUser>();
 		List<ScimUser> result;
 		try {
-			result = dao.query(filter, sortBy, sortOrder.equals("ascending"));
-			for (ScimUser user : UaaPagingUtils.subList(result, startIndex, count)) {
-				syncApprovals(syncGroups(user));
-				input.add(user);
-			}
+			boolean ascending = sortOrder.equals("ascending");
+			result = needed == null ? dao.query(filter, sortBy, ascending) : dao.query(filter, sortBy, ascending, needed);
+			input.addAll(UaaPagingUtils.subList(result, startIndex, count));
+			syncGroupsAndApprovals(input, needed == null || needed.contains("groups"), needed == null
+					|| needed.contains("approvals"));
 		}
 		catch (IllegalArgumentException e) {
 			throw new ScimException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST);
 		}
 
-		if (!StringUtils.hasLength(attributesCommaSeparated)) {
+		if (attributes == null) {
 			// Return all user data
 			return new SearchResults<ScimUser>(Arrays.asList(ScimUser.SCHEMAS), input, startIndex, count, result.size());
 		}
 
 		AttributeNameMapper mapper = new SimpleAttributeNameMapper(Collections.<String, String> singletonMap("emails\\.(.*)", "emails.![$1]"));
-		String[] attributes = attributesCommaSeparated.split(",");
 		try {
 			return SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, result.size(), attributes, mapper, Arrays.asList(ScimUser.SCHEMAS));
 		} catch (SpelParseException e) {
@@ -260,16 +268,7 @@ public class ScimUserEndpoints implements InitializingBean {
 
 		Set<ScimGroup> directGroups = membershipManager.getGroupsWithMember(user.getId(), false);
 		Set<ScimGroup> indirectGroups = membershipManager.getGroupsWithMember(user.getId(), true);
-		indirectGroups.removeAll(directGroups);
-		Set<ScimUser.Group> groups = new HashSet<ScimUser.Group>();
-		for (ScimGroup group : directGroups) {
-			groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.DIRECT));
-		}
-		for (ScimGroup group : indirectGroups) {
-			groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.INDIRECT));
-		}
-
-		user.setGroups(groups);
+		user.setGroups(getGroups(directGroups, indirectGroups));
 		return user;
 	}
 
@@ -277,15 +276,92 @@ public class ScimUserEndpoints implements InitializingBean {
 		if (user == null || approvalStore == null) {
 			return user;
 		}
-		Set<Approval> approvals = new HashSet<Approval>(approvalStore.getApprovals(String.format(USER_APPROVALS_FILTER_TEMPLATE, user.getUserName())));
-		Set<Approval> active = new HashSet<Approval>(approvals);
+		user.setApprovals(getActiveApprovals(approvalStore.getApprovals(String.format(USER_APPROVALS_FILTER_TEMPLATE, user.getUserName()))));
+		return user;
+	}
+
+	/**
+	 * The lower case names of the top level attributes in a list of (possibly nested) attribute names, e.g. "emails"
+	 * for "emails.value".
+	 */
+	private Set<String> getTopLevelAttributes(String[] attributes) {
+		Set<String> names = new HashSet<String>();
+		for (String attribute : attributes) {
+			String name = attribute.trim().toLowerCase();
+			int end = 0;
+			while (end < name.length() && Character.isJavaIdentifierPart(name.charAt(end))) {
+				end++;
+			}
+			names.add(name.substring(0, end));
+		}
+		return names;
+	}
+
+	/**
+	 * Does the same as {@link #syncGroups(ScimUser)} and {@link #syncApprovals(ScimUser)} for a page of users, but
+	 * loads the memberships and approvals of all of them together and then shares them out.
+	 */
+	private void syncGroupsAndApprovals(List<ScimUser> users, boolean groups, boolean approvals) {
+		if (users.isEmpty()) {
+			return;
+		}
+		if (groups) {
+			Set<String> ids = new HashSet<String>();
+			for (ScimUser user : users) {
+				ids.add(user.getId());
+			}
+			Map<String, Set<ScimGroup>> directGroups = membershipManager.getGroupsWithMembers(ids, false);
+			Map<String, Set<ScimGroup>> indirectGroups = membershipManager.getGroupsWithMembers(ids, true);
+			for (ScimUser user : users) {
+				user.setGroups(getGroups(directGroups.get(user.getId()), indirectGroups.get(user.getId())));
+			}
+		}
+		if (approvals && approvalStore != null) {
+			syncApprovals(users);
+		}
+	}
+
+	private void syncApprovals(List<ScimUser> users) {
+		Map<String, List<Approval>> approvals = new HashMap<String, List<Approval>>();
+		for (ScimUser user : users) {
+			approvals.put(user.getUserName().toLowerCase(), new ArrayList<Approval>());
+		}
+		for (Approval approval : approvalStore.getApprovalsForUsers(approvals.keySet())) {
+			List<Approval> list = approvals.get(approval.getUserName().toLowerCase());
+			if (list != null) {
+				list.add(approval);
+			}
+		}
+		for (ScimUser user : users) {
+			user.setApprovals(getActiveApprovals(approvals.get(user.getUserName().toLowerCase())));
+		}
+	}
+
+	private Set<ScimUser.Group> getGroups(Set<ScimGroup> directGroups, Set<ScimGroup> indirectGroups) {
+		Set<ScimUser.Group> groups = new HashSet<ScimUser.Group>();
+		if (directGroups != null) {
+			for (ScimGroup group : directGroups) {
+				groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.DIRECT));
+			}
+		}
+		if (indirectGroups != null) {
+			for (ScimGroup group : indirectGroups) {
+				if (directGroups == null || !directGroups.contains(group)) {
+					groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.INDIRECT));
+				}
+			}
+		}
+		return groups;
+	}
+
+	private Set<Approval> getActiveApprovals(Collection<Approval> approvals) {
+		Set<Approval> active = new HashSet<Approval>();
 		for (Approval approval : approvals) {
-			if (!approval.isCurrentlyActive()) {
-				active.remove(approval);
+			if (approval.isCurrentlyActive()) {
+				active.add(approval);
 			}
 		}
-		user.setApprovals(active);
-		return user;
+		return active;
 	}
 
 	@ExceptionHandler
@@ -0,0 +1,728 @@
+/*
+ * Cloud Foundry 2012.02.03 Beta
+ * Copyright (c) [2009-2012] VMware, Inc. All Rights Reserved.
+ *
+ * This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ * You may not use this product except in compliance with the License.
+ *
+ * This product includes a number of subcomponents with
+ * separate copyright notices and license terms. Your use of these
+ * subcomponents is subject to the terms and conditions of the
+ * subcomponent's license, as noted in the LICENSE file.
+ */
+package org.cloudfoundry.identity.uaa.scim.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMembershipManager;
+import org.cloudfoundry.identity.uaa.scim.ScimMeta;
+import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException;
+import org.cloudfoundry.identity.uaa.scim.exception.MemberNotFoundException;
+import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
+import org.cloudfoundry.identity.uaa.user.UserChangedEvent;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link ScimGroupMembershipManager} that answers "which groups is this member in" from an index of the whole group
+ * graph in memory, instead of the database. Everything else (including all changes) is done by the delegate.
+ *
+ * The groups are numbered, and the direct and transitive groups of each member are held as compressed bit sets
+ * (identical sets are shared, which is the common case for users). The index is loaded on startup, and kept up to date
+ * from the {@link UserChangedEvent}s the membership manager publishes: when a user's memberships change only that
+ * user is reloaded, but a change to a group (e.g. adding one group to another) or to many members at once reloads the
+ * whole index in the background, and until that is done the delegate is used. Users that change while the index is
+ * loading are reloaded again before it is used, so a steady stream of changes does not keep it from being used. The
+ * index is also reloaded every {@link #setReconcileIntervalSeconds(int) reconcile interval}, to pick up changes made
+ * some other way (e.g. by another server).
+ *
+ * Members that are not in the index (e.g. users created since it was loaded, before they are in any group) are looked
+ * up with the delegate. The index is disabled by default, in which case everything is done by the delegate.
+ */
+@ManagedResource
+public class IndexedScimGroupMembershipManager implements ScimGroupMembershipManager,
+		ApplicationListener<UserChangedEvent>, InitializingBean, DisposableBean {
+
+	public static final String GET_ALL_USER_IDS_SQL = "select id from users";
+
+	public static final String COUNT_USER_SQL = "select count(*) from users where id=?";
+
+	public static final String GET_GROUP_IDS_BY_MEMBER_SQL = String.format("select group_id from %s where member_id=?", JdbcScimGroupMembershipManager.MEMBERSHIP_TABLE);
+
+	private final Log logger = LogFactory.getLog(getClass());
+
+	private final ScimGroupMembershipManager delegate;
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final RowMapper<ScimGroup> groupRowMapper = new JdbcScimGroupProvisioning.ScimGroupRowMapper();
+
+	private boolean enabled = false;
+
+	private int reconcileIntervalSeconds = 300;
+
+	private Set<String> defaultUserGroups = Collections.emptySet();
+
+	private final Object lock = new Object();
+
+	private final Object reloadLock = new Object();
+
+	private volatile Graph graph;
+
+	private volatile boolean stale = true;
+
+	// Incremented (under the lock) on every change to many members, so a reload that might have missed it is discarded
+	private long generation = 0;
+
+	// The members that changed (under the lock) while the index is loading, to reload before it is used
+	private Set<String> changedWhileLoading;
+
+	private boolean reloadPending = false;
+
+	private ScheduledExecutorService scheduler;
+
+	private final AtomicInteger hitCount = new AtomicInteger();
+
+	private final AtomicInteger missCount = new AtomicInteger();
+
+	private final AtomicInteger reloadCount = new AtomicInteger();
+
+	private volatile long reloadMillis = 0;
+
+	public IndexedScimGroupMembershipManager(ScimGroupMembershipManager delegate, JdbcTemplate jdbcTemplate) {
+		Assert.notNull(delegate);
+		Assert.notNull(jdbcTemplate);
+		this.delegate = delegate;
+		this.jdbcTemplate = jdbcTemplate;
+	}
+
+	/**
+	 * @param enabled true to use the index (default false)
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @param reconcileIntervalSeconds how often to reload the index from the database (default 300, 0 to only reload
+	 * it when groups change)
+	 */
+	public void setReconcileIntervalSeconds(int reconcileIntervalSeconds) {
+		this.reconcileIntervalSeconds = reconcileIntervalSeconds;
+	}
+
+	/**
+	 * @param defaultUserGroups the names of the groups every user is in (the same as the delegate's)
+	 */
+	public void setDefaultUserGroups(Set<String> defaultUserGroups) {
+		this.defaultUserGroups = defaultUserGroups;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if (!enabled) {
+			return;
+		}
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("group-index-");
+		threadFactory.setDaemon(true);
+		scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		reload();
+		if (reconcileIntervalSeconds > 0) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					reloadQuietly();
+				}
+			}, reconcileIntervalSeconds, reconcileIntervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Indexed Groups")
+	public int getGroupCount() {
+		Graph graph = this.graph;
+		return graph == null ? 0 : graph.groups.length;
+	}
+
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Indexed Members")
+	public int getMemberCount() {
+		Graph graph = this.graph;
+		return graph == null ? 0 : graph.members.size();
+	}
+
+	/**
+	 * @return the number of transitive memberships in the index (not counting the default groups)
+	 */
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Indexed Memberships")
+	public long getMembershipCount() {
+		Graph graph = this.graph;
+		long count = 0;
+		if (graph != null) {
+			for (Member member : graph.members.values()) {
+				count += member.transitive.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return an estimate of the heap used by the index (computed by walking it, so not cheap)
+	 */
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Index Bytes")
+	public long getEstimatedBytes() {
+		Graph graph = this.graph;
+		return graph == null ? 0 : graph.getEstimatedBytes();
+	}
+
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Index Bytes Per Million Memberships")
+	public long getBytesPerMillionMemberships() {
+		long memberships = getMembershipCount();
+		return memberships == 0 ? 0 : getEstimatedBytes() * 1000000 / memberships;
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Index Hits")
+	public int getHitCount() {
+		return hitCount.get();
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Index Misses")
+	public int getMissCount() {
+		return missCount.get();
+	}
+
+	@ManagedMetric(metricType = MetricType.COUNTER, displayName = "Index Reloads")
+	public int getReloadCount() {
+		return reloadCount.get();
+	}
+
+	@ManagedMetric(metricType = MetricType.GAUGE, displayName = "Last Index Reload Millis")
+	public long getReloadMillis() {
+		return reloadMillis;
+	}
+
+	/**
+	 * Load the whole index from the database, reload the members that changed in the meantime, and use it (unless a
+	 * change to many members was missed).
+	 */
+	@ManagedOperation(description = "Reload the group membership index from the database")
+	public void reload() {
+		synchronized (reloadLock) {
+			doReload();
+		}
+	}
+
+	private void doReload() {
+		long start = System.currentTimeMillis();
+		long loading;
+		synchronized (lock) {
+			loading = generation;
+			reloadPending = false;
+			changedWhileLoading = new HashSet<String>();
+		}
+		Graph loaded;
+		try {
+			loaded = load();
+		}
+		catch (RuntimeException e) {
+			synchronized (lock) {
+				changedWhileLoading = null;
+			}
+			throw e;
+		}
+		synchronized (lock) {
+			Set<String> changed = changedWhileLoading;
+			changedWhileLoading = null;
+			boolean complete = loading == generation;
+			for (String memberId : changed) {
+				if (!complete) {
+					break;
+				}
+				complete = update(loaded, memberId);
+			}
+			if (!complete) {
+				// A change might have been missed: if the current index was kept up to date it is still good
+				logger.debug("Groups changed while the index was loading");
+				if (stale) {
+					scheduleReload();
+				}
+				return;
+			}
+			graph = loaded;
+			stale = false;
+		}
+		reloadCount.incrementAndGet();
+		reloadMillis = System.currentTimeMillis() - start;
+		logger.info("Loaded group membership index with " + loaded.groups.length + " groups and "
+				+ loaded.members.size() + " members in " + reloadMillis + "ms");
+	}
+
+	@Override
+	public void onApplicationEvent(UserChangedEvent event) {
+		if (!enabled) {
+			return;
+		}
+		String memberId = event.getUserId();
+		synchronized (lock) {
+			if (memberId == null) {
+				generation++;
+				invalidate();
+				return;
+			}
+			if (changedWhileLoading != null) {
+				changedWhileLoading.add(memberId);
+			}
+			if (stale || graph == null) {
+				// A reload is pending already
+				return;
+			}
+			if (!update(graph, memberId)) {
+				invalidate();
+			}
+		}
+	}
+
+	@Override
+	public Set<ScimGroup> getGroupsWithMember(String memberId, boolean transitive) throws ScimResourceNotFoundException {
+		Graph graph = getGraph();
+		Member member = graph == null ? null : graph.members.get(memberId);
+		if (member == null) {
+			missCount.incrementAndGet();
+			return delegate.getGroupsWithMember(memberId, transitive);
+		}
+		hitCount.incrementAndGet();
+		return graph.getGroups(member, transitive);
+	}
+
+	@Override
+	public Map<String, Set<ScimGroup>> getGroupsWithMembers(Collection<String> memberIds, boolean transitive) {
+		Graph graph = getGraph();
+		Map<String, Set<ScimGroup>> results = new HashMap<String, Set<ScimGroup>>();
+		List<String> missing = new ArrayList<String>();
+		for (String memberId : memberIds) {
+			Member member = graph == null ? null : graph.members.get(memberId);
+			if (member == null) {
+				missing.add(memberId);
+			}
+			else {
+				results.put(memberId, graph.getGroups(member, transitive));
+			}
+		}
+		hitCount.addAndGet(results.size());
+		if (!missing.isEmpty()) {
+			missCount.addAndGet(missing.size());
+			results.putAll(delegate.getGroupsWithMembers(missing, transitive));
+		}
+		return results;
+	}
+
+	@Override
+	public ScimGroupMember addMember(String groupId, ScimGroupMember member) throws ScimResourceNotFoundException,
+			MemberAlreadyExistsException {
+		return delegate.addMember(groupId, member);
+	}
+
+	@Override
+	public List<ScimGroupMember> getMembers(String groupId) throws ScimResourceNotFoundException {
+		return delegate.getMembers(groupId);
+	}
+
+	@Override
+	public List<ScimGroupMember> getMembers(String groupId, ScimGroupMember.Role permission)
+			throws ScimResourceNotFoundException {
+		return delegate.getMembers(groupId, permission);
+	}
+
+	@Override
+	public ScimGroupMember getMemberById(String groupId, String memberId) throws ScimResourceNotFoundException,
+			MemberNotFoundException {
+		return delegate.getMemberById(groupId, memberId);
+	}
+
+	@Override
+	public ScimGroupMember updateMember(String groupId, ScimGroupMember member) throws ScimResourceNotFoundException,
+			MemberNotFoundException {
+		return delegate.updateMember(groupId, member);
+	}
+
+	@Override
+	public List<ScimGroupMember> updateOrAddMembers(String groupId, List<ScimGroupMember> members)
+			throws ScimResourceNotFoundException {
+		return delegate.updateOrAddMembers(groupId, members);
+	}
+
+	@Override
+	public ScimGroupMember removeMemberById(String groupId, String memberId) throws ScimResourceNotFoundException,
+			MemberNotFoundException {
+		return delegate.removeMemberById(groupId, memberId);
+	}
+
+	@Override
+	public List<ScimGroupMember> removeMembersByGroupId(String groupId) throws ScimResourceNotFoundException {
+		return delegate.removeMembersByGroupId(groupId);
+	}
+
+	@Override
+	public Set<ScimGroup> removeMembersByMemberId(String memberId) throws ScimResourceNotFoundException {
+		return delegate.removeMembersByMemberId(memberId);
+	}
+
+	private Graph getGraph() {
+		return !enabled || stale ? null : graph;
+	}
+
+	/**
+	 * Reload the direct groups of a member whose memberships changed. Only users can be updated like this: if the
+	 * member is a group (or in a group the index does not know about) the whole index has to be reloaded.
+	 *
+	 * @return false if the whole index has to be reloaded
+	 */
+	private boolean update(Graph graph, String memberId) {
+		try {
+			if (graph.groupIndex.containsKey(memberId)) {
+				return false;
+			}
+			boolean user = jdbcTemplate.queryForInt(COUNT_USER_SQL, memberId) > 0;
+			BitSet direct = new BitSet();
+			for (String groupId : jdbcTemplate.queryForList(GET_GROUP_IDS_BY_MEMBER_SQL, String.class, memberId)) {
+				Integer group = graph.groupIndex.get(groupId);
+				if (group == null) {
+					return false;
+				}
+				direct.set(group);
+			}
+			if (!user) {
+				if (!direct.isEmpty()) {
+					// Probably a group created since the index was loaded
+					return false;
+				}
+				graph.members.remove(memberId);
+				return true;
+			}
+			graph.members.put(memberId, graph.createMember(true, direct));
+			return true;
+		}
+		catch (RuntimeException e) {
+			logger.warn("Could not update group membership index for " + memberId, e);
+			return false;
+		}
+	}
+
+	private void invalidate() {
+		stale = true;
+		scheduleReload();
+	}
+
+	private void scheduleReload() {
+		if (reloadPending || scheduler == null) {
+			return;
+		}
+		reloadPending = true;
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				reloadQuietly();
+			}
+		});
+	}
+
+	private void reloadQuietly() {
+		try {
+			reload();
+		}
+		catch (RuntimeException e) {
+			logger.warn("Could not reload group membership index", e);
+			synchronized (lock) {
+				reloadPending = false;
+			}
+		}
+	}
+
+	private Graph load() {
+		List<ScimGroup> groups = jdbcTemplate.query(JdbcScimGroupProvisioning.GET_GROUPS_SQL, groupRowMapper);
+		final Map<String, Integer> groupIndex = new HashMap<String, Integer>();
+		for (int i = 0; i < groups.size(); i++) {
+			groupIndex.put(groups.get(i).getId(), i);
+		}
+
+		final Map<String, BitSet> parents = new HashMap<String, BitSet>();
+		jdbcTemplate.query(JdbcScimGroupMembershipManager.GET_ALL_PARENTS_SQL, new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				Integer group = groupIndex.get(rs.getString(2));
+				if (group == null) {
+					return;
+				}
+				BitSet bits = parents.get(rs.getString(1));
+				if (bits == null) {
+					bits = new BitSet();
+					parents.put(rs.getString(1), bits);
+				}
+				bits.set(group);
+			}
+		});
+
+		final Set<String> users = new HashSet<String>();
+		jdbcTemplate.query(GET_ALL_USER_IDS_SQL, new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				users.add(rs.getString(1));
+			}
+		});
+
+		Graph graph = new Graph(groups.toArray(new ScimGroup[groups.size()]), groupIndex);
+		for (int i = 0; i < graph.groups.length; i++) {
+			graph.ancestors[i] = graph.intern(GroupSet.of(getAncestors(graph.groups[i].getId(), graph, parents)));
+			if (defaultUserGroups.contains(graph.groups[i].getDisplayName())) {
+				graph.defaultGroups.set(i);
+			}
+		}
+		Set<String> memberIds = new HashSet<String>(users);
+		memberIds.addAll(parents.keySet());
+		memberIds.addAll(groupIndex.keySet());
+		for (String memberId : memberIds) {
+			BitSet direct = parents.get(memberId);
+			graph.members.put(memberId, graph.createMember(users.contains(memberId), direct == null ? new BitSet()
+					: direct));
+		}
+		return graph;
+	}
+
+	/**
+	 * All the groups a group is in, directly or not (including itself if there is a cycle).
+	 */
+	private static BitSet getAncestors(String groupId, Graph graph, Map<String, BitSet> parents) {
+		BitSet ancestors = new BitSet();
+		Deque<String> next = new ArrayDeque<String>();
+		next.push(groupId);
+		while (!next.isEmpty()) {
+			BitSet groups = parents.get(next.pop());
+			if (groups == null) {
+				continue;
+			}
+			for (int i = groups.nextSetBit(0); i >= 0; i = groups.nextSetBit(i + 1)) {
+				if (!ancestors.get(i)) {
+					ancestors.set(i);
+					next.push(graph.groups[i].getId());
+				}
+			}
+		}
+		return ancestors;
+	}
+
+	/**
+	 * A snapshot of the groups, with the memberships that are kept up to date.
+	 */
+	private static final class Graph {
+
+		private final ScimGroup[] groups;
+
+		private final Map<String, Integer> groupIndex;
+
+		// The groups each group is in, directly or not
+		private final GroupSet[] ancestors;
+
+		private final BitSet defaultGroups = new BitSet();
+
+		private final ConcurrentMap<String, Member> members = new ConcurrentHashMap<String, Member>();
+
+		// Only changed while loading or under the lock
+		private final Map<GroupSet, GroupSet> sets = new HashMap<GroupSet, GroupSet>();
+
+		private Graph(ScimGroup[] groups, Map<String, Integer> groupIndex) {
+			this.groups = groups;
+			this.groupIndex = groupIndex;
+			this.ancestors = new GroupSet[groups.length];
+		}
+
+		private Member createMember(boolean user, BitSet direct) {
+			BitSet transitive = new BitSet();
+			for (int i = direct.nextSetBit(0); i >= 0; i = direct.nextSetBit(i + 1)) {
+				transitive.set(i);
+				ancestors[i].addTo(transitive);
+			}
+			return new Member(user, intern(GroupSet.of(direct)), intern(GroupSet.of(transitive)));
+		}
+
+		private GroupSet intern(GroupSet set) {
+			GroupSet existing = sets.get(set);
+			if (existing != null) {
+				return existing;
+			}
+			sets.put(set, set);
+			return set;
+		}
+
+		private Set<ScimGroup> getGroups(Member member, boolean transitive) {
+			BitSet bits = new BitSet();
+			(transitive ? member.transitive : member.direct).addTo(bits);
+			if (member.user) {
+				bits.or(defaultGroups);
+			}
+			Set<ScimGroup> results = new HashSet<ScimGroup>();
+			for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+				// Copies, because callers are free to change them
+				ScimGroup group = groups[i];
+				ScimGroup copy = new ScimGroup(group.getId(), group.getDisplayName());
+				copy.setMeta(new ScimMeta(group.getMeta().getCreated(), group.getMeta().getLastModified(), group
+						.getMeta().getVersion()));
+				results.add(copy);
+			}
+			return results;
+		}
+
+		private long getEstimatedBytes() {
+			// Rough sizes on a 64 bit JVM with compressed references
+			long bytes = 200L * groups.length;
+			Set<GroupSet> counted = Collections.newSetFromMap(new IdentityHashMap<GroupSet, Boolean>());
+			for (GroupSet set : ancestors) {
+				if (counted.add(set)) {
+					bytes += set.getEstimatedBytes();
+				}
+			}
+			for (Map.Entry<String, Member> entry : members.entrySet()) {
+				// Map entry, id and member
+				bytes += 32 + 40 + 2L * entry.getKey().length() + 24;
+				Member member = entry.getValue();
+				for (GroupSet set : new GroupSet[] { member.direct, member.transitive }) {
+					if (counted.add(set)) {
+						bytes += set.getEstimatedBytes();
+					}
+				}
+			}
+			return bytes;
+		}
+
+	}
+
+	private static final class Member {
+
+		private final boolean user;
+
+		private final GroupSet direct;
+
+		private final GroupSet transitive;
+
+		private Member(boolean user, GroupSet direct, GroupSet transitive) {
+			this.user = user;
+			this.direct = direct;
+			this.transitive = transitive;
+		}
+
+	}
+
+	/**
+	 * An immutable set of group numbers, holding only the 64 bit words of a bit set that are not zero (with their
+	 * positions), so it is small however many groups there are.
+	 */
+	private static final class GroupSet {
+
+		private final int[] positions;
+
+		private final long[] words;
+
+		private static GroupSet of(BitSet bits) {
+			int count = 0;
+			int last = -1;
+			for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+				if (i >> 6 != last) {
+					last = i >> 6;
+					count++;
+				}
+			}
+			int[] positions = new int[count];
+			long[] words = new long[count];
+			int word = -1;
+			for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+				if (word < 0 || i >> 6 != positions[word]) {
+					word++;
+					positions[word] = i >> 6;
+				}
+				words[word] |= 1L << (i & 63);
+			}
+			return new GroupSet(positions, words);
+		}
+
+		private GroupSet(int[] positions, long[] words) {
+			this.positions = positions;
+			this.words = words;
+		}
+
+		private int size() {
+			int size = 0;
+			for (long word : words) {
+				size += Long.bitCount(word);
+			}
+			return size;
+		}
+
+		private void addTo(BitSet bits) {
+			for (int w = 0; w < words.length; w++) {
+				long word = words[w];
+				while (word != 0) {
+					bits.set(positions[w] * 64 + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+		}
+
+		private long getEstimatedBytes() {
+			return 16 + 16 + 4L * positions.length + 16 + 8L * words.length;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof GroupSet)) {
+				return false;
+			}
+			GroupSet other = (GroupSet) obj;
+			return Arrays.equals(positions, other.positions) && Arrays.equals(words, other.words);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Arrays.hashCode(positions) + Arrays.hashCode(words);
+		}
+
+	}
+
+}
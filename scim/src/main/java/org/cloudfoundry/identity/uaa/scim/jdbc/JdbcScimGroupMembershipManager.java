@@ -11,13 +11,26 @@ import org.cloudfoundry.identity.uaa.scim.exception.InvalidScimResourceException
 import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException;
 import org.cloudfoundry.identity.uaa.scim.exception.MemberNotFoundException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
+import org.cloudfoundry.identity.uaa.user.UserChangedEvent;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
-import org.springframework.jdbc.core.SingleColumnRowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
@@ -26,16 +39,36 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManager {
+/**
+ * Group memberships in the database. The direct memberships are in one table, and the transitive ones (a member of a
+ * group is also a member of all the groups that group is in, and so on) are kept up to date in a closure table, so
+ * that finding all the groups of a member is one query however deep the groups are nested.
+ *
+ * The closure table is updated by the methods that change the memberships. If the memberships are changed any other
+ * way (e.g. directly in the database), or the closure table is new, it can be recomputed with
+ * {@link #rebuildClosure()} (which is also done on startup if the closure table is empty, by one server at a time).
+ * Each change of the memberships and the update of the closure table that goes with it is one transaction, so
+ * concurrent readers never see the memberships it replaces missing, and the transactions take a lock on a row of the
+ * lock table first, so that concurrent changes (from any server) cannot compute the closure from each other's stale
+ * memberships.
+ */
+@ManagedResource
+public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManager, ApplicationEventPublisherAware,
+		InitializingBean {
 
 	private JdbcTemplate jdbcTemplate;
 
+	private TransactionTemplate transactionTemplate;
+
 	private final Log logger = LogFactory.getLog(getClass());
 
 	public static final String MEMBERSHIP_FIELDS = "group_id,member_id,member_type,authorities,added";
@@ -48,7 +81,38 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
 
 	public static final String GET_MEMBERS_SQL = String.format("select %s from %s where group_id=?", MEMBERSHIP_FIELDS, MEMBERSHIP_TABLE);
 
-	public static final String GET_GROUPS_BY_MEMBER_SQL = String.format("select distinct(group_id) from %s where member_id=?", MEMBERSHIP_TABLE);
+	public static final String GET_GROUPS_BY_MEMBERS_SQL = String.format("select g.id,g.displayName,g.created,g.lastModified,g.version,m.member_id from %s m join %s g on g.id=m.group_id where m.member_id in (:ids)", MEMBERSHIP_TABLE, JdbcScimGroupProvisioning.GROUP_TABLE);
+
+	public static final String CLOSURE_TABLE = "group_membership_closure";
+
+	public static final String GET_TRANSITIVE_GROUPS_BY_MEMBERS_SQL = String.format("select g.id,g.displayName,g.created,g.lastModified,g.version,c.member_id from %s c join %s g on g.id=c.group_id where c.member_id in (:ids)", CLOSURE_TABLE, JdbcScimGroupProvisioning.GROUP_TABLE);
+
+	public static final String GET_PARENTS_BY_MEMBERS_SQL = String.format("select member_id,group_id from %s where member_id in (:ids)", MEMBERSHIP_TABLE);
+
+	public static final String GET_ALL_PARENTS_SQL = String.format("select member_id,group_id from %s", MEMBERSHIP_TABLE);
+
+	public static final String GET_DESCENDANTS_SQL = String.format("select member_id from %s where group_id=?", CLOSURE_TABLE);
+
+	public static final String ADD_CLOSURE_SQL = String.format("insert into %s ( group_id,member_id ) values (?,?)", CLOSURE_TABLE);
+
+	public static final String DELETE_CLOSURE_BY_MEMBERS_SQL = String.format("delete from %s where member_id in (:ids)", CLOSURE_TABLE);
+
+	public static final String DELETE_CLOSURE_SQL = String.format("delete from %s", CLOSURE_TABLE);
+
+	public static final String COUNT_CLOSURE_SQL = String.format("select count(*) from %s", CLOSURE_TABLE);
+
+	public static final String LOCK_TABLE = "group_membership_lock";
+
+	public static final String CLOSURE_LOCK_ID = "closure";
+
+	public static final String COUNT_LOCK_SQL = String.format("select count(*) from %s where id=?", LOCK_TABLE);
+
+	public static final String ADD_LOCK_SQL = String.format("insert into %s ( id ) values (?)", LOCK_TABLE);
+
+	// An update locks the row until the end of the transaction in all the supported databases
+	public static final String LOCK_SQL = String.format("update %s set version=version+1 where id=?", LOCK_TABLE);
+
+	public static final String GET_USER_IDS_SQL = "select id from users where id in (:ids)";
 
 	public static final String GET_MEMBERS_WITH_AUTHORITY_SQL = String.format("select %s from %s where group_id=? and lower(authorities) like ?", MEMBERSHIP_FIELDS, MEMBERSHIP_TABLE);
 
@@ -62,12 +126,19 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
 
 	private final RowMapper<ScimGroupMember> rowMapper = new ScimGroupMemberRowMapper();
 
+	private final RowMapper<ScimGroup> groupRowMapper = new JdbcScimGroupProvisioning.ScimGroupRowMapper();
+
+	// Keeps the in (...) lists well inside the limits of all the supported databases
+	private static final int MAX_IDS_PER_QUERY = 500;
+
 	private ScimUserProvisioning userProvisioning;
 
 	private ScimGroupProvisioning groupProvisioning;
 
 	private Set<ScimGroup> defaultUserGroups = new HashSet<ScimGroup>();
 
+	private ApplicationEventPublisher publisher;
+
 	public void setDefaultUserGroups(Set<String> groupNames) {
 		for (String name : groupNames) {
 			List<ScimGroup> g = groupProvisioning.query(String.format("displayName co '%s'", name));
@@ -90,6 +161,39 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
 	public JdbcScimGroupMembershipManager(JdbcTemplate jdbcTemplate) {
 		Assert.notNull(jdbcTemplate);
 		this.jdbcTemplate = jdbcTemplate;
+		this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
+	}
+
+	/**
+	 * @param transactionManager the transaction manager for the updates of the closure table (default a
+	 * {@link DataSourceTransactionManager} for the data source of the JdbcTemplate)
+	 */
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		Assert.notNull(transactionManager, "A PlatformTransactionManager must be provided");
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+	}
+
+	@Override
+	public void setApplicationEventPublisher(ApplicationEventPublisher publisher) {
+		this.publisher = publisher;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if (jdbcTemplate.queryForInt(COUNT_LOCK_SQL, CLOSURE_LOCK_ID) == 0) {
+			try {
+				jdbcTemplate.update(ADD_LOCK_SQL, CLOSURE_LOCK_ID);
+			}
+			catch (DuplicateKeyException e) {
+				// Another server created it
+			}
+		}
+		int closure = jdbcTemplate.queryForInt(COUNT_CLOSURE_SQL);
+		int memberships = jdbcTemplate.queryForInt("select count(*) from " + MEMBERSHIP_TABLE);
+		if (closure == 0 && memberships > 0) {
+			logger.info("Group membership closure table is empty: rebuilding it from " + memberships + " memberships");
+			rebuildClosure(true);
+		}
 	}
 
 	@Override
@@ -99,18 +203,25 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
 		final String authorities = getGroupAuthorities(member);
 		final String type = (member.getType() == null ? ScimGroupMember.Type.USER : member.getType()).toString();
 		try {
-			jdbcTemplate.update(ADD_MEMBER_SQL, new PreparedStatementSetter() {
-				public void setValues(PreparedStatement ps) throws SQLException {
-					ps.setString(1, groupId);
-					ps.setString(2, member.getMemberId());
-					ps.setString(3, type);
-					ps.setString(4, authorities);
-					ps.setTimestamp(5, new Timestamp(new Date().getTime()));
+			executeWithClosureLock(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					jdbcTemplate.update(ADD_MEMBER_SQL, new PreparedStatementSetter() {
+						public void setValues(PreparedStatement ps) throws SQLException {
+							ps.setString(1, groupId);
+							ps.setString(2, member.getMemberId());
+							ps.setString(3, type);
+							ps.setString(4, authorities);
+							ps.setTimestamp(5, new Timestamp(new Date().getTime()));
+						}
+					});
+					updateClosure(member.getMemberId());
 				}
 			});
 		} catch (DuplicateKeyException e) {
 			throw new MemberAlreadyExistsException(member.getMemberId() + " is already part of the group: " + groupId);
 		}
+		publish(member.getMemberId());
 		return getMemberById(groupId, member.getMemberId());
 	}
 
@@ -126,45 +237,191 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
 
 	@Override
 	public Set<ScimGroup> getGroupsWithMember(final String memberId, boolean transitive) throws ScimResourceNotFoundException {
-		List<ScimGroup> results = new ArrayList<ScimGroup>();
-		getGroupsWithMember(results, memberId, transitive);
-		if (isUser(memberId)) {
-			results.addAll(defaultUserGroups);
-		}
-		return new HashSet<ScimGroup>(results);
+		return getGroupsWithMembers(Collections.singleton(memberId), transitive).get(memberId);
 	}
 
-	private void getGroupsWithMember(List<ScimGroup> results, final String memberId, boolean transitive) {
-		if (results == null) {
-			return;
+	@Override
+	public Map<String, Set<ScimGroup>> getGroupsWithMembers(Collection<String> memberIds, boolean transitive) {
+		final Map<String, Set<ScimGroup>> results = new HashMap<String, Set<ScimGroup>>();
+		for (String memberId : memberIds) {
+			results.put(memberId, new HashSet<ScimGroup>());
 		}
-		List<String> groupIds;
-		try {
-			groupIds = jdbcTemplate.query(GET_GROUPS_BY_MEMBER_SQL, new PreparedStatementSetter() {
+		query(transitive ? GET_TRANSITIVE_GROUPS_BY_MEMBERS_SQL : GET_GROUPS_BY_MEMBERS_SQL, memberIds,
+				new RowCallbackHandler() {
+					@Override
+					public void processRow(ResultSet rs) throws SQLException {
+						Set<ScimGroup> groups = results.get(rs.getString(6));
+						if (groups != null) {
+							groups.add(groupRowMapper.mapRow(rs, 0));
+						}
+					}
+				});
+
+		if (!defaultUserGroups.isEmpty()) {
+			query(GET_USER_IDS_SQL, memberIds, new RowCallbackHandler() {
 				@Override
-				public void setValues(PreparedStatement ps) throws SQLException {
-					ps.setString(1, memberId);
+				public void processRow(ResultSet rs) throws SQLException {
+					Set<ScimGroup> groups = results.get(rs.getString(1));
+					if (groups != null) {
+						groups.addAll(defaultUserGroups);
+					}
 				}
-			}, new SingleColumnRowMapper<String>(String.class));
-		} catch (EmptyResultDataAccessException ex) {
-			groupIds = Collections.<String>emptyList();
+			});
 		}
+		return results;
+	}
 
-		for (String groupId : groupIds) {
-			ScimGroup group;
-			try {
-				group = groupProvisioning.retrieve(groupId);
-			} catch (ScimResourceNotFoundException ex) {
-				continue;
+	/**
+	 * Recompute the whole closure table from the direct memberships.
+	 *
+	 * @return the number of transitive memberships
+	 */
+	@ManagedOperation(description = "Recompute the transitive group memberships from the direct ones")
+	public int rebuildClosure() {
+		return rebuildClosure(false);
+	}
+
+	/**
+	 * @param onlyIfEmpty true to leave the closure table alone if it is not empty once it is locked (e.g. because
+	 * another server rebuilt it on startup at the same time)
+	 */
+	private int rebuildClosure(final boolean onlyIfEmpty) {
+		Integer count = executeWithClosureLock(new TransactionCallback<Integer>() {
+			@Override
+			public Integer doInTransaction(TransactionStatus status) {
+				if (onlyIfEmpty && jdbcTemplate.queryForInt(COUNT_CLOSURE_SQL) > 0) {
+					return null;
+				}
+				final Map<String, Set<String>> parents = new HashMap<String, Set<String>>();
+				jdbcTemplate.query(GET_ALL_PARENTS_SQL, new RowCallbackHandler() {
+					@Override
+					public void processRow(ResultSet rs) throws SQLException {
+						addParent(parents, rs.getString(1), rs.getString(2));
+					}
+				});
+				jdbcTemplate.update(DELETE_CLOSURE_SQL);
+				return insertClosure(parents.keySet(), parents);
 			}
-			if (!results.contains(group)) { // to ensure we don't go into infinite recursion caused by nested group cycles
-				results.add(group);
-				if (transitive) {
-					getGroupsWithMember(results, groupId, transitive);
+		});
+		if (count == null) {
+			logger.info("Group membership closure was rebuilt by another server");
+			return 0;
+		}
+		logger.info("Rebuilt group membership closure with " + count + " transitive memberships");
+		publish(null);
+		return count;
+	}
+
+	/**
+	 * Run a change of the memberships and the closure table in a transaction that holds the closure lock.
+	 */
+	private <T> T executeWithClosureLock(final TransactionCallback<T> callback) {
+		return transactionTemplate.execute(new TransactionCallback<T>() {
+			@Override
+			public T doInTransaction(TransactionStatus status) {
+				if (jdbcTemplate.update(LOCK_SQL, CLOSURE_LOCK_ID) == 0) {
+					// Not created on startup: the new row is locked as well
+					jdbcTemplate.update(ADD_LOCK_SQL, CLOSURE_LOCK_ID);
 				}
+				return callback.doInTransaction(status);
+			}
+		});
+	}
+
+	/**
+	 * Recompute the transitive memberships of a member whose direct memberships changed, and of all its own (nested)
+	 * members. Must be called with the closure lock, before the closure rows of the member are removed.
+	 */
+	private void updateClosure(String memberId) {
+		Set<String> memberIds = new HashSet<String>(jdbcTemplate.queryForList(GET_DESCENDANTS_SQL, String.class,
+				memberId));
+		memberIds.add(memberId);
+		replaceClosure(memberIds);
+	}
+
+	private void updateClosure(Collection<String> memberIds) {
+		if (!memberIds.isEmpty()) {
+			replaceClosure(memberIds);
+		}
+	}
+
+	private void replaceClosure(Collection<String> memberIds) {
+		// Walk up the direct memberships one level at a time, for all the members at once
+		final Map<String, Set<String>> parents = new HashMap<String, Set<String>>();
+		Set<String> next = new HashSet<String>(memberIds);
+		while (!next.isEmpty()) {
+			for (String id : next) {
+				parents.put(id, new HashSet<String>());
+			}
+			final Set<String> found = new HashSet<String>();
+			query(GET_PARENTS_BY_MEMBERS_SQL, next, new RowCallbackHandler() {
+				@Override
+				public void processRow(ResultSet rs) throws SQLException {
+					addParent(parents, rs.getString(1), rs.getString(2));
+					found.add(rs.getString(2));
+				}
+			});
+			found.removeAll(parents.keySet());
+			next = found;
+		}
+		NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(jdbcTemplate);
+		for (List<String> chunk : chunks(memberIds)) {
+			template.update(DELETE_CLOSURE_BY_MEMBERS_SQL, Collections.singletonMap("ids", chunk));
+		}
+		insertClosure(memberIds, parents);
+	}
+
+	private int insertClosure(Collection<String> memberIds, Map<String, Set<String>> parents) {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (String memberId : memberIds) {
+			Set<String> ancestors = new HashSet<String>();
+			addAncestors(ancestors, parents, memberId);
+			for (String groupId : ancestors) {
+				rows.add(new Object[] { groupId, memberId });
+			}
+		}
+		if (!rows.isEmpty()) {
+			jdbcTemplate.batchUpdate(ADD_CLOSURE_SQL, rows);
+		}
+		return rows.size();
+	}
+
+	private static void addAncestors(Set<String> ancestors, Map<String, Set<String>> parents, String memberId) {
+		Set<String> groupIds = parents.get(memberId);
+		if (groupIds == null) {
+			return;
+		}
+		for (String groupId : groupIds) {
+			// to ensure we don't go into infinite recursion caused by nested group cycles
+			if (ancestors.add(groupId)) {
+				addAncestors(ancestors, parents, groupId);
 			}
 		}
+	}
+
+	private static void addParent(Map<String, Set<String>> parents, String memberId, String groupId) {
+		Set<String> groupIds = parents.get(memberId);
+		if (groupIds == null) {
+			groupIds = new HashSet<String>();
+			parents.put(memberId, groupIds);
+		}
+		groupIds.add(groupId);
+	}
 
+	private void query(String sql, Collection<String> ids, RowCallbackHandler handler) {
+		NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(jdbcTemplate);
+		for (List<String> chunk : chunks(ids)) {
+			template.query(sql, Collections.singletonMap("ids", chunk), handler);
+		}
+	}
+
+	private static List<List<String>> chunks(Collection<String> ids) {
+		List<String> list = new ArrayList<String>(ids);
+		List<List<String>> chunks = new ArrayList<List<String>>();
+		for (int i = 0; i < list.size(); i += MAX_IDS_PER_QUERY) {
+			chunks.add(list.subList(i, Math.min(list.size(), i + MAX_IDS_PER_QUERY)));
+		}
+		return chunks;
 	}
 
 	@Override
@@ -244,14 +501,21 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
 	@Override
 	public ScimGroupMember removeMemberById(final String groupId, final String memberId) throws ScimResourceNotFoundException, MemberNotFoundException {
 		ScimGroupMember member = getMemberById(groupId, memberId);
-		int deleted = jdbcTemplate.update(DELETE_MEMBER_SQL, new PreparedStatementSetter() {
+		int deleted = executeWithClosureLock(new TransactionCallback<Integer>() {
 			@Override
-			public void setValues(PreparedStatement ps) throws SQLException {
-				ps.setString(1, groupId);
-				ps.setString(2, memberId);
+			public Integer doInTransaction(TransactionStatus status) {
+				int deleted = jdbcTemplate.update(DELETE_MEMBER_SQL, new PreparedStatementSetter() {
+					@Override
+					public void setValues(PreparedStatement ps) throws SQLException {
+						ps.setString(1, groupId);
+						ps.setString(2, memberId);
+					}
+				});
+				updateClosure(memberId);
+				return deleted;
 			}
 		});
-
+		publish(memberId);
 		if (deleted != 1) {
 			throw new IncorrectResultSizeDataAccessException("unexpected number of members removed", 1, deleted);
 		}
@@ -262,13 +526,21 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
 	public List<ScimGroupMember> removeMembersByGroupId(final String groupId) throws ScimResourceNotFoundException {
 		List<ScimGroupMember> members = getMembers(groupId);
 		logger.debug("removing " + members + " members from group: " + groupId);
-
-		int deleted = jdbcTemplate.update(DELETE_MEMBERS_IN_GROUP_SQL, new PreparedStatementSetter() {
+		int deleted = executeWithClosureLock(new TransactionCallback<Integer>() {
 			@Override
-			public void setValues(PreparedStatement ps) throws SQLException {
-				ps.setString(1, groupId);
+			public Integer doInTransaction(TransactionStatus status) {
+				List<String> descendants = jdbcTemplate.queryForList(GET_DESCENDANTS_SQL, String.class, groupId);
+				int deleted = jdbcTemplate.update(DELETE_MEMBERS_IN_GROUP_SQL, new PreparedStatementSetter() {
+					@Override
+					public void setValues(PreparedStatement ps) throws SQLException {
+						ps.setString(1, groupId);
+					}
+				});
+				updateClosure(descendants);
+				return deleted;
 			}
 		});
+		publish(null);
 		if (deleted != members.size()) {
 			throw new IncorrectResultSizeDataAccessException("unexpected number of members removed", members.size(), deleted);
 		}
@@ -281,12 +553,20 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
 		Set<ScimGroup> groups = getGroupsWithMember(memberId, false);
 		logger.debug("removing " + memberId + " from groups: " + groups);
 
-		int deleted = jdbcTemplate.update(DELETE_MEMBER_IN_GROUPS_SQL, new PreparedStatementSetter() {
+		int deleted = executeWithClosureLock(new TransactionCallback<Integer>() {
 			@Override
-			public void setValues(PreparedStatement ps) throws SQLException {
-				ps.setString(1, memberId);
+			public Integer doInTransaction(TransactionStatus status) {
+				int deleted = jdbcTemplate.update(DELETE_MEMBER_IN_GROUPS_SQL, new PreparedStatementSetter() {
+					@Override
+					public void setValues(PreparedStatement ps) throws SQLException {
+						ps.setString(1, memberId);
+					}
+				});
+				updateClosure(memberId);
+				return deleted;
 			}
 		});
+		publish(memberId);
 		int expectedDelete = isUser(memberId) ? groups.size() - defaultUserGroups.size() : groups.size();
 		if (deleted != expectedDelete) {
 			throw new IncorrectResultSizeDataAccessException("unexpected number of members removed", expectedDelete, deleted);
@@ -295,6 +575,17 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
 		return groups;
 	}
 
+	/**
+	 * Let anything that depends on the groups of a member know that they changed.
+	 *
+	 * @param memberId the member, or null for all members
+	 */
+	private void publish(String memberId) {
+		if (publisher != null) {
+			publisher.publishEvent(new UserChangedEvent(this, memberId));
+		}
+	}
+
 	private boolean isUser(String uuid) {
 		try {
 			userProvisioning.retrieve(uuid);
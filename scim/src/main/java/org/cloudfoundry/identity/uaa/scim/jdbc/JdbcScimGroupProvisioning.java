@@ -10,6 +10,10 @@ import org.cloudfoundry.identity.uaa.scim.ScimMeta;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidScimResourceException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceAlreadyExistsException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
+import org.cloudfoundry.identity.uaa.user.UserChangedEvent;
+import org.cloudfoundry.identity.uaa.util.SingleFlight;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
@@ -25,8 +29,10 @@ import java.sql.Timestamp;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
-public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> implements ScimGroupProvisioning {
+public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> implements ScimGroupProvisioning,
+		ApplicationEventPublisherAware {
 
 	private JdbcTemplate jdbcTemplate;
 
@@ -48,6 +54,19 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> impl
 
 	private final RowMapper<ScimGroup> rowMapper = new ScimGroupRowMapper();
 
+	private ApplicationEventPublisher publisher;
+
+	// Concurrent reads of the same group share one query, but each caller gets its own copy to modify
+	private final SingleFlight<String, ScimGroup> loads = new SingleFlight<String, ScimGroup>() {
+		@Override
+		protected ScimGroup share(ScimGroup group) {
+			ScimGroup copy = new ScimGroup(group.getId(), group.getDisplayName());
+			copy.setMeta(new ScimMeta(group.getMeta().getCreated(), group.getMeta().getLastModified(), group
+					.getMeta().getVersion()));
+			return copy;
+		}
+	};
+
 	public JdbcScimGroupProvisioning(JdbcTemplate jdbcTemplate, JdbcPagingListFactory pagingListFactory) {
 		super(jdbcTemplate, pagingListFactory, new ScimGroupRowMapper());
 		Assert.notNull(jdbcTemplate);
@@ -55,6 +74,11 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> impl
 		setQueryConverter(new ScimSearchQueryConverter());
 	}
 
+	@Override
+	public void setApplicationEventPublisher(ApplicationEventPublisher publisher) {
+		this.publisher = publisher;
+	}
+
 	@Override
 	protected String getBaseSqlQuery() {
 		return GET_GROUPS_SQL;
@@ -66,7 +90,19 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> impl
 	}
 
 	@Override
-	public ScimGroup retrieve(String id) throws ScimResourceNotFoundException {
+	public ScimGroup retrieve(final String id) throws ScimResourceNotFoundException {
+		return loads.execute(id, new Callable<ScimGroup>() {
+			@Override
+			public ScimGroup call() {
+				return load(id);
+			}
+		});
+	}
+
+	/**
+	 * Read a group straight from the database, not sharing a read that might have started before a change was made.
+	 */
+	private ScimGroup load(String id) {
 		try {
 			ScimGroup group = jdbcTemplate.queryForObject(GET_GROUP_SQl, rowMapper, id);
 			return group;
@@ -93,7 +129,7 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> impl
 		} catch (DuplicateKeyException ex) {
 			throw new ScimResourceAlreadyExistsException("A group with displayName: " + group.getDisplayName() + " already exists.");
 		}
-		return retrieve(id);
+		return load(id);
 	}
 
 	@Override
@@ -112,7 +148,9 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> impl
 			if (updated != 1) {
 				throw new IncorrectResultSizeDataAccessException(1, updated);
 			}
-			return retrieve(id);
+			// The group name is an authority of each of its members
+			publish();
+			return load(id);
 		} catch (DuplicateKeyException ex) {
 			throw new InvalidScimResourceException("A group with displayName: " + group.getDisplayName() + " already exists");
 		}
@@ -130,10 +168,17 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> impl
 		if (deleted != 1) {
 			throw new IncorrectResultSizeDataAccessException(1, deleted);
 		}
+		publish();
 		return group;
 	}
 
-	private static final class ScimGroupRowMapper implements RowMapper<ScimGroup> {
+	private void publish() {
+		if (publisher != null) {
+			publisher.publishEvent(new UserChangedEvent(this));
+		}
+	}
+
+	static final class ScimGroupRowMapper implements RowMapper<ScimGroup> {
 
 		@Override
 		public ScimGroup mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -17,9 +17,16 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
@@ -29,6 +36,7 @@ import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.scim.ScimMeta;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.ScimUser.Name;
+import org.cloudfoundry.identity.uaa.scim.ScimUser.PhoneNumber;
 import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidPasswordException;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidScimResourceException;
@@ -37,6 +45,10 @@ import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceConstraintFailed
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 import org.cloudfoundry.identity.uaa.scim.validate.DefaultPasswordValidator;
 import org.cloudfoundry.identity.uaa.scim.validate.PasswordValidator;
+import org.cloudfoundry.identity.uaa.user.UserChangedEvent;
+import org.cloudfoundry.identity.uaa.util.SingleFlight;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
@@ -48,12 +60,14 @@ import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
 
 /**
  * @author Luke Taylor
  * @author Dave Syer
  */
-public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implements ScimUserProvisioning {
+public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implements ScimUserProvisioning,
+		ApplicationEventPublisherAware {
 
 	private final Log logger = LogFactory.getLog(getClass());
 
@@ -78,6 +92,23 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 
 	public static final String ALL_usetre = "select " + USER_FIELDS + " from users";
 
+	// The columns the attributes of a user are loaded from (attributes not in here are never loaded)
+	private static final Map<String, List<String>> ATTRIBUTE_COLUMNS = new HashMap<String, List<String>>();
+
+	static {
+		ATTRIBUTE_COLUMNS.put("id", Arrays.asList("id"));
+		ATTRIBUTE_COLUMNS.put("username", Arrays.asList("username"));
+		ATTRIBUTE_COLUMNS.put("emails", Arrays.asList("email"));
+		ATTRIBUTE_COLUMNS.put("primaryemail", Arrays.asList("email"));
+		ATTRIBUTE_COLUMNS.put("name", Arrays.asList("givenName", "familyName"));
+		ATTRIBUTE_COLUMNS.put("givenname", Arrays.asList("givenName"));
+		ATTRIBUTE_COLUMNS.put("familyname", Arrays.asList("familyName"));
+		ATTRIBUTE_COLUMNS.put("active", Arrays.asList("active"));
+		ATTRIBUTE_COLUMNS.put("phonenumbers", Arrays.asList("phoneNumber"));
+		ATTRIBUTE_COLUMNS.put("meta", Arrays.asList("version", "created", "lastModified"));
+		ATTRIBUTE_COLUMNS.put("version", Arrays.asList("version"));
+	}
+
 	static final Pattern unquotedEq = Pattern.compile("(id|username|email|givenName|familyName) eq [^'^\"].*",
 															 Pattern.CASE_INSENSITIVE);
 
@@ -91,6 +122,16 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 
 	private final RowMapper<ScimUser> mapper = new ScimUserRowMapper();
 
+	private ApplicationEventPublisher publisher;
+
+	// Concurrent reads of the same user share one query, but each caller gets its own copy to modify
+	private final SingleFlight<String, ScimUser> loads = new SingleFlight<String, ScimUser>() {
+		@Override
+		protected ScimUser share(ScimUser user) {
+			return copy(user);
+		}
+	};
+
 	public JdbcScimUserProvisioning(JdbcTemplate jdbcTemplate, JdbcPagingListFactory pagingListFactory) {
 		super(jdbcTemplate, pagingListFactory, new ScimUserRowMapper());
 		Assert.notNull(jdbcTemplate);
@@ -99,7 +140,24 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 	}
 
 	@Override
-	public ScimUser retrieve(String id) {
+	public void setApplicationEventPublisher(ApplicationEventPublisher publisher) {
+		this.publisher = publisher;
+	}
+
+	@Override
+	public ScimUser retrieve(final String id) {
+		return loads.execute(id, new Callable<ScimUser>() {
+			@Override
+			public ScimUser call() {
+				return load(id);
+			}
+		});
+	}
+
+	/**
+	 * Read a user straight from the database, not sharing a read that might have started before a change was made.
+	 */
+	private ScimUser load(String id) {
 		try {
 			ScimUser u = jdbcTemplate.queryForObject(USER_BY_ID_QUERY, mapper, id);
 			return u;
@@ -114,6 +172,23 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 		return ALL_usetre;
 	}
 
+	@Override
+	public List<ScimUser> query(String filter, String sortBy, boolean ascending, Set<String> attributes) {
+		Set<String> columns = new LinkedHashSet<String>();
+		columns.add("id");
+		for (String attribute : attributes) {
+			List<String> needed = ATTRIBUTE_COLUMNS.get(attribute.toLowerCase());
+			if (needed != null) {
+				columns.addAll(needed);
+			}
+		}
+		if (columns.size() == USER_FIELDS.split(",").length) {
+			return query(filter, sortBy, ascending);
+		}
+		String sql = "select " + StringUtils.collectionToCommaDelimitedString(columns) + " from users";
+		return query(filter, sortBy, ascending, sql, new ProjectedScimUserRowMapper(columns));
+	}
+
 	@Override
 	public List<ScimUser> retrieveAll() {
 		return query("id pr", "created", true);
@@ -163,7 +238,7 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 			throw new ScimResourceAlreadyExistsException("Username already in use (could be inactive account): "
 																 + user.getUserName());
 		}
-		return retrieve(id);
+		return load(id);
 	}
 
 	@Override
@@ -210,7 +285,10 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 				ps.setInt(10, user.getVersion());
 			}
 		});
-		ScimUser result = retrieve(id);
+		if (updated > 0) {
+			publish(id);
+		}
+		ScimUser result = load(id);
 		if (updated == 0) {
 			throw new OptimisticLockingFailureException(String.format(
 					"Attempt to update a user (%s) with wrong version: expected=%d but found=%d", id,
@@ -240,6 +318,7 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 		if (updated == 0) {
 			throw new ScimResourceNotFoundException("User " + id + " does not exist");
 		}
+		publish(id);
 		if (updated != 1) {
 			throw new ScimResourceConstraintFailedException("User " + id + " duplicated");
 		}
@@ -283,6 +362,7 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
                     "Attempt to update a user (%s) with wrong version: expected=%d but found=%d", user.getId(),
                     user.getVersion(), version));
         }
+        publish(user.getId());
         if (updated > 1) {
             throw new IncorrectResultSizeDataAccessException(1);
         }
@@ -305,6 +385,7 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
                     "Attempt to update a user (%s) with wrong version: expected=%d but found=%d", user.getId(),
                     user.getVersion(), version));
         }
+        publish(user.getId());
         return user;
     }
 
@@ -327,6 +408,35 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 		this.passwordEncoder = passwordEncoder;
 	}
 
+	private void publish(String id) {
+		if (publisher != null) {
+			publisher.publishEvent(new UserChangedEvent(this, id));
+		}
+	}
+
+	private static ScimUser copy(ScimUser user) {
+		ScimUser copy = new ScimUser();
+		copy.setId(user.getId());
+		ScimMeta meta = new ScimMeta();
+		meta.setVersion(user.getMeta().getVersion());
+		meta.setCreated(user.getMeta().getCreated());
+		meta.setLastModified(user.getMeta().getLastModified());
+		copy.setMeta(meta);
+		copy.setUserName(user.getUserName());
+		copy.addEmail(user.getPrimaryEmail());
+		if (user.getPhoneNumbers() != null) {
+			for (PhoneNumber phoneNumber : user.getPhoneNumbers()) {
+				copy.addPhoneNumber(phoneNumber.getValue());
+			}
+		}
+		Name name = new Name();
+		name.setGivenName(user.getGivenName());
+		name.setFamilyName(user.getFamilyName());
+		copy.setName(name);
+		copy.setActive(user.isActive());
+		return copy;
+	}
+
 	private static final class ScimUserRowMapper implements RowMapper<ScimUser> {
 		@Override
 		public ScimUser mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -361,4 +471,56 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 		}
 	}
 
+	/**
+	 * Maps rows with only some of the columns, leaving the attributes of the user that come from the others empty.
+	 */
+	private static final class ProjectedScimUserRowMapper implements RowMapper<ScimUser> {
+
+		private final Set<String> columns;
+
+		private ProjectedScimUserRowMapper(Set<String> columns) {
+			this.columns = Collections.unmodifiableSet(columns);
+		}
+
+		@Override
+		public ScimUser mapRow(ResultSet rs, int rowNum) throws SQLException {
+			ScimUser user = new ScimUser();
+			user.setId(rs.getString("id"));
+			if (columns.contains("version")) {
+				user.getMeta().setVersion(rs.getInt("version"));
+			}
+			if (columns.contains("created")) {
+				user.getMeta().setCreated(rs.getTimestamp("created"));
+				user.getMeta().setLastModified(rs.getTimestamp("lastModified"));
+			}
+			if (columns.contains("username")) {
+				user.setUserName(rs.getString("username"));
+			}
+			if (columns.contains("email")) {
+				user.addEmail(rs.getString("email"));
+			}
+			if (columns.contains("givenName") || columns.contains("familyName")) {
+				Name name = new Name();
+				if (columns.contains("givenName")) {
+					name.setGivenName(rs.getString("givenName"));
+				}
+				if (columns.contains("familyName")) {
+					name.setFamilyName(rs.getString("familyName"));
+				}
+				user.setName(name);
+			}
+			if (columns.contains("active")) {
+				user.setActive(rs.getBoolean("active"));
+			}
+			if (columns.contains("phoneNumber")) {
+				String phoneNumber = rs.getString("phoneNumber");
+				if (phoneNumber != null) {
+					user.addPhoneNumber(phoneNumber);
+				}
+			}
+			return user;
+		}
+
+	}
+
 }
@@ -26,6 +26,7 @@ import org.springframework.web.client.RestOperations;
 import org.springframework.web.client.RestTemplate;
 
 import java.util.List;
+import java.util.Set;
 
 /**
  * Remote implementation of {@link org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning} using the Scim endpoints on a remote server.
@@ -77,6 +78,11 @@ public class RemoteScimUserProvisioning implements ScimUserProvisioning {
 		return restTemplate.getForObject(baseUrl + "/Users?filter={filter}&sortBy={sortBy}" + order, List.class, filter, sortBy);
 	}
 
+	@Override
+	public List<ScimUser> query(String filter, String sortBy, boolean ascending, Set<String> attributes) {
+		return query(filter, sortBy, ascending);
+	}
+
 	@Override
 	public ScimUser create(ScimUser user) {
 		return restTemplate.postForObject(baseUrl + "/User", user, ScimUser.class);
@@ -13,5 +13,7 @@
 -- Autogenerated: do not edit this file
 
 DROP TABLE  GROUP_MEMBERSHIP IF EXISTS;
+DROP TABLE  GROUP_MEMBERSHIP_CLOSURE IF EXISTS;
+DROP TABLE  GROUP_MEMBERSHIP_LOCK IF EXISTS;
 DROP TABLE  GROUPS IF EXISTS;
 DROP TABLE  EXTERNAL_GROUP_MAPPING IF EXISTS;
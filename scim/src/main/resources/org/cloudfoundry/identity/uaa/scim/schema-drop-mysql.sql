@@ -13,5 +13,7 @@
 -- Autogenerated: do not edit this file
 
 DROP TABLE  group_membership ;
+DROP TABLE  group_membership_closure ;
+DROP TABLE  group_membership_lock ;
 DROP TABLE  groups ;
 DROP TABLE  external_group_mapping IF EXISTS;
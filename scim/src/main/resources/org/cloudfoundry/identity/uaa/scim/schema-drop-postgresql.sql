@@ -13,5 +13,7 @@
 -- Autogenerated: do not edit this file
 
 DROP TABLE  GROUP_MEMBERSHIP ;
+DROP TABLE  GROUP_MEMBERSHIP_CLOSURE ;
+DROP TABLE  GROUP_MEMBERSHIP_LOCK ;
 DROP TABLE  GROUPS ;
 DROP TABLE EXTERNAL_GROUP_MAPPING ;
\ No newline at end of file
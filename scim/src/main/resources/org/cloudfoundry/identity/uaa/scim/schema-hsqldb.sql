@@ -30,6 +30,19 @@ CREATE TABLE GROUP_MEMBERSHIP (
   primary key (group_id, member_id)
 ) ;
 
+CREATE TABLE GROUP_MEMBERSHIP_CLOSURE (
+  group_id VARCHAR(36) not null,
+  member_id VARCHAR(36) not null,
+  primary key (member_id, group_id)
+) ;
+
+CREATE INDEX closure_group ON GROUP_MEMBERSHIP_CLOSURE (group_id);
+
+CREATE TABLE GROUP_MEMBERSHIP_LOCK (
+  id VARCHAR(36) not null primary key,
+  version INTEGER default 0 not null
+) ;
+
 CREATE TABLE EXTERNAL_GROUP_MAPPING (
   group_id VARCHAR(36) not null,
   external_group VARCHAR(255) not null,
@@ -87,7 +87,7 @@ public class PasswordChangeEndpointTests {
 	
 	@AfterClass
 	public static void tearDown() throws Exception {
-		TestUtils.deleteFrom(database, "users", "groups", "group_membership");
+		TestUtils.deleteFrom(database, "users", "groups", "group_membership", "group_membership_closure");
 		if (database != null) {
 			database.shutdown();
 		}
@@ -68,7 +68,7 @@ public class ScimExternalGroupBootstrapTests {
 
 	@After
 	public void cleanup() throws Exception {
-		TestUtils.deleteFrom(dataSource, "groups", "group_membership", "external_group_mapping");
+		TestUtils.deleteFrom(dataSource, "groups", "group_membership", "group_membership_closure", "external_group_mapping");
 	}
 
 	@Test
@@ -81,7 +81,7 @@ public class ScimGroupBootstrapTests {
 
 	@After
 	public void cleanup() throws Exception {
-		TestUtils.deleteFrom(dataSource, "users", "groups", "group_membership");
+		TestUtils.deleteFrom(dataSource, "users", "groups", "group_membership", "group_membership_closure");
 	}
 
 	@Test
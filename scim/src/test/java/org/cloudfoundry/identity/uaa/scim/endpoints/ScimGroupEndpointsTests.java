@@ -128,7 +128,7 @@ public class ScimGroupEndpointsTests {
 
 	@AfterClass
 	public static void cleanup() throws Exception {
-		TestUtils.deleteFrom(database, "users", "groups", "group_membership");
+		TestUtils.deleteFrom(database, "users", "groups", "group_membership", "group_membership_closure");
 		database.shutdown();
 	}
 
@@ -13,6 +13,7 @@
 package org.cloudfoundry.identity.uaa.scim.endpoints;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -159,7 +160,7 @@ public class ScimUserEndpointsTests {
 
 	@After
 	public void cleanUp() throws Exception {
-		TestUtils.deleteFrom(database, "group_membership", "users", "groups");
+		TestUtils.deleteFrom(database, "group_membership", "group_membership_closure", "users", "groups");
 	}
 
 	private void validateUserGroups (ScimUser user, String... gnm) {
@@ -399,6 +400,57 @@ public class ScimUserEndpointsTests {
 		assertEquals(2, results.getResources().size());
 	}
 
+	@Test
+	public void groupsAndApprovalsAreSyncedCorrectlyOnFind() {
+		ScimUser user = new ScimUser(null, "finder", "Fred", "Finder");
+		user.addEmail("finder@vmware.com");
+		ScimUser created = endpoints.createUser(user);
+		ScimGroup g = new ScimGroup("test1");
+		g.setMembers(Arrays.asList(new ScimGroupMember(created.getId())));
+		groupEndpoints.createGroup(g);
+		am.addApproval(new Approval("finder", "c1", "s1", 6000, Approval.ApprovalStatus.APPROVED));
+		am.addApproval(new Approval("finder", "c1", "s2", -6000, Approval.ApprovalStatus.APPROVED));
+
+		SearchResults<?> results = endpoints.findUsers(null, "id pr", null, "ascending", 1, 100);
+		assertEquals(3, results.getTotalResults());
+		for (Object resource : results.getResources()) {
+			ScimUser found = (ScimUser) resource;
+			if (found.getId().equals(created.getId())) {
+				validateUserGroups(found, "test1");
+				assertEquals(1, found.getApprovals().size());
+			}
+			else {
+				validateUserGroups(found);
+			}
+		}
+	}
+
+	@Test
+	public void groupsAndApprovalsOnlySyncedWhenRequested() {
+		ScimUser user = new ScimUser(null, "finder", "Fred", "Finder");
+		user.addEmail("finder@vmware.com");
+		ScimUser created = endpoints.createUser(user);
+		ScimGroup g = new ScimGroup("test1");
+		g.setMembers(Arrays.asList(new ScimGroupMember(created.getId())));
+		groupEndpoints.createGroup(g);
+		am.addApproval(new Approval("finder", "c1", "s1", 6000, Approval.ApprovalStatus.APPROVED));
+
+		String filter = "id eq '" + created.getId() + "'";
+		Map<?, ?> found = (Map<?, ?>) endpoints.findUsers("id,userName", filter, null, "ascending", 1, 100)
+				.getResources().iterator().next();
+		assertEquals("finder", found.get("userName"));
+		assertFalse(found.containsKey("groups"));
+
+		found = (Map<?, ?>) endpoints.findUsers("approvals", filter, null, "ascending", 1, 100).getResources()
+				.iterator().next();
+		assertEquals(1, ((Collection<?>) found.get("approvals")).size());
+
+		found = (Map<?, ?>) endpoints.findUsers("groups", filter, null, "ascending", 1, 100).getResources()
+				.iterator().next();
+		Collection<?> groups = (Collection<?>) found.get("groups");
+		assertEquals(2, groups.size());
+	}
+
 	@Test
 	public void testFindAllNames() {
 		SearchResults<?> results = endpoints.findUsers("userName", "id pr", null, "ascending", 1, 100);
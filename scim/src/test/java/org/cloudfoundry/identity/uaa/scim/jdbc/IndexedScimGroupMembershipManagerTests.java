@@ -0,0 +1,223 @@
+package org.cloudfoundry.identity.uaa.scim.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
+import org.cloudfoundry.identity.uaa.rest.jdbc.LimitSqlAdapter;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
+import org.cloudfoundry.identity.uaa.scim.test.TestUtils;
+import org.cloudfoundry.identity.uaa.scim.validate.NullPasswordValidator;
+import org.cloudfoundry.identity.uaa.test.NullSafeSystemProfileValueSource;
+import org.cloudfoundry.identity.uaa.user.UserChangedEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.test.annotation.IfProfileValue;
+import org.springframework.test.annotation.ProfileValueSourceConfiguration;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+@ContextConfiguration("classpath:/test-data-source.xml")
+@RunWith(SpringJUnit4ClassRunner.class)
+@IfProfileValue(name = "spring.profiles.active", values = {"", "test,postgresql", "hsqldb", "test,mysql", "test,oracle"})
+@ProfileValueSourceConfiguration(NullSafeSystemProfileValueSource.class)
+public class IndexedScimGroupMembershipManagerTests {
+
+	@Autowired
+	private DataSource dataSource;
+
+	@Autowired
+	private LimitSqlAdapter limitSqlAdapter;
+
+	private JdbcTemplate template;
+
+	private JdbcScimGroupMembershipManager dao;
+
+	private IndexedScimGroupMembershipManager index;
+
+	// Run (once) in the middle of loading the index
+	private Runnable whileLoading;
+
+	private static final String addUserSqlFormat = "insert into users (id, username, password, email, givenName, familyName, phoneNumber, authorities) values ('%s','%s','%s','%s','%s','%s','%s', '%s')";
+
+	private static final String addGroupSqlFormat = "insert into groups (id, displayName) values ('%s','%s')";
+
+	@Before
+	public void createIndex() throws Exception {
+		template = new JdbcTemplate(dataSource);
+		JdbcPagingListFactory pagingListFactory = new JdbcPagingListFactory(template, limitSqlAdapter);
+		JdbcScimUserProvisioning udao = new JdbcScimUserProvisioning(template, pagingListFactory);
+		udao.setPasswordValidator(new NullPasswordValidator());
+		JdbcScimGroupProvisioning gdao = new JdbcScimGroupProvisioning(template, pagingListFactory);
+
+		dao = new JdbcScimGroupMembershipManager(template);
+		dao.setScimGroupProvisioning(gdao);
+		dao.setScimUserProvisioning(udao);
+		dao.setDefaultUserGroups(Collections.singleton("uaa.user"));
+
+		addGroup("g1", "test1");
+		addGroup("g2", "test2");
+		addGroup("g3", "test3");
+		addUser("m1");
+		addUser("m2");
+		addUser("m3");
+		addMember("g1", "m1", ScimGroupMember.Type.USER);
+		addMember("g2", "m2", ScimGroupMember.Type.USER);
+		addMember("g1", "g2", ScimGroupMember.Type.GROUP);
+
+		index = new IndexedScimGroupMembershipManager(dao, new JdbcTemplate(dataSource) {
+			@Override
+			public void query(String sql, RowCallbackHandler rch) {
+				if (sql.equals(IndexedScimGroupMembershipManager.GET_ALL_USER_IDS_SQL) && whileLoading != null) {
+					Runnable runnable = whileLoading;
+					whileLoading = null;
+					runnable.run();
+				}
+				super.query(sql, rch);
+			}
+		});
+		index.setEnabled(true);
+		index.setReconcileIntervalSeconds(0);
+		index.setDefaultUserGroups(Collections.singleton("uaa.user"));
+		index.afterPropertiesSet();
+
+		dao.setApplicationEventPublisher(new ApplicationEventPublisher() {
+			@Override
+			public void publishEvent(ApplicationEvent event) {
+				if (event instanceof UserChangedEvent) {
+					index.onApplicationEvent((UserChangedEvent) event);
+				}
+			}
+		});
+	}
+
+	@After
+	public void cleanupDataSource() throws Exception {
+		index.destroy();
+		TestUtils.deleteFrom(dataSource, "group_membership");
+		TestUtils.deleteFrom(dataSource, "group_membership_closure");
+		TestUtils.deleteFrom(dataSource, "groups");
+		TestUtils.deleteFrom(dataSource, "users");
+	}
+
+	private void addGroup(String id, String name) {
+		template.execute(String.format(addGroupSqlFormat, id, name));
+	}
+
+	private void addUser(String id) {
+		template.execute(String.format(addUserSqlFormat, id, id, "test", id, id, id, id, ""));
+	}
+
+	private void addMember(String groupId, String memberId, ScimGroupMember.Type type) {
+		dao.addMember(groupId, new ScimGroupMember(memberId, type, ScimGroupMember.GROUP_MEMBER));
+	}
+
+	private Set<String> getDisplayNames(Set<ScimGroup> groups) {
+		Set<String> names = new HashSet<String>();
+		for (ScimGroup group : groups) {
+			names.add(group.getDisplayName());
+		}
+		return names;
+	}
+
+	private void assertSameAsDatabase(String... memberIds) {
+		for (String memberId : memberIds) {
+			for (boolean transitive : new boolean[] { false, true }) {
+				assertEquals(memberId + (transitive ? " (transitive)" : ""),
+						getDisplayNames(dao.getGroupsWithMember(memberId, transitive)),
+						getDisplayNames(index.getGroupsWithMember(memberId, transitive)));
+			}
+		}
+	}
+
+	@Test
+	public void indexAnswersLikeTheDatabase() {
+		assertSameAsDatabase("m1", "m2", "m3", "g1", "g2", "g3");
+		assertEquals(new HashSet<String>(Arrays.asList("test2", "test1", "uaa.user")),
+				getDisplayNames(index.getGroupsWithMember("m2", true)));
+		assertEquals(0, index.getMissCount());
+		assertEquals(12, index.getHitCount());
+	}
+
+	@Test
+	public void canGetGroupsForSeveralMembersAtOnce() {
+		Map<String, Set<ScimGroup>> groups = index.getGroupsWithMembers(Arrays.asList("m1", "m2", "unknown"), true);
+		assertEquals(3, groups.size());
+		assertEquals(new HashSet<String>(Arrays.asList("test1", "uaa.user")), getDisplayNames(groups.get("m1")));
+		assertEquals(0, groups.get("unknown").size());
+		assertEquals(1, index.getMissCount());
+	}
+
+	@Test
+	public void userMembershipChangesAppliedWithoutReloading() {
+		addMember("g2", "m3", ScimGroupMember.Type.USER);
+		dao.removeMemberById("g1", "m1");
+		assertSameAsDatabase("m1", "m3");
+		assertEquals(new HashSet<String>(Arrays.asList("test2", "test1", "uaa.user")),
+				getDisplayNames(index.getGroupsWithMember("m3", true)));
+		assertEquals(1, index.getReloadCount());
+		assertEquals(0, index.getMissCount());
+	}
+
+	@Test
+	public void userMembershipChangesWhileLoadingAppliedToTheReloadedIndex() {
+		whileLoading = new Runnable() {
+			@Override
+			public void run() {
+				addMember("g2", "m3", ScimGroupMember.Type.USER);
+				dao.removeMemberById("g1", "m1");
+			}
+		};
+		index.reload();
+		assertEquals(2, index.getReloadCount());
+		assertSameAsDatabase("m1", "m2", "m3");
+		assertEquals(new HashSet<String>(Arrays.asList("test2", "test1", "uaa.user")),
+				getDisplayNames(index.getGroupsWithMember("m3", true)));
+		assertEquals(0, index.getMissCount());
+	}
+
+	@Test
+	public void nestedGroupChangesAnsweredByTheDatabaseUntilReloaded() {
+		addMember("g3", "g1", ScimGroupMember.Type.GROUP);
+		assertSameAsDatabase("m1", "m2", "g2");
+		index.reload();
+		int misses = index.getMissCount();
+		assertSameAsDatabase("m1", "m2", "g2");
+		assertEquals(misses, index.getMissCount());
+		assertTrue(getDisplayNames(index.getGroupsWithMember("m2", true)).contains("test3"));
+	}
+
+	@Test
+	public void cyclesInTheGroupHierarchyAreIndexed() {
+		addMember("g2", "g1", ScimGroupMember.Type.GROUP);
+		index.reload();
+		assertSameAsDatabase("m1", "m2", "g1", "g2");
+		assertEquals(new HashSet<String>(Arrays.asList("test1", "test2")),
+				getDisplayNames(index.getGroupsWithMember("g1", true)));
+	}
+
+	@Test
+	public void memoryUseIsReported() {
+		// m1 in test1, m2 in test2 and (nested) test1, and test2 in test1
+		assertEquals(4, index.getMembershipCount());
+		assertTrue(index.getEstimatedBytes() > 0);
+		assertTrue(index.getBytesPerMillionMemberships() > index.getEstimatedBytes());
+	}
+
+}
@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -12,7 +13,11 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.sql.DataSource;
 
@@ -34,10 +39,14 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.test.annotation.IfProfileValue;
 import org.springframework.test.annotation.ProfileValueSourceConfiguration;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 @ContextConfiguration("classpath:/test-data-source.xml")
 @RunWith(SpringJUnit4ClassRunner.class)
@@ -94,6 +103,7 @@ public class JdbcScimGroupMembershipManagerTests {
 
 	private void addMember(String gId, String mId, String mType, String authorities) {
 		template.execute(String.format(addMemberSqlFormat, gId, mId, mType, authorities));
+		dao.rebuildClosure();
 	}
 
 	private void addGroup(String id, String name) {
@@ -136,6 +146,7 @@ public class JdbcScimGroupMembershipManagerTests {
 	@After
 	public void cleanupDataSource() throws Exception {
 		TestUtils.deleteFrom(dataSource, "group_membership");
+		TestUtils.deleteFrom(dataSource, "group_membership_closure");
 		TestUtils.deleteFrom(dataSource, "groups");
 		TestUtils.deleteFrom(dataSource, "users");
 
@@ -170,6 +181,37 @@ public class JdbcScimGroupMembershipManagerTests {
 		assertEquals(4, groups.size());
 	}
 
+	@Test
+	public void canGetGroupsForSeveralMembersAtOnce() {
+		addMember("g1", "m3", "USER", "READER");
+		addMember("g1", "g2", "GROUP", "READER");
+		addMember("g3", "m2", "USER", "READER,WRITER");
+		addMember("g2", "m1", "USER", "READER");
+
+		Map<String, Set<ScimGroup>> groups = dao.getGroupsWithMembers(Arrays.asList("m1", "m2", "m3", "g2"), false);
+		assertEquals(4, groups.size());
+		assertEquals(2, groups.get("m1").size());
+		assertEquals(dao.getGroupsWithMember("m2", false), groups.get("m2"));
+		assertEquals(1, groups.get("g2").size());
+
+		groups = dao.getGroupsWithMembers(Arrays.asList("m1", "m2", "m3"), true);
+		assertEquals(dao.getGroupsWithMember("m1", true), groups.get("m1"));
+		assertEquals(3, groups.get("m1").size());
+		assertEquals(2, groups.get("m3").size());
+	}
+
+	@Test
+	public void canGetGroupsForSeveralMembersEvenWhenCycleExistsInGroupHierarchy() {
+		addMember("g1", "m3", "USER", "READER");
+		addMember("g1", "g2", "GROUP", "READER");
+		addMember("g2", "g3", "GROUP", "READER");
+		addMember("g3", "g1", "GROUP", "READER");
+
+		Map<String, Set<ScimGroup>> groups = dao.getGroupsWithMembers(Arrays.asList("m3", "m1"), true);
+		assertEquals(4, groups.get("m3").size());
+		assertEquals(1, groups.get("m1").size());
+	}
+
 	@Test
 	public void canAddMember() throws Exception {
 		validateCount(0);
@@ -369,4 +411,72 @@ public class JdbcScimGroupMembershipManagerTests {
 		validateUserGroups("m2", "test2");
 
 	}
+
+	@Test
+	public void canRemoveNestedGroupFromAllGroups() {
+		dao.addMember("g1", new ScimGroupMember("g2", ScimGroupMember.Type.GROUP, ScimGroupMember.GROUP_MEMBER));
+		dao.addMember("g2", new ScimGroupMember("g3", ScimGroupMember.Type.GROUP, ScimGroupMember.GROUP_MEMBER));
+		dao.addMember("g3", new ScimGroupMember("m1", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_MEMBER));
+		validateUserGroups("m1", "test3", "test2.i", "test1.i");
+
+		dao.removeMembersByMemberId("g2");
+		validateUserGroups("m1", "test3", "test2.i");
+		assertEquals(3, template.queryForInt("select count(*) from group_membership_closure"));
+	}
+
+	@Test
+	public void closureRebuiltOnStartupWhenEmpty() throws Exception {
+		template.execute(String.format(addMemberSqlFormat, "g1", "g2", "GROUP", "READER"));
+		template.execute(String.format(addMemberSqlFormat, "g2", "m1", "USER", "READER"));
+		assertEquals(0, template.queryForInt("select count(*) from group_membership_closure"));
+
+		dao.afterPropertiesSet();
+		assertEquals(3, template.queryForInt("select count(*) from group_membership_closure"));
+		validateUserGroups("m1", "test2", "test1.i");
+	}
+
+	@Test
+	public void closureNotRebuiltOnStartupWhenRebuiltByAnotherServer() throws Exception {
+		template.execute(String.format(addMemberSqlFormat, "g1", "g2", "GROUP", "READER"));
+		template.execute(String.format(addMemberSqlFormat, "g2", "m1", "USER", "READER"));
+		dao.afterPropertiesSet();
+		template.update("delete from group_membership_closure");
+
+		// Another server rebuilds the closure, and is slow to commit
+		final CountDownLatch rebuilt = new CountDownLatch(1);
+		final AtomicReference<Exception> error = new AtomicReference<Exception>();
+		Thread other = new Thread() {
+			@Override
+			public void run() {
+				try {
+					new TransactionTemplate(new DataSourceTransactionManager(dataSource))
+							.execute(new TransactionCallbackWithoutResult() {
+								@Override
+								protected void doInTransactionWithoutResult(TransactionStatus status) {
+									dao.rebuildClosure();
+									rebuilt.countDown();
+									try {
+										Thread.sleep(200);
+									}
+									catch (InterruptedException e) {
+										Thread.currentThread().interrupt();
+									}
+								}
+							});
+				}
+				catch (Exception e) {
+					error.set(e);
+					rebuilt.countDown();
+				}
+			}
+		};
+		other.start();
+		assertTrue(rebuilt.await(5, TimeUnit.SECONDS));
+
+		dao.afterPropertiesSet();
+		other.join();
+		assertNull(error.get());
+		assertEquals(3, template.queryForInt("select count(*) from group_membership_closure"));
+		validateUserGroups("m1", "test2", "test1.i");
+	}
 }
@@ -74,6 +74,7 @@ public class JdbcScimGroupProvisioningTests {
 		validateGroupCount(0);
 
 		TestUtils.deleteFrom(dataSource, "group_membership");
+		TestUtils.deleteFrom(dataSource, "group_membership_closure");
 		assertEquals(0, template.queryForInt("select count(*) from group_membership"));
 	}
 
@@ -20,9 +20,13 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -41,11 +45,14 @@ import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundExceptio
 import org.cloudfoundry.identity.uaa.scim.test.TestUtils;
 import org.cloudfoundry.identity.uaa.test.NullSafeSystemProfileValueSource;
 import org.cloudfoundry.identity.uaa.user.UaaAuthority;
+import org.cloudfoundry.identity.uaa.user.UserChangedEvent;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.authentication.BadCredentialsException;
@@ -228,6 +235,20 @@ public class JdbcScimUserProvisioningTests {
 		assertTrue(BCrypt.checkpw("koala123$marissa", storedPassword));
 	}
 
+	@Test
+	public void changePasswordPublishesUserChangedEvent() throws Exception {
+		final List<ApplicationEvent> events = new ArrayList<ApplicationEvent>();
+		db.setApplicationEventPublisher(new ApplicationEventPublisher() {
+			@Override
+			public void publishEvent(ApplicationEvent event) {
+				events.add(event);
+			}
+		});
+		db.changePassword(JOE_ID, null, "koala123$marissa");
+		assertEquals(1, events.size());
+		assertEquals(JOE_ID, ((UserChangedEvent) events.get(0)).getUserId());
+	}
+
 	@Test(expected = BadCredentialsException.class)
 	public void cannotChangePasswordNonexistentUser() {
 		db.changePassword(JOE_ID, "notjoespassword", "newpassword");
@@ -344,6 +365,29 @@ public class JdbcScimUserProvisioningTests {
 		assertEquals(1, db.query("username eq 'joe'").size());
 	}
 
+	@Test
+	public void canRetrieveOnlySomeAttributesOfUsers() {
+		List<ScimUser> users = db.query("username eq 'joe'", null, true, Collections.singleton("userName"));
+		assertEquals(1, users.size());
+		ScimUser joe = users.get(0);
+		assertEquals(JOE_ID, joe.getId());
+		assertEquals("joe", joe.getUserName());
+		assertNull(joe.getEmails());
+		assertNull(joe.getName());
+		assertNull(joe.getPhoneNumbers());
+	}
+
+	@Test
+	public void canRetrieveNestedAttributesOfUsers() {
+		List<ScimUser> users = db.query("username eq 'joe'", "username", true,
+				new HashSet<String>(Arrays.asList("emails", "name", "meta")));
+		ScimUser joe = users.get(0);
+		assertEquals("joe@joe.com", joe.getPrimaryEmail());
+		assertEquals("Joe", joe.getGivenName());
+		assertNotNull(joe.getMeta().getCreated());
+		assertNull(joe.getUserName());
+	}
+
 	@Test
 	public void canRetrieveUsersWithFilterEqualsDoubleQuote() {
 		assertEquals(1, db.query("username eq \"joe\"").size());
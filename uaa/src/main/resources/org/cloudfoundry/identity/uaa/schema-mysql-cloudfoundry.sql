@@ -38,6 +38,9 @@ CREATE TABLE sec_audit (
    created TIMESTAMP default current_timestamp
 ) ;
 
+CREATE INDEX audit_principal ON sec_audit (principal_id);
+CREATE INDEX audit_created ON sec_audit (created);
+
 CREATE TABLE oauth_client_details (
   client_id VARCHAR(255) PRIMARY KEY,
   resource_ids VARCHAR(1024),
@@ -84,6 +87,19 @@ CREATE TABLE group_membership (
   primary key (group_id, member_id)
 ) ;
 
+CREATE TABLE group_membership_closure (
+  group_id VARCHAR(36) not null,
+  member_id VARCHAR(36) not null,
+  primary key (member_id, group_id)
+) ;
+
+CREATE INDEX closure_group ON group_membership_closure (group_id);
+
+CREATE TABLE group_membership_lock (
+  id VARCHAR(36) not null primary key,
+  version INTEGER default 0 not null
+) ;
+
 CREATE TABLE external_group_mapping (
   group_id VARCHAR(36) not null,
   external_group VARCHAR(255) not null,
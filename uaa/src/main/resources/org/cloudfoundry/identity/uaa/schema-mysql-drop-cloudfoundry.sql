@@ -17,5 +17,7 @@ DROP TABLE  SEC_AUDIT ;
 DROP TABLE  OAUTH_CLIENT_DETAILS ;
 DROP TABLE  GROUPS ;
 DROP TABLE  GROUP_MEMBERSHIP ;
+DROP TABLE  GROUP_MEMBERSHIP_CLOSURE ;
+DROP TABLE  GROUP_MEMBERSHIP_LOCK ;
 DROP TABLE  AUTHZ_APPROVALS ;
 DROP TABLE  OAUTH_CODE ;
\ No newline at end of file
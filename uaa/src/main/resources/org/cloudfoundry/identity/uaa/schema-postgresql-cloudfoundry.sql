@@ -125,6 +125,19 @@ DROP TABLE oauth_client_token;
 DROP TABLE oauth_access_token;
 DROP TABLE oauth_refresh_token;
 
+CREATE TABLE GROUP_MEMBERSHIP_CLOSURE (
+  group_id VARCHAR(36) not null,
+  member_id VARCHAR(36) not null,
+  primary key (member_id, group_id)
+) ;
+
+CREATE INDEX closure_group ON GROUP_MEMBERSHIP_CLOSURE (group_id);
+
+CREATE TABLE GROUP_MEMBERSHIP_LOCK (
+  id VARCHAR(36) not null primary key,
+  version INTEGER default 0 not null
+) ;
+
 CREATE TABLE external_group_mapping (
   group_id VARCHAR(36) not null,
   external_group VARCHAR(255) not null,
@@ -17,6 +17,8 @@ DROP TABLE  SEC_AUDIT ;
 DROP TABLE  OAUTH_CLIENT_DETAILS ;
 DROP TABLE  GROUPS ;
 DROP TABLE  GROUP_MEMBERSHIP ;
+DROP TABLE  GROUP_MEMBERSHIP_CLOSURE ;
+DROP TABLE  GROUP_MEMBERSHIP_LOCK ;
 DROP TABLE  AUTHZ_APPROVALS ;
 DROP TABLE  oauth_client_token ;
 DROP TABLE  oauth_access_token ;
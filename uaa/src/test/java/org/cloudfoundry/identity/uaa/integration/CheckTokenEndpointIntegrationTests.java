@@ -154,6 +154,21 @@ public class CheckTokenEndpointIntegrationTests {
 
 	}
 
+	@Test
+	public void testBatchUnauthorized() throws Exception {
+
+		MultiValueMap<String, String> formData = new LinkedMultiValueMap<String, String>();
+		formData.add("token", "FOO");
+		formData.add("token", "BAR");
+		HttpHeaders headers = new HttpHeaders();
+		headers.setAccept(Arrays.asList(MediaType.APPLICATION_JSON));
+
+		@SuppressWarnings("rawtypes")
+		ResponseEntity<Map> response = serverRunning.postForMap("/check_token/batch", formData, headers);
+		assertEquals(HttpStatus.UNAUTHORIZED, response.getStatusCode());
+
+	}
+
 	@Test
 	public void testForbidden() throws Exception {
 